@@ -0,0 +1,71 @@
+package com.miro.widgets.benchmark;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+
+/**
+ * Deterministic boards for the benchmarks. Widgets get ids numbered {@code 0..n-1} and z indexes
+ * {@code 1..n} and are scattered over a square board whose area grows with the widget count.
+ */
+public final class Boards {
+	public static final long SEED = 42 ;
+	
+	private static final int AREA_PER_WIDGET = 40 * 40 ;
+	private static final int MAX_SIDE = 60 ;
+	
+	private Boards() {
+	}
+	
+	public static int side(int size) {
+		return (int) Math.sqrt((double) size * AREA_PER_WIDGET) ;
+	}
+	
+	/**
+	 * The numbered id in the UUIDv7 form storage expects, the same in every run.
+	 */
+	public static String id(int i) {
+		return new UUID(0x7000L, 0x8000000000000000L | i).toString() ;
+	}
+	
+	public static List<Widget> widgets(int size) {
+		Random random = new Random(SEED) ;
+		int side = side(size) ;
+		List<Widget> widgets = new ArrayList<>(size) ;
+		for (int i = 0; i < size; i++) {
+			widgets.add(widget(id(i), i + 1, random, side)) ;
+		}
+		return widgets ;
+	}
+	
+	public static Widget widget(String id, Integer zindex, Random random, int side) {
+		return Widget.builder()
+				.id(id)
+				.x(random.nextInt(side))
+				.y(random.nextInt(side))
+				.zindex(zindex)
+				.width(10 + random.nextInt(MAX_SIDE - 10))
+				.height(10 + random.nextInt(MAX_SIDE - 10))
+				.lastModificationDate(LocalDateTime.now())
+				.build() ;
+	}
+	
+	/**
+	 * Square region covering the given fraction of the board.
+	 */
+	public static RegionDto region(int size, double selectivity, Random random) {
+		int side = side(size) ;
+		int regionSide = Math.max(1, (int) (side * Math.sqrt(selectivity))) ;
+		return RegionDto.builder()
+				.x(random.nextInt(Math.max(1, side - regionSide)))
+				.y(random.nextInt(Math.max(1, side - regionSide)))
+				.width(regionSide)
+				.height(regionSide)
+				.build() ;
+	}
+}
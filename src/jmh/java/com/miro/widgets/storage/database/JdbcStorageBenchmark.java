@@ -0,0 +1,143 @@
+package com.miro.widgets.storage.database;
+
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.PageRequest;
+
+import com.miro.widgets.WidgetsServiceApplication;
+import com.miro.widgets.benchmark.Boards;
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetStorage;
+
+/**
+ * Runs against the embedded H2 database. Write benchmarks keep the board size stable:
+ * every insert is paired with a delete.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JdbcStorageBenchmark {
+
+	private static final int SEED_BATCH = 1000 ;
+
+	@State(Scope.Benchmark)
+	public static class Board {
+		@Param({"1000", "10000", "100000"})
+		int size ;
+
+		ConfigurableApplicationContext context ;
+		WidgetStorage storage ;
+
+		@Setup
+		public void setUp() {
+			context = new SpringApplicationBuilder(WidgetsServiceApplication.class)
+					.web(WebApplicationType.NONE)
+					.properties("storage=database")
+					.run() ;
+			storage = context.getBean(WidgetStorage.class) ;
+			List<Widget> widgets = Boards.widgets(size) ;
+			for (int from = 0; from < size; from += SEED_BATCH) {
+				storage.applyBatch(DEFAULT_BOARD, widgets.subList(from, Math.min(size, from + SEED_BATCH)).stream()
+						.map(w -> {
+							w.setZindex(null);
+							return WidgetOperation.create(w) ;
+						})
+						.collect(Collectors.toList())) ;
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			context.close();
+		}
+
+		Widget newWidget(Integer zindex) {
+			return Boards.widget(WidgetIds.next(), zindex, ThreadLocalRandom.current(), Boards.side(size)) ;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Selectivity {
+		@Param({"0.0001", "0.01", "0.1"})
+		double selectivity ;
+
+		final Random random = new Random(Boards.SEED) ;
+	}
+
+	@Benchmark
+	public Widget appendAtTop(Board board) {
+		Widget widget = board.storage.create(board.newWidget(null)) ;
+		board.storage.deleteById(DEFAULT_BOARD, widget.getId());
+		return widget ;
+	}
+
+	@Benchmark
+	public Widget insertAtFront(Board board) {
+		Widget widget = board.storage.create(board.newWidget(1)) ;
+		board.storage.deleteById(DEFAULT_BOARD, widget.getId());
+		return widget ;
+	}
+
+	@Benchmark
+	public Optional<Widget> randomUpdate(Board board) {
+		ThreadLocalRandom random = ThreadLocalRandom.current() ;
+		String id = Boards.id(random.nextInt(board.size)) ;
+		return board.storage.update(Boards.widget(id, 1 + random.nextInt(board.size), random, Boards.side(board.size))) ;
+	}
+
+	@Benchmark
+	public Widget deleteAndRecreate(Board board) {
+		ThreadLocalRandom random = ThreadLocalRandom.current() ;
+		String id = Boards.id(random.nextInt(board.size)) ;
+		board.storage.deleteById(DEFAULT_BOARD, id);
+		return board.storage.create(Boards.widget(id, 1 + random.nextInt(board.size), random, Boards.side(board.size))) ;
+	}
+
+	@Benchmark
+	public List<Widget> regionQuery(Board board, Selectivity selectivity) {
+		RegionDto region = Boards.region(board.size, selectivity.selectivity, selectivity.random) ;
+		return board.storage.findAllByRegion(DEFAULT_BOARD, region) ;
+	}
+
+	@Benchmark
+	public List<Widget> firstPage(Board board) {
+		return board.storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10)) ;
+	}
+
+	@Benchmark
+	public List<Widget> deepPage(Board board) {
+		return board.storage.findAll(DEFAULT_BOARD, PageRequest.of(board.size / 20, 10)) ;
+	}
+
+	@Benchmark
+	public List<Widget> deepCursor(Board board) {
+		return board.storage.findAllAfter(DEFAULT_BOARD, board.size / 2, 10) ;
+	}
+}
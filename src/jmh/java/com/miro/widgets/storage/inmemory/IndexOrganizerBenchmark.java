@@ -0,0 +1,75 @@
+package com.miro.widgets.storage.inmemory;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widgets.benchmark.Boards;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.inmemory.spatial.RTreeSpatialIndex;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Shifts are computed against a fixed snapshot and never published, so every invocation
+ * sees the same board.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexOrganizerBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	int size ;
+
+	IndexOrganizer organizer = new IndexOrganizer(new StorageMetrics(new SimpleMeterRegistry(), "inmemory")) ;
+	WidgetSnapshot snapshot ;
+	Widget front ;
+	Widget middle ;
+	Widget top ;
+
+	@Setup
+	public void setUp() {
+		snapshot = WidgetSnapshot.empty(RTreeSpatialIndex.empty()) ;
+		for (Widget widget : Boards.widgets(size)) {
+			snapshot = snapshot.put(widget) ;
+		}
+		front = Widget.builder().id(Boards.id(size)).zindex(1).build() ;
+		middle = Widget.builder().id(Boards.id(size + 1)).zindex(size / 2).build() ;
+		top = Widget.builder().id(Boards.id(size + 2)).zindex(size + 1).build() ;
+	}
+
+	@Benchmark
+	public WidgetSnapshot shiftFromFront() {
+		return organizer.shiftIndexes(front, snapshot) ;
+	}
+
+	@Benchmark
+	public WidgetSnapshot shiftFromMiddle() {
+		return organizer.shiftIndexes(middle, snapshot) ;
+	}
+
+	@Benchmark
+	public WidgetSnapshot shiftAboveTop() {
+		return organizer.shiftIndexes(top, snapshot) ;
+	}
+
+	@Benchmark
+	public int maxIndex() {
+		return organizer.getMaxIndex(snapshot) ;
+	}
+}
@@ -1,70 +1,334 @@
 package com.miro.widgets.controller;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 import javax.validation.Valid;
 
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PageableDefault;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import com.miro.widgets.dto.BatchDto;
+import com.miro.widgets.dto.CursorDto;
+import com.miro.widgets.dto.PointDto;
 import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.dto.ViewportDto;
 import com.miro.widgets.dto.WidgetDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.format.WidgetColumnsHttpMessageConverter;
 import com.miro.widgets.service.WidgetService;
+import com.miro.widgets.service.WidgetWriter;
+import com.miro.widgets.storage.ChangeFeed;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperationResult;
 
 import lombok.RequiredArgsConstructor;
 
 @RestController
-@RequestMapping("/api/${api.version}/widgets")
+@RequestMapping({"/api/${api.version}/widgets", "/api/${api.version}/boards/{board:[A-Za-z0-9_-]{1,64}}/widgets"})
 @RequiredArgsConstructor
 public class WidgetController {
 	
+	/**
+	 * Representations of listings, which get ETags of their own.
+	 */
+	private static final List<MediaType> REPRESENTATIONS = List.of(MediaType.APPLICATION_JSON, new MediaType("application", "x-jackson-smile"),
+			MediaType.APPLICATION_CBOR, WidgetColumnsHttpMessageConverter.WIDGET_COLUMNS) ;
+	
 	private final WidgetService widgetService ;
+	private final WidgetWriter widgetWriter ;
+	private final ChangeFeed changeFeed ;
+	private final ObjectMapper objectMapper ;
 	
+	/**
+	 * Ids not in the string form of a widget id name no widget, they are not found like unknown ones.
+	 */
 	@GetMapping("/{id}")
-	public ResponseEntity<Widget> getWidget(@PathVariable("id") String id) {
-		return widgetService.findById(id).map(w -> {
-			return ResponseEntity.ok(w) ;
-		}).orElse(ResponseEntity.notFound().build()) ;
+	public ResponseEntity<Widget> getWidget(@PathVariable(name = "board", required = false) String board, @PathVariable("id") String id) {
+		if (!WidgetIds.isValid(id)) {
+			return ResponseEntity.notFound().build() ;
+		}
+		return widgetService.findById(board(board), id).map(this::tagged).orElse(ResponseEntity.notFound().build()) ;
 	}
 	
 	@GetMapping
-	public List<Widget> getWidgets(@PageableDefault(page = 0, size = 10) Pageable pageable) {
-		return widgetService.findAll(pageable) ;
+	public List<Widget> getWidgets(@PathVariable(name = "board", required = false) String board, @Valid CursorDto cursor, @PageableDefault(page = 0, size = 10) Pageable pageable, WebRequest request) {
+		if (notModified(request, board(board), representation(request))) {
+			return null ;
+		}
+		if (cursor.isSpecified()) {
+			return widgetService.findAllAfter(board(board), cursor.getAfter(), cursor.getLimitOrDefault()) ;
+		}
+		return widgetService.findAll(board(board), pageable) ;
 	}
 	
+	@GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamWidgets(@PathVariable(name = "board", required = false) String board, @Valid CursorDto cursor, @PageableDefault(page = 0, size = 10) Pageable pageable, WebRequest request) {
+		if (notModified(request, board(board), MediaType.APPLICATION_NDJSON)) {
+			return null ;
+		}
+		if (cursor.isSpecified()) {
+			return ndjson(action -> widgetService.findAllAfter(board(board), cursor.getAfter(), cursor.getLimitOrDefault()).forEach(action)) ;
+		}
+		return ndjson(action -> widgetService.forEach(board(board), pageable, action)) ;
+	}
+	
+	/**
+	 * The widgets within the region, in z index order and a page at a time when sorted by
+	 * z index or given a cursor.
+	 */
 	@GetMapping("/filter")
-	public List<Widget> getWidgetByRegion(@Valid RegionDto dto) {
-		return widgetService.findAllByRegion(dto) ;
+	public List<Widget> getWidgetByRegion(@PathVariable(name = "board", required = false) String board, @Valid RegionDto dto, @Valid CursorDto cursor,
+			@RequestParam(name = "sort", required = false) String sort, WebRequest request) {
+		if (notModified(request, board(board), representation(request))) {
+			return null ;
+		}
+		if (isOrderedByZindex(sort, cursor)) {
+			return widgetService.findAllByRegionAfter(board(board), dto, cursor.getAfter(), regionLimit(cursor)) ;
+		}
+		return widgetService.findAllByRegion(board(board), dto) ;
+	}
+	
+	@GetMapping(path = "/filter", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamWidgetsByRegion(@PathVariable(name = "board", required = false) String board, @Valid RegionDto dto, @Valid CursorDto cursor,
+			@RequestParam(name = "sort", required = false) String sort, WebRequest request) {
+		if (notModified(request, board(board), MediaType.APPLICATION_NDJSON)) {
+			return null ;
+		}
+		if (isOrderedByZindex(sort, cursor)) {
+			return ndjson(action -> widgetService.findAllByRegionAfter(board(board), dto, cursor.getAfter(), regionLimit(cursor)).forEach(action)) ;
+		}
+		return ndjson(action -> widgetService.forEachByRegion(board(board), dto, action)) ;
+	}
+	
+	/**
+	 * The widgets containing the point, topmost first, or only the topmost one if asked to.
+	 */
+	@GetMapping("/at")
+	public List<Widget> getWidgetsAt(@PathVariable(name = "board", required = false) String board, @Valid PointDto dto, WebRequest request) {
+		if (notModified(request, board(board), representation(request))) {
+			return null ;
+		}
+		return widgetService.findAllAt(board(board), dto.getX(), dto.getY(), dto.getLimit()) ;
+	}
+	
+	/**
+	 * Streams the changes of the board, of the viewport only if one is given. A reconnecting
+	 * client resumes after the id of the last event it received.
+	 */
+	@GetMapping(path = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> streamChanges(@PathVariable(name = "board", required = false) String board, @Valid ViewportDto viewport,
+			@RequestHeader(name = "Last-Event-ID", required = false) Long lastEventId) {
+		if (!changeFeed.isEnabled()) {
+			return ResponseEntity.notFound().build() ;
+		}
+		return ResponseEntity.ok(changeFeed.subscribe(board(board), viewport.toRegion(), lastEventId)) ;
+	}
+	
+	/**
+	 * The widgets changed and deleted since the version, which a client takes from the ETag of
+	 * a listing or from the previous changes. Gone if the changes are no longer known, then the
+	 * client has to list the board again.
+	 */
+	@GetMapping(path = "/changes", params = "since")
+	public ResponseEntity<WidgetChanges> getChanges(@PathVariable(name = "board", required = false) String board, @RequestParam("since") long since) {
+		return widgetService.changesSince(board(board), since)
+				.map(ResponseEntity::ok)
+				.orElse(ResponseEntity.status(HttpStatus.GONE).build()) ;
 	}
 	
 	@PostMapping
-	public ResponseEntity<Widget> createWidget(@Valid @RequestBody WidgetDto dto) {
-		return ResponseEntity.status(HttpStatus.CREATED).body(widgetService.create(dto)) ;
+	public CompletableFuture<ResponseEntity<Widget>> createWidget(@PathVariable(name = "board", required = false) String board, @Valid @RequestBody WidgetDto dto) {
+		return widgetWriter.create(board(board), dto).thenApply(w -> ResponseEntity.status(HttpStatus.CREATED).body(w)) ;
+	}
+	
+	@PostMapping("/batch")
+	public CompletableFuture<List<WidgetOperationResult>> applyBatch(@PathVariable(name = "board", required = false) String board, @Valid @RequestBody BatchDto dto) {
+		return widgetWriter.applyBatch(board(board), dto.getOperations()) ;
 	}
 	
+	/**
+	 * With an If-Match header holding the ETag of the widget, the widget is only updated if it
+	 * is still at that version, otherwise the answer is 412.
+	 */
 	@PutMapping("/{id}")
-	public ResponseEntity<Widget> updateWidget(@PathVariable("id") String id, @Valid @RequestBody WidgetDto dto) {
-		return widgetService.findById(id).map(w -> {
-			return ResponseEntity.ok(widgetService.update(id, dto)) ;
-		}).orElse(ResponseEntity.notFound().build()) ;
+	public CompletableFuture<ResponseEntity<Widget>> updateWidget(@PathVariable(name = "board", required = false) String board, @PathVariable("id") String id, @Valid @RequestBody WidgetDto dto,
+			@RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+		if (!WidgetIds.isValid(id)) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build()) ;
+		}
+		return widgetWriter.update(board(board), id, dto, version(ifMatch)).thenApply(updated -> updated.map(this::tagged).orElse(ResponseEntity.notFound().build())) ;
 	}
 	
 	@DeleteMapping("/{id}")
-	public ResponseEntity<?> deleteWidget(@PathVariable("id") String id) {
-		return widgetService.findById(id).map(w -> {
-			widgetService.deleteById(id);
-			return ResponseEntity.ok().build() ;
-		}).orElse(ResponseEntity.notFound().build()) ;
+	public CompletableFuture<ResponseEntity<?>> deleteWidget(@PathVariable(name = "board", required = false) String board, @PathVariable("id") String id,
+			@RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+		if (!WidgetIds.isValid(id)) {
+			return CompletableFuture.completedFuture(ResponseEntity.notFound().build()) ;
+		}
+		return widgetWriter.deleteById(board(board), id, version(ifMatch)).thenApply(deleted -> {
+			return deleted ? ResponseEntity.ok().build() : ResponseEntity.notFound().build() ;
+		}) ;
+	}
+	
+	/**
+	 * The write pipeline rejects mutations while its queue is full.
+	 */
+	@ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<?> writeQueueFull() {
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build() ;
+	}
+	
+	/**
+	 * The widget changed since the version it was conditioned on.
+	 */
+	@ExceptionHandler(WidgetConflictException.class)
+	public ResponseEntity<?> versionConflict() {
+		return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build() ;
+	}
+	
+	/**
+	 * Tags the response with the version of the board, read before the widgets so that the tag
+	 * is never newer than the result. A request already having that version gets a 304 without
+	 * the board being queried.
+	 */
+	private boolean notModified(WebRequest request, String board, MediaType representation) {
+		return request.checkNotModified(etag(widgetService.version(board), representation)) ;
+	}
+	
+	private String etag(long version, MediaType representation) {
+		if (representation.equals(MediaType.APPLICATION_JSON)) {
+			return "\"" + version + "\"" ;
+		}
+		return "\"" + version + "-" + representation.getSubtype().replaceFirst("^x-", "") + "\"" ;
+	}
+	
+	/**
+	 * The representation a listing is going to be written in, the most preferred one named by
+	 * the request, which is JSON when none is named.
+	 */
+	private MediaType representation(WebRequest request) {
+		String accept = request.getHeader(HttpHeaders.ACCEPT) ;
+		if (accept == null) {
+			return MediaType.APPLICATION_JSON ;
+		}
+		List<MediaType> acceptable ;
+		try {
+			acceptable = MediaType.parseMediaTypes(accept) ;
+		} catch (InvalidMediaTypeException e) {
+			return MediaType.APPLICATION_JSON ;
+		}
+		MediaType.sortBySpecificityAndQuality(acceptable);
+		for (MediaType mediaType : acceptable) {
+			for (MediaType representation : REPRESENTATIONS) {
+				if (representation.equalsTypeAndSubtype(mediaType)) {
+					return representation ;
+				}
+			}
+		}
+		return MediaType.APPLICATION_JSON ;
+	}
+	
+	/**
+	 * The widget with its version as the ETag, to be sent back in If-Match.
+	 */
+	private ResponseEntity<Widget> tagged(Widget widget) {
+		if (widget.getVersion() == null) {
+			return ResponseEntity.ok(widget) ;
+		}
+		return ResponseEntity.ok().eTag("\"" + widget.getVersion() + "\"").body(widget) ;
+	}
+	
+	/**
+	 * The widget version an If-Match header holds, null if there is none or it matches any. A
+	 * weak or foreign tag never matches a widget.
+	 */
+	private Long version(String ifMatch) {
+		if (ifMatch == null || ifMatch.trim().equals("*")) {
+			return null ;
+		}
+		String tag = ifMatch.trim() ;
+		if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+			try {
+				return Long.parseLong(tag.substring(1, tag.length() - 1)) ;
+			} catch (NumberFormatException e) {
+				// not a widget version
+			}
+		}
+		throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "If-Match must hold the ETag of the widget") ;
+	}
+	
+	private boolean isOrderedByZindex(String sort, CursorDto cursor) {
+		if (sort != null && !"zindex".equals(sort)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "regions can only be sorted by zindex") ;
+		}
+		return sort != null || cursor.isSpecified() ;
+	}
+	
+	/**
+	 * Unlike listings, a region sorted by z index is not limited unless asked to.
+	 */
+	private int regionLimit(CursorDto cursor) {
+		return cursor.getLimit() == null ? Integer.MAX_VALUE : cursor.getLimit() ;
+	}
+	
+	/**
+	 * Routes without a board address the default board.
+	 */
+	private String board(String board) {
+		return board == null ? Widget.DEFAULT_BOARD : board ;
+	}
+	
+	/**
+	 * Writes one widget per line as the source produces them, the response is flushed
+	 * whenever the generator and container buffers fill up.
+	 */
+	private ResponseEntity<StreamingResponseBody> ndjson(Consumer<Consumer<Widget>> source) {
+		ObjectWriter writer = objectMapper.writerFor(Widget.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE) ;
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(out -> {
+			try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+				source.accept(widget -> {
+					try {
+						writer.writeValue(generator, widget);
+						generator.writeRaw('\n');
+					} catch (IOException e) {
+						throw new UncheckedIOException(e) ;
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause() ;
+			}
+		}) ;
 	}
 }
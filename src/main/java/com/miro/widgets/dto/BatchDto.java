@@ -0,0 +1,24 @@
+package com.miro.widgets.dto;
+
+import java.util.List;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Size;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+@Getter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class BatchDto {
+	public static final int MAX_OPERATIONS = 1000 ;
+	
+	@NotEmpty(message = "operations can't be empty")
+	@Size(max = MAX_OPERATIONS, message = "operations must not contain more than 1000 entries")
+	private List<@Valid BatchOperationDto> operations ;
+}
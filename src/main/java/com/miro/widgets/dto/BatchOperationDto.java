@@ -0,0 +1,49 @@
+package com.miro.widgets.dto;
+
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.WidgetOperation;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+@Builder
+public class BatchOperationDto {
+	@NotNull(message = "type can't be null")
+	private WidgetOperation.Type type ;
+	
+	@Pattern(regexp = WidgetIds.PATTERN, message = "id must be a widget id")
+	private String id ;
+	
+	/**
+	 * Version an update or delete is conditioned on, if set.
+	 */
+	private Long version ;
+	
+	@Valid
+	private WidgetDto widget ;
+	
+	@JsonIgnore
+	@AssertTrue(message = "create requires a widget, update requires an id and a widget, delete requires an id")
+	public boolean isComplete() {
+		if (type == null) {
+			return true ;
+		}
+		switch (type) {
+		case CREATE:
+			return widget != null ;
+		case UPDATE:
+			return id != null && widget != null ;
+		default:
+			return id != null ;
+		}
+	}
+}
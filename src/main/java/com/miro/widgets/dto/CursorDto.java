@@ -0,0 +1,33 @@
+package com.miro.widgets.dto;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+@Builder
+public class CursorDto {
+	public static final int DEFAULT_LIMIT = 10 ;
+	
+	private Integer after ;
+	
+	@Min(value = 1, message = "limit must be greater than 0")
+	@Max(value = 1000, message = "limit must not be greater than 1000")
+	private Integer limit ;
+	
+	@JsonIgnore
+	public boolean isSpecified() {
+		return after != null || limit != null ;
+	}
+	
+	@JsonIgnore
+	public int getLimitOrDefault() {
+		return limit == null ? DEFAULT_LIMIT : limit ;
+	}
+}
@@ -0,0 +1,27 @@
+package com.miro.widgets.dto;
+
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+@Builder
+public class PointDto {
+	@NotNull(message = "x coordinate can't be null")
+	private Integer x ;
+	
+	@NotNull(message = "y coordinate can't be null")
+	private Integer y ;
+	
+	private Boolean topmost ;
+	
+	@JsonIgnore
+	public int getLimit() {
+		return Boolean.TRUE.equals(topmost) ? 1 : Integer.MAX_VALUE ;
+	}
+}
@@ -0,0 +1,43 @@
+package com.miro.widgets.dto;
+
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+@Builder
+public class ViewportDto {
+	private Integer x ;
+	
+	private Integer y ;
+	
+	@Min(value = 1, message = "height must be greater than 0")
+	private Integer height ;
+	
+	@Min(value = 1, message = "width must be greater than 0")
+	private Integer width ;
+	
+	@JsonIgnore
+	public boolean isSpecified() {
+		return x != null || y != null || height != null || width != null ;
+	}
+	
+	@JsonIgnore
+	@AssertTrue(message = "a viewport requires x, y, height and width")
+	public boolean isComplete() {
+		return !isSpecified() || (x != null && y != null && height != null && width != null) ;
+	}
+	
+	/**
+	 * The viewport as a region, null if none was given.
+	 */
+	public RegionDto toRegion() {
+		return isSpecified() ? RegionDto.builder().x(x).y(y).height(height).width(width).build() : null ;
+	}
+}
@@ -3,14 +3,22 @@ package com.miro.widgets.entity;
 import java.time.LocalDateTime;
 
 import javax.persistence.Cacheable;
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Table;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
+import org.hibernate.annotations.Type;
+
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.miro.widgets.dto.WidgetDto;
+import com.miro.widgets.storage.database.SpatialKeys;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -21,6 +29,11 @@ import lombok.Setter;
 import lombok.ToString;
 
 @Entity
+@Table(indexes = {
+		@Index(name = "idx_widget_board_zindex", columnList = "board, zindex", unique = true),
+		@Index(name = "idx_widget_board_spatial_key", columnList = "board, spatialKey"),
+		@Index(name = "idx_widget_board_cover_key", columnList = "board, coverKey")
+})
 @AllArgsConstructor
 @NoArgsConstructor
 @Builder
@@ -29,9 +42,20 @@ import lombok.ToString;
 @ToString
 public class Widget {
 	
+	public static final String DEFAULT_BOARD = "default" ;
+	
+	/**
+	 * The string form of a {@link WidgetIds} UUID, stored as its 16 bytes.
+	 */
 	@Id
+	@Type(type = WidgetIdType.NAME)
+	@Column(columnDefinition = "BINARY(16)")
 	private String id ;
 	
+	@Column(nullable = false, length = 64)
+	@Builder.Default
+	private String board = DEFAULT_BOARD ;
+	
 	@NotNull(message = "x coordinate can't be null")
 	private Integer x ;
 	
@@ -53,6 +77,46 @@ public class Widget {
 	@NotNull
 	private LocalDateTime lastModificationDate ;
 	
+	/**
+	 * Advanced by every update of the widget, z index shifts caused by other widgets leave it
+	 * as it is. A widget passed to an update with its version set is only updated at that version.
+	 */
+	private Long version ;
+	
+	/**
+	 * Hilbert key of the cell holding the top left corner, only maintained in SQL storage.
+	 */
+	@JsonIgnore
+	@ToString.Exclude
+	private Long spatialKey ;
+	
+	/**
+	 * Key of the cell covering the widget for point queries, only maintained in SQL storage.
+	 */
+	@JsonIgnore
+	@ToString.Exclude
+	private Long coverKey ;
+	
+	/**
+	 * Edges as the sum of position and size, which may exceed the range of an int.
+	 */
+	@JsonIgnore
+	@ToString.Exclude
+	private Long rightEdge ;
+	
+	@JsonIgnore
+	@ToString.Exclude
+	private Long bottomEdge ;
+	
+	@PrePersist
+	@PreUpdate
+	public void updateSpatialColumns() {
+		spatialKey = SpatialKeys.of(x, y) ;
+		coverKey = SpatialKeys.coverKey(x, y, width, height) ;
+		rightEdge = (long) x + width ;
+		bottomEdge = (long) y + height ;
+	}
+	
 	@JsonIgnore
 	public boolean isZindexNotSpecified() {
 		return zindex == null ;
@@ -77,6 +141,7 @@ public class Widget {
 	public static Widget buildFrom(Widget widget) {
 		return Widget.builder()
 				.id(widget.getId())
+				.board(widget.getBoard())
 				.x(widget.getX())
 				.y(widget.getY())
 				.zindex(widget.getZindex())
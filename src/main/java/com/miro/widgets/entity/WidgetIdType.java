@@ -0,0 +1,72 @@
+package com.miro.widgets.entity;
+
+import org.hibernate.type.AbstractSingleColumnStandardBasicType;
+import org.hibernate.type.descriptor.WrapperOptions;
+import org.hibernate.type.descriptor.java.AbstractTypeDescriptor;
+import org.hibernate.type.descriptor.sql.BinaryTypeDescriptor;
+
+/**
+ * Stores widget ids as the 16 bytes of their UUID rather than as 36 characters. A Hibernate
+ * type instead of an attribute converter, as converters are not applied to id attributes.
+ */
+public class WidgetIdType extends AbstractSingleColumnStandardBasicType<String> {
+
+	public static final String NAME = "com.miro.widgets.entity.WidgetIdType" ;
+
+	public WidgetIdType() {
+		super(BinaryTypeDescriptor.INSTANCE, IdDescriptor.INSTANCE) ;
+	}
+
+	@Override
+	public String getName() {
+		return "widget-id" ;
+	}
+
+	private static final class IdDescriptor extends AbstractTypeDescriptor<String> {
+
+		private static final IdDescriptor INSTANCE = new IdDescriptor() ;
+
+		private IdDescriptor() {
+			super(String.class) ;
+		}
+
+		@Override
+		public String toString(String value) {
+			return value ;
+		}
+
+		@Override
+		public String fromString(String string) {
+			return string ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <X> X unwrap(String value, Class<X> type, WrapperOptions options) {
+			if (value == null) {
+				return null ;
+			}
+			if (byte[].class.isAssignableFrom(type)) {
+				return (X) WidgetIds.toBytes(value) ;
+			}
+			if (String.class.isAssignableFrom(type)) {
+				return (X) value ;
+			}
+			throw unknownUnwrap(type) ;
+		}
+
+		@Override
+		public <X> String wrap(X value, WrapperOptions options) {
+			if (value == null) {
+				return null ;
+			}
+			if (value instanceof byte[]) {
+				return WidgetIds.fromBytes((byte[]) value) ;
+			}
+			if (value instanceof String) {
+				return (String) value ;
+			}
+			throw unknownWrap(value.getClass()) ;
+		}
+	}
+}
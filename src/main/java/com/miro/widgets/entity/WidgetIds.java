@@ -0,0 +1,97 @@
+package com.miro.widgets.entity;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates time ordered UUIDv7 ids: 48 bits of unix milliseconds, a 12 bit counter that
+ * keeps ids of the same millisecond increasing, and 62 random bits. Ids generated later
+ * always compare greater, as UUIDs and in their string form, so new rows are appended at
+ * the end of a primary key index instead of at random places.
+ * <p>
+ * Ids are handed out in their 36 character string form, storage keeps them as their two
+ * longs in memory and as 16 bytes in the journal and in the database.
+ */
+public final class WidgetIds {
+
+	/**
+	 * The string form of an id, for validating ids coming from requests.
+	 */
+	public static final String PATTERN = "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}" ;
+
+	private static final int COUNTER_BITS = 12 ;
+	private static final int LENGTH = 36 ;
+	private static final AtomicLong LAST = new AtomicLong() ;
+
+	private WidgetIds() {
+	}
+
+	public static String next() {
+		return nextUuid().toString() ;
+	}
+
+	static UUID nextUuid() {
+		long stamp = nextStamp(System.currentTimeMillis()) ;
+		long mostSignificant = (stamp >>> COUNTER_BITS) << 16 | 0x7000L | (stamp & 0xfffL) ;
+		long leastSignificant = ThreadLocalRandom.current().nextLong() >>> 2 | 0x8000000000000000L ;
+		return new UUID(mostSignificant, leastSignificant) ;
+	}
+
+	public static boolean isValid(String id) {
+		return id != null && id.length() == LENGTH && id.matches(PATTERN) ;
+	}
+
+	/**
+	 * Parses the string form of an id. Unlike {@link UUID#fromString(String)} only the full
+	 * 36 character form is accepted, so that every id has a single stored form.
+	 *
+	 * @throws IllegalArgumentException if the id is not in that form
+	 */
+	public static UUID parse(String id) {
+		if (id.length() != LENGTH || id.charAt(8) != '-' || id.charAt(13) != '-' || id.charAt(18) != '-' || id.charAt(23) != '-') {
+			throw new IllegalArgumentException("not a widget id: " + id) ;
+		}
+		long mostSignificant = hex(id, 0, 8) << 32 | hex(id, 9, 13) << 16 | hex(id, 14, 18) ;
+		long leastSignificant = hex(id, 19, 23) << 48 | hex(id, 24, 36) ;
+		return new UUID(mostSignificant, leastSignificant) ;
+	}
+
+	public static byte[] toBytes(String id) {
+		UUID uuid = parse(id) ;
+		return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array() ;
+	}
+
+	public static String fromBytes(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes) ;
+		return new UUID(buffer.getLong(), buffer.getLong()).toString() ;
+	}
+
+	private static long hex(String id, int from, int to) {
+		long value = 0 ;
+		for (int i = from; i < to; i++) {
+			int digit = Character.digit(id.charAt(i), 16) ;
+			if (digit < 0) {
+				throw new IllegalArgumentException("not a widget id: " + id) ;
+			}
+			value = value << 4 | digit ;
+		}
+		return value ;
+	}
+
+	/**
+	 * Millisecond and counter of the next id. When the counter of a millisecond runs out, the
+	 * ids continue in the following millisecond ahead of the clock, so they never go backwards.
+	 */
+	private static long nextStamp(long millis) {
+		long now = millis << COUNTER_BITS ;
+		while (true) {
+			long previous = LAST.get() ;
+			long next = Math.max(previous + 1, now) ;
+			if (LAST.compareAndSet(previous, next)) {
+				return next ;
+			}
+		}
+	}
+}
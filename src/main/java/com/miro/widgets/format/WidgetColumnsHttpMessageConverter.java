@@ -0,0 +1,141 @@
+package com.miro.widgets.format;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.miro.widgets.entity.Widget;
+
+/**
+ * Writes a list of widgets column by column in Smile: one array per field instead of one object
+ * per widget, so field names are written once. Coordinates, z indexes and modification dates
+ * are written as the difference to the previous widget, which for lists ordered by z index or
+ * taken from one region are small numbers taking one or two bytes. Repeated board names are
+ * back references. Modification dates are in seconds since 1970-01-01T00:00:00, read as local
+ * date-times like the JSON representation.
+ */
+public class WidgetColumnsHttpMessageConverter extends AbstractGenericHttpMessageConverter<List<Widget>> {
+
+	public static final MediaType WIDGET_COLUMNS = new MediaType("application", "x-widget-columns") ;
+
+	private final ObjectMapper mapper ;
+
+	public WidgetColumnsHttpMessageConverter() {
+		super(WIDGET_COLUMNS) ;
+		this.mapper = new ObjectMapper(SmileFactory.builder()
+				.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+				.disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+				.build()) ;
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return List.class.isAssignableFrom(clazz) ;
+	}
+
+	@Override
+	public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+		return isWidgetList(type) && canRead(mediaType) ;
+	}
+
+	@Override
+	public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+		return isWidgetList(type) && canWrite(mediaType) ;
+	}
+
+	private boolean isWidgetList(Type type) {
+		ResolvableType resolved = ResolvableType.forType(type) ;
+		return List.class.isAssignableFrom(resolved.toClass()) && Widget.class.equals(resolved.resolveGeneric(0)) ;
+	}
+
+	@Override
+	protected void writeInternal(List<Widget> widgets, Type type, HttpOutputMessage outputMessage) throws IOException {
+		try (JsonGenerator generator = mapper.getFactory().createGenerator(outputMessage.getBody())) {
+			generator.writeStartObject();
+			generator.writeNumberField("count", widgets.size());
+			writeValues(generator, "id", widgets, Widget::getId);
+			writeValues(generator, "board", widgets, Widget::getBoard);
+			writeDeltas(generator, "x", widgets, Widget::getX);
+			writeDeltas(generator, "y", widgets, Widget::getY);
+			writeDeltas(generator, "zindex", widgets, Widget::getZindex);
+			writeValues(generator, "width", widgets, Widget::getWidth);
+			writeValues(generator, "height", widgets, Widget::getHeight);
+			writeDeltas(generator, "lastModificationDate", widgets, w -> w.getLastModificationDate().toEpochSecond(ZoneOffset.UTC));
+			writeValues(generator, "version", widgets, Widget::getVersion);
+			generator.writeEndObject();
+		}
+	}
+
+	private void writeValues(JsonGenerator generator, String field, List<Widget> widgets, Function<Widget, Object> value) throws IOException {
+		generator.writeArrayFieldStart(field);
+		for (Widget widget : widgets) {
+			generator.writeObject(value.apply(widget));
+		}
+		generator.writeEndArray();
+	}
+
+	private void writeDeltas(JsonGenerator generator, String field, List<Widget> widgets, ToLongFunction<Widget> value) throws IOException {
+		generator.writeArrayFieldStart(field);
+		long previous = 0 ;
+		for (Widget widget : widgets) {
+			long current = value.applyAsLong(widget) ;
+			generator.writeNumber(current - previous);
+			previous = current ;
+		}
+		generator.writeEndArray();
+	}
+
+	@Override
+	public List<Widget> read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) throws IOException {
+		return readInternal(null, inputMessage) ;
+	}
+
+	@Override
+	protected List<Widget> readInternal(Class<? extends List<Widget>> clazz, HttpInputMessage inputMessage) throws IOException {
+		JsonNode columns = mapper.readTree(inputMessage.getBody()) ;
+		int count = columns.path("count").asInt() ;
+		for (String field : new String[] {"id", "board", "x", "y", "zindex", "width", "height", "lastModificationDate", "version"}) {
+			if (columns.path(field).size() != count) {
+				throw new HttpMessageNotReadableException("column " + field + " must hold " + count + " values", inputMessage) ;
+			}
+		}
+		List<Widget> widgets = new ArrayList<>(count) ;
+		long x = 0, y = 0, zindex = 0, date = 0 ;
+		for (int i = 0; i < count; i++) {
+			x += columns.get("x").get(i).asLong() ;
+			y += columns.get("y").get(i).asLong() ;
+			zindex += columns.get("zindex").get(i).asLong() ;
+			date += columns.get("lastModificationDate").get(i).asLong() ;
+			widgets.add(Widget.builder()
+					.id(columns.get("id").get(i).asText())
+					.board(columns.get("board").get(i).asText())
+					.x((int) x)
+					.y((int) y)
+					.zindex((int) zindex)
+					.width(columns.get("width").get(i).asInt())
+					.height(columns.get("height").get(i).asInt())
+					.lastModificationDate(LocalDateTime.ofEpochSecond(date, 0, ZoneOffset.UTC))
+					.version(columns.get("version").get(i).isNull() ? null : columns.get("version").get(i).asLong())
+					.build()) ;
+		}
+		return widgets ;
+	}
+}
@@ -0,0 +1,30 @@
+package com.miro.widgets.repository;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.miro.widgets.entity.Widget;
+
+public interface WidgetRegionRepository {
+	/**
+	 * Widgets of the board lying completely within the given region, edges included.
+	 */
+	List<Widget> findAllWithinRegion(String board, int x, int y, int width, int height) ;
+	
+	/**
+	 * At most {@code limit} widgets of {@link #findAllWithinRegion} with a z index above
+	 * {@code afterZindex}, or from the lowest one if it is null, in z index order.
+	 */
+	List<Widget> findAllWithinRegionAfter(String board, int x, int y, int width, int height, Integer afterZindex, int limit) ;
+	
+	/**
+	 * Same as {@link #findAllWithinRegion}, but rows are fetched from a cursor as the stream
+	 * is consumed. Must be called and consumed within a transaction and closed afterwards.
+	 */
+	Stream<Widget> streamAllWithinRegion(String board, int x, int y, int width, int height) ;
+	
+	/**
+	 * At most {@code limit} widgets of the board containing the point, edges included, topmost first.
+	 */
+	List<Widget> findAllAtPoint(String board, int x, int y, int limit) ;
+}
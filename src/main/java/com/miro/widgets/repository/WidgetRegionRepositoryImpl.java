@@ -0,0 +1,121 @@
+package com.miro.widgets.repository;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.hibernate.jpa.QueryHints;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.database.SpatialKeys;
+
+/**
+ * Region queries are served by range scans over the board and spatial key index, one per key range
+ * covering the region, and the exact edges are checked on the candidates. Point queries look up
+ * the cover keys of the point in the board and cover key index.
+ */
+public class WidgetRegionRepositoryImpl implements WidgetRegionRepository {
+	
+	private static final int STREAM_FETCH_SIZE = 500 ;
+	
+	@PersistenceContext
+	private EntityManager entityManager ;
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Widget> findAllWithinRegion(String board, int x, int y, int width, int height) {
+		return regionQuery(board, x, y, width, height).getResultList() ;
+	}
+
+	/**
+	 * The range scans prune spatially and the database keeps the lowest z indexes of the
+	 * candidates in a bounded top-N sort, rather than sorting all of them.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Widget> findAllWithinRegionAfter(String board, int x, int y, int width, int height, Integer afterZindex, int limit) {
+		return regionQuery(board, x, y, width, height, afterZindex, true)
+				.setMaxResults(limit)
+				.getResultList() ;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Stream<Widget> streamAllWithinRegion(String board, int x, int y, int width, int height) {
+		return regionQuery(board, x, y, width, height)
+				.setHint(QueryHints.HINT_FETCH_SIZE, STREAM_FETCH_SIZE)
+				.getResultStream() ;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Widget> findAllAtPoint(String board, int x, int y, int limit) {
+		List<Long> keys = SpatialKeys.coverKeys(x, y) ;
+		StringBuilder sql = new StringBuilder("SELECT * FROM widget w WHERE w.board = ? AND w.cover_key IN (") ;
+		for (int i = 0; i < keys.size(); i++) {
+			sql.append(i > 0 ? ", ?" : "?") ;
+		}
+		sql.append(") AND w.x <= ? AND w.y <= ? AND w.right_edge >= ? AND w.bottom_edge >= ? ORDER BY w.zindex DESC") ;
+		
+		Query query = entityManager.createNativeQuery(sql.toString(), Widget.class) ;
+		int position = 1 ;
+		query.setParameter(position++, board) ;
+		for (Long key : keys) {
+			query.setParameter(position++, key) ;
+		}
+		query.setParameter(position++, x) ;
+		query.setParameter(position++, y) ;
+		query.setParameter(position++, x) ;
+		query.setParameter(position++, y) ;
+		return query.setMaxResults(limit).getResultList() ;
+	}
+	
+	private Query regionQuery(String board, int x, int y, int width, int height) {
+		return regionQuery(board, x, y, width, height, null, false) ;
+	}
+	
+	private Query regionQuery(String board, int x, int y, int width, int height, Integer afterZindex, boolean ordered) {
+		long right = (long) x + width ;
+		long bottom = (long) y + height ;
+		List<long[]> ranges = SpatialKeys.ranges(x, y, clamp(right - 1), clamp(bottom - 1)) ;
+		
+		// one branch per range, an OR of ranges is not served by the index on every database
+		StringBuilder sql = new StringBuilder(ordered ? "SELECT * FROM (" : "") ;
+		for (int i = 0; i < ranges.size(); i++) {
+			if (i > 0) {
+				sql.append(" UNION ALL ") ;
+			}
+			sql.append("SELECT * FROM widget w WHERE w.board = ? AND w.spatial_key BETWEEN ? AND ? "
+					+ "AND w.x >= ? AND w.y >= ? AND w.right_edge <= ? AND w.bottom_edge <= ?") ;
+			if (afterZindex != null) {
+				sql.append(" AND w.zindex > ?") ;
+			}
+		}
+		if (ordered) {
+			sql.append(") r ORDER BY r.zindex") ;
+		}
+		
+		Query query = entityManager.createNativeQuery(sql.toString(), Widget.class) ;
+		int position = 1 ;
+		for (long[] range : ranges) {
+			query.setParameter(position++, board) ;
+			query.setParameter(position++, range[0]) ;
+			query.setParameter(position++, range[1]) ;
+			query.setParameter(position++, x) ;
+			query.setParameter(position++, y) ;
+			query.setParameter(position++, right) ;
+			query.setParameter(position++, bottom) ;
+			if (afterZindex != null) {
+				query.setParameter(position++, afterZindex) ;
+			}
+		}
+		return query ;
+	}
+	
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)) ;
+	}
+}
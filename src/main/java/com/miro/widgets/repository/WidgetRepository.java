@@ -2,27 +2,40 @@ package com.miro.widgets.repository;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
 
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
 import com.miro.widgets.entity.Widget;
 
-public interface WidgetRepository extends JpaRepository<Widget, String> {
-	Page<Widget> findAllByOrderByZindex(Pageable pageable) ;
+public interface WidgetRepository extends JpaRepository<Widget, String>, WidgetRegionRepository {
+	List<Widget> findAllByBoardOrderByZindex(String board, Pageable pageable) ;
+	
+	@QueryHints(@QueryHint(name = org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE, value = "500"))
+	Stream<Widget> streamAllByBoardOrderByZindex(String board, Pageable pageable) ;
+	
+	List<Widget> findAllByBoardAndZindexGreaterThanOrderByZindex(String board, int zindex, Pageable pageable) ;
+	
+	boolean existsByBoardAndZindex(String board, int zindex) ;
+	
+	@Query("SELECT DISTINCT w.board FROM Widget w")
+	List<String> findBoards() ;
 	
-	Optional<Widget> findByZindex(int zIndex) ; 
+	@Query("SELECT MAX(w.zindex) FROM Widget w WHERE w.board = :board")
+	Optional<Integer> findMaxZindex(@Param("board") String board) ;
 	
-	Optional<Widget> findFirstByOrderByZindexDesc() ; 
+	@Query("SELECT MIN(w.zindex) + 1 FROM Widget w WHERE w.board = :board AND w.zindex >= :z "
+			+ "AND NOT EXISTS (SELECT n.id FROM Widget n WHERE n.board = :board AND n.zindex = w.zindex + 1)")
+	int findFirstFreeZindexAfter(@Param("board") String board, @Param("z") int zindex) ;
 	
-	@Query("SELECT w FROM Widget w WHERE w.height * w.width <= :w * :h "
-			+ "AND w.x >= :x AND w.x <= :x + :w "
-			+ "AND w.x + w.width >= :x AND w.x + w.width <= :x + :w "
-			+ "AND w.y >= :y AND w.y <= :y + :h "
-			+ "AND w.y + w.height >= :y AND w.y + w.height <= :y + :h "
-			)
-	List<Widget> findAllByArea(@Param("x") int x, @Param("y") int y, @Param("w") int width, @Param("h") int height) ;
+	@Modifying(flushAutomatically = true, clearAutomatically = true)
+	@Query("UPDATE Widget w SET w.zindex = w.zindex + :offset WHERE w.board = :board AND w.zindex >= :from AND w.zindex < :to")
+	int shiftZindexes(@Param("board") String board, @Param("from") int from, @Param("to") int to, @Param("offset") int offset) ;
 }
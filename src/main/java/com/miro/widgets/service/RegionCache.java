@@ -0,0 +1,241 @@
+package com.miro.widgets.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+
+import lombok.EqualsAndHashCode;
+
+/**
+ * Results of region queries, evicted in least recently used order once either the number of
+ * regions or the number of cached widgets exceeds its limit.
+ * <p>
+ * Every board is divided into square tiles. Every mutation takes the next number of a global
+ * sequence and stamps it on the tile holding the top left corner of the widget before and
+ * after the change, and a region result is filled with the sequence number read before the
+ * query ran. A widget can only be within a region if its corner tile is covered by the region,
+ * so a result is still valid as long as none of its tiles carries a later stamp. Changes
+ * of the z order of other widgets are not local, they invalidate the whole board.
+ * <p>
+ * Results are held as packed widgets and every lookup builds its own widgets, so callers can
+ * change what they get without affecting the cache.
+ */
+@Component
+public class RegionCache {
+
+	private static final int MAX_TILES_PER_REGION = 4096 ;
+	private static final int MAX_MODIFIED_TILES = 1 << 16 ;
+
+	private final StorageMetrics metrics ;
+	private final boolean enabled ;
+	private final int tileSize ;
+	private final int maxEntries ;
+	private final int maxWidgets ;
+	private final AtomicLong sequence = new AtomicLong() ;
+	private final Map<String, BoardTiles> boards = new ConcurrentHashMap<>() ;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) ;
+	private long cachedWidgets ;
+
+	public RegionCache(StorageMetrics metrics,
+			@Value("${widgets.region-cache.enabled:false}") boolean enabled,
+			@Value("${widgets.region-cache.tile-size:1024}") int tileSize,
+			@Value("${widgets.region-cache.max-entries:1024}") int maxEntries,
+			@Value("${widgets.region-cache.max-widgets:100000}") int maxWidgets) {
+		this.metrics = metrics ;
+		this.enabled = enabled ;
+		this.tileSize = tileSize ;
+		this.maxEntries = maxEntries ;
+		this.maxWidgets = maxWidgets ;
+		metrics.gaugeRegionCacheSize(this, RegionCache::size) ;
+	}
+
+	/**
+	 * Sequence number to fill a result with, must be read before the query runs.
+	 */
+	public long stamp() {
+		return sequence.get() ;
+	}
+
+	public boolean clearedSince(String board, long stamp) {
+		return tiles(board).clearedAt > stamp ;
+	}
+
+	/**
+	 * The cached result of the region, or null if there is no valid one.
+	 */
+	public List<Widget> get(String board, RegionDto region) {
+		if (!enabled) {
+			return null ;
+		}
+		Key key = new Key(board, region) ;
+		Entry entry ;
+		synchronized (entries) {
+			entry = entries.get(key) ;
+		}
+		if (entry != null && isValid(key, entry.stamp)) {
+			metrics.recordRegionCacheRequest(true);
+			return entry.widgets.stream().map(PackedWidget::toWidget).collect(Collectors.toList()) ;
+		}
+		if (entry != null) {
+			synchronized (entries) {
+				if (entries.remove(key, entry)) {
+					cachedWidgets -= entry.widgets.size() ;
+				}
+			}
+		}
+		metrics.recordRegionCacheRequest(false);
+		return null ;
+	}
+
+	public void put(String board, RegionDto region, long stamp, List<Widget> widgets) {
+		Key key = new Key(board, region) ;
+		if (!enabled || widgets.size() > maxWidgets || key.tiles() > MAX_TILES_PER_REGION || !isValid(key, stamp)) {
+			return ;
+		}
+		Entry entry = new Entry(stamp, widgets.stream().map(PackedWidget::of).collect(Collectors.toUnmodifiableList())) ;
+		synchronized (entries) {
+			Entry previous = entries.put(key, entry) ;
+			if (previous != null) {
+				cachedWidgets -= previous.widgets.size() ;
+			}
+			cachedWidgets += entry.widgets.size() ;
+			Iterator<Entry> eldest = entries.values().iterator() ;
+			while (entries.size() > maxEntries || cachedWidgets > maxWidgets) {
+				cachedWidgets -= eldest.next().widgets.size() ;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Marks the position of the widget as changed. Must be called after the change is visible.
+	 */
+	public void invalidate(Widget widget) {
+		if (!enabled || widget.getX() == null || widget.getY() == null) {
+			return ;
+		}
+		BoardTiles tiles = tiles(widget.getBoard()) ;
+		long stamp = sequence.incrementAndGet() ;
+		tiles.modified.merge(tile(tileOf(widget.getX()), tileOf(widget.getY())), stamp, Math::max) ;
+		if (tiles.modified.size() > MAX_MODIFIED_TILES) {
+			invalidateBoard(widget.getBoard());
+		}
+	}
+
+	/**
+	 * Invalidates the results of the board, they are dropped when next looked up or evicted.
+	 */
+	public void invalidateBoard(String board) {
+		if (!enabled) {
+			return ;
+		}
+		BoardTiles tiles = tiles(board) ;
+		// results filled before this stamp are rejected, so the tile stamps can be dropped
+		tiles.clearedAt = sequence.incrementAndGet() ;
+		tiles.modified.clear();
+	}
+
+	public void invalidateAll() {
+		if (!enabled) {
+			return ;
+		}
+		boards.keySet().forEach(this::invalidateBoard);
+		synchronized (entries) {
+			entries.clear();
+			cachedWidgets = 0 ;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size() ;
+		}
+	}
+
+	private boolean isValid(Key key, long stamp) {
+		BoardTiles tiles = tiles(key.board) ;
+		// tiles are checked before the clear stamp, they are dropped only after it is set
+		for (long tx = key.minTileX; tx <= key.maxTileX; tx++) {
+			for (long ty = key.minTileY; ty <= key.maxTileY; ty++) {
+				Long modified = tiles.modified.get(tile(tx, ty)) ;
+				if (modified != null && modified > stamp) {
+					return false ;
+				}
+			}
+		}
+		return tiles.clearedAt <= stamp ;
+	}
+
+	private BoardTiles tiles(String board) {
+		return boards.computeIfAbsent(board, b -> new BoardTiles()) ;
+	}
+
+	private long tileOf(long coordinate) {
+		return Math.floorDiv(coordinate, tileSize) ;
+	}
+
+	private static long tile(long tx, long ty) {
+		return (tx << 32) ^ (ty & 0xFFFFFFFFL) ;
+	}
+
+	@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+	private final class Key {
+		@EqualsAndHashCode.Include
+		private final String board ;
+		@EqualsAndHashCode.Include
+		private final int x ;
+		@EqualsAndHashCode.Include
+		private final int y ;
+		@EqualsAndHashCode.Include
+		private final int width ;
+		@EqualsAndHashCode.Include
+		private final int height ;
+		private final long minTileX ;
+		private final long minTileY ;
+		private final long maxTileX ;
+		private final long maxTileY ;
+
+		private Key(String board, RegionDto region) {
+			this.board = board ;
+			this.x = region.getX() ;
+			this.y = region.getY() ;
+			this.width = region.getWidth() ;
+			this.height = region.getHeight() ;
+			this.minTileX = tileOf(x) ;
+			this.minTileY = tileOf(y) ;
+			this.maxTileX = tileOf((long) x + width) ;
+			this.maxTileY = tileOf((long) y + height) ;
+		}
+
+		private long tiles() {
+			return (maxTileX - minTileX + 1) * (maxTileY - minTileY + 1) ;
+		}
+	}
+
+	private static final class BoardTiles {
+		private final Map<Long, Long> modified = new ConcurrentHashMap<>() ;
+		private volatile long clearedAt ;
+	}
+
+	private static final class Entry {
+		private final long stamp ;
+		private final List<PackedWidget> widgets ;
+
+		private Entry(long stamp, List<PackedWidget> widgets) {
+			this.stamp = stamp ;
+			this.widgets = widgets ;
+		}
+	}
+}
@@ -2,24 +2,52 @@ package com.miro.widgets.service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.springframework.data.domain.Pageable;
 
+import com.miro.widgets.dto.BatchOperationDto;
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.dto.WidgetDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetOperationResult;
 
 
 public interface WidgetService {
-	Optional<Widget> findById(String id) ;
+	Optional<Widget> findById(String board, String id) ;
 	
-	List<Widget> findAll(Pageable pageable) ;
+	List<Widget> findAll(String board, Pageable pageable) ;
 	
-	Widget create(WidgetDto dto) ;
+	List<Widget> findAllAfter(String board, Integer afterZindex, int limit) ;
 	
-	Widget update(String id, WidgetDto dto) ;
+	Widget create(String board, WidgetDto dto) ;
 	
-	void deleteById(String id) ;
+	/**
+	 * Empty if the widget does not exist. Given a version, the widget is only updated at that
+	 * version, otherwise {@link com.miro.widgets.storage.WidgetConflictException} is thrown.
+	 */
+	Optional<Widget> update(String board, String id, WidgetDto dto, Long version) ;
 	
-	List<Widget> findAllByRegion(RegionDto region) ;
+	/**
+	 * False if the widget does not exist. Given a version, the widget is only deleted at that
+	 * version, otherwise {@link com.miro.widgets.storage.WidgetConflictException} is thrown.
+	 */
+	boolean deleteById(String board, String id, Long version) ;
+	
+	List<WidgetOperationResult> applyBatch(String board, List<BatchOperationDto> operations) ;
+	
+	List<Widget> findAllByRegion(String board, RegionDto region) ;
+	
+	List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) ;
+	
+	List<Widget> findAllAt(String board, int x, int y, int limit) ;
+	
+	void forEach(String board, Pageable pageable, Consumer<Widget> action) ;
+	
+	void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) ;
+	
+	long version(String board) ;
+	
+	Optional<WidgetChanges> changesSince(String board, long version) ;
 }
@@ -2,15 +2,25 @@ package com.miro.widgets.service;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
 
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import com.miro.widgets.dto.BatchOperationDto;
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.dto.WidgetDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
 
 import lombok.RequiredArgsConstructor;
@@ -22,48 +32,175 @@ import lombok.extern.slf4j.Slf4j;
 public class WidgetServiceImpl implements WidgetService {
 
 	private final WidgetStorage widgetStorage ;
+	private final StorageMetrics metrics ;
+	private final RegionCache regionCache ;
+	
+	@PostConstruct
+	public void init() {
+		metrics.gaugeWidgetCount(widgetStorage, WidgetStorage::count) ;
+	}
 	
 	@Override
-	public Optional<Widget> findById(String id) {
-		return widgetStorage.findById(id);
+	public Optional<Widget> findById(String board, String id) {
+		return metrics.time("findById", () -> widgetStorage.findById(board, id)) ;
+	}
+
+	@Override
+	public List<Widget> findAll(String board, Pageable pageable) {
+		return metrics.time("findAll", () -> widgetStorage.findAll(board, pageable)) ;
 	}
 
 	@Override
-	public List<Widget> findAll(Pageable pageable) {
-		return widgetStorage.findAll(pageable) ;
+	public List<Widget> findAllAfter(String board, Integer afterZindex, int limit) {
+		return metrics.time("findAllAfter", () -> widgetStorage.findAllAfter(board, afterZindex, limit)) ;
 	}
 
 	@Override
-	@Transactional
-	public Widget create(WidgetDto dto) {
+	public Widget create(String board, WidgetDto dto) {
 		Widget widget = Widget.buildFrom(dto) ;
-		widget.setId(generateRandomId());
+		widget.setId(WidgetIds.next());
+		widget.setBoard(board);
 		log.info("saving widget {}", widget);
-		return widgetStorage.create(widget);
+		WidgetOperation operation = WidgetOperation.create(widget) ;
+		return mutate(board, List.of(operation), () -> List.of(WidgetOperationResult.created(metrics.time("create", () -> widgetStorage.create(widget))))).get(0).getWidget() ;
 	}
 
 	@Override
-	@Transactional
-	public Widget update(String id, WidgetDto dto) {
+	public Optional<Widget> update(String board, String id, WidgetDto dto, Long version) {
 		Widget widget = Widget.buildFrom(dto) ;
 		widget.setId(id);
+		widget.setBoard(board);
+		widget.setVersion(version);
 		log.info("updating widget {}", widget);
-		return widgetStorage.update(widget);
+		WidgetOperation operation = WidgetOperation.update(widget) ;
+		return Optional.ofNullable(mutate(board, List.of(operation), () -> List.of(metrics.time("update", () -> widgetStorage.apply(operation)))).get(0).getWidget()) ;
 	}
 
 	@Override
-	@Transactional
-	public void deleteById(String id) {
-		log.info("deleting widget {}", id);
-		widgetStorage.deleteById(id);
+	public boolean deleteById(String board, String id, Long version) {
+		log.info("deleting widget {} of board {}", id, board);
+		WidgetOperation operation = WidgetOperation.delete(board, id, version) ;
+		WidgetOperationResult result = mutate(board, List.of(operation), () -> List.of(metrics.time("deleteById", () -> widgetStorage.apply(operation)))).get(0) ;
+		return result.getStatus() == WidgetOperationResult.Status.DELETED ;
+	}
+	
+	@Override
+	public List<WidgetOperationResult> applyBatch(String board, List<BatchOperationDto> operations) {
+		List<WidgetOperation> batch = operations.stream().map(o -> toOperation(board, o)).collect(Collectors.toList()) ;
+		log.info("applying batch of {} operations to board {}", batch.size(), board);
+		return mutate(board, batch, () -> metrics.time("applyBatch", () -> widgetStorage.applyBatch(board, batch))) ;
+	}
+	
+	@Override
+	public List<Widget> findAllByRegion(String board, RegionDto region) {
+		List<Widget> cached = regionCache.get(board, region) ;
+		if (cached != null) {
+			return cached ;
+		}
+		long stamp = regionCache.stamp() ;
+		List<Widget> widgets = metrics.time("findAllByRegion", () -> widgetStorage.findAllByRegion(board, region)) ;
+		regionCache.put(board, region, stamp, widgets);
+		return widgets ;
 	}
 	
 	@Override
-	public List<Widget> findAllByRegion(RegionDto region) {
-		return widgetStorage.findAllByRegion(region);
+	public List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) {
+		return metrics.time("findAllByRegionAfter", () -> widgetStorage.findAllByRegionAfter(board, region, afterZindex, limit)) ;
+	}
+	
+	@Override
+	public List<Widget> findAllAt(String board, int x, int y, int limit) {
+		return metrics.time("findAllAt", () -> widgetStorage.findAllAt(board, x, y, limit)) ;
+	}
+	
+	@Override
+	public void forEach(String board, Pageable pageable, Consumer<Widget> action) {
+		metrics.time("forEach", () -> widgetStorage.forEach(board, pageable, action)) ;
+	}
+	
+	@Override
+	public void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) {
+		List<Widget> cached = regionCache.get(board, region) ;
+		if (cached != null) {
+			cached.forEach(action);
+			return ;
+		}
+		metrics.time("forEachByRegion", () -> widgetStorage.forEachByRegion(board, region, action)) ;
+	}
+	
+	@Override
+	public long version(String board) {
+		return widgetStorage.version(board) ;
+	}
+	
+	@Override
+	public Optional<WidgetChanges> changesSince(String board, long version) {
+		return metrics.time("changesSince", () -> widgetStorage.changesSince(board, version)) ;
+	}
+	
+	private WidgetOperation toOperation(String board, BatchOperationDto dto) {
+		switch (dto.getType()) {
+		case CREATE:
+			Widget created = Widget.buildFrom(dto.getWidget()) ;
+			created.setId(WidgetIds.next());
+			created.setBoard(board);
+			return WidgetOperation.create(created) ;
+		case UPDATE:
+			Widget updated = Widget.buildFrom(dto.getWidget()) ;
+			updated.setId(dto.getId());
+			updated.setBoard(board);
+			updated.setVersion(dto.getVersion());
+			return WidgetOperation.update(updated) ;
+		default:
+			return WidgetOperation.delete(board, dto.getId(), dto.getVersion()) ;
+		}
+	}
+	
+	/**
+	 * Applies the operations and drops the cached regions they changed. A failed mutation
+	 * other than a version conflict may have left the storage reloaded, so it drops all
+	 * regions of the board.
+	 */
+	private List<WidgetOperationResult> mutate(String board, List<WidgetOperation> operations, Supplier<List<WidgetOperationResult>> mutation) {
+		long stamp = regionCache.stamp() ;
+		List<Integer> zindexes = operations.stream().map(o -> o.getWidget() == null ? null : o.getWidget().getZindex()).collect(Collectors.toList()) ;
+		List<WidgetOperationResult> results ;
+		try {
+			results = mutation.get() ;
+		} catch (WidgetConflictException e) {
+			throw e ;
+		} catch (RuntimeException | Error e) {
+			regionCache.invalidateBoard(board);
+			throw e ;
+		}
+		for (int i = 0; i < results.size(); i++) {
+			invalidateRegions(board, stamp, results.get(i), zindexes.get(i)) ;
+		}
+		return results ;
 	}
 	
-	private String generateRandomId() {
-		return UUID.randomUUID().toString() ;
+	/**
+	 * Widgets only move within the tiles of their old and new positions, unless a z index
+	 * was requested that may shift other widgets anywhere on the board. The previous widget
+	 * comes from the storage result; if an applied update or delete has none, or a shift
+	 * happened since the stamp was read, the whole board is dropped.
+	 */
+	private void invalidateRegions(String board, long stamp, WidgetOperationResult result, Integer requestedZindex) {
+		if (result.getStatus() == WidgetOperationResult.Status.NOT_FOUND || result.getStatus() == WidgetOperationResult.Status.CONFLICT) {
+			return ;
+		}
+		Widget previous = result.getPrevious() ;
+		boolean previousUnknown = result.getStatus() != WidgetOperationResult.Status.CREATED && previous == null ;
+		boolean zindexChanged = requestedZindex != null && (previous == null || !requestedZindex.equals(previous.getZindex())) ;
+		if (previousUnknown || zindexChanged || (requestedZindex != null && regionCache.clearedSince(board, stamp))) {
+			regionCache.invalidateBoard(board);
+			return ;
+		}
+		if (previous != null) {
+			regionCache.invalidate(previous);
+		}
+		if (result.getWidget() != null) {
+			regionCache.invalidate(result.getWidget());
+		}
 	}
 }
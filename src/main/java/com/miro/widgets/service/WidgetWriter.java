@@ -0,0 +1,225 @@
+package com.miro.widgets.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.miro.widgets.dto.BatchOperationDto;
+import com.miro.widgets.dto.WidgetDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Applies the mutations of the API. By default a mutation runs on the calling thread and
+ * the returned future is already complete.
+ * <p>
+ * With the write pipeline enabled, mutations are put into a bounded queue and the caller
+ * returns right away. A single writer thread drains the queue, merges the mutations it took
+ * for the same board into one batch and applies it at once, so storage publishes a single
+ * snapshot per batch and writers never contend for a board. When the queue is full the
+ * mutation is rejected instead of blocking the caller. Whatever a batch throws fails only
+ * the futures of that batch, and mutations still queued at shutdown are failed, so no
+ * future is left incomplete.
+ */
+@Component
+@Slf4j
+public class WidgetWriter {
+
+	private final WidgetService widgetService ;
+	private final StorageMetrics metrics ;
+	private final boolean enabled ;
+	private final int maxBatchSize ;
+	private final BlockingQueue<Pending> queue ;
+	private Thread writer ;
+	private volatile boolean running ;
+
+	public WidgetWriter(WidgetService widgetService, StorageMetrics metrics,
+			@Value("${widgets.write-pipeline.enabled:false}") boolean enabled,
+			@Value("${widgets.write-pipeline.capacity:4096}") int capacity,
+			@Value("${widgets.write-pipeline.max-batch-size:256}") int maxBatchSize) {
+		this.widgetService = widgetService ;
+		this.metrics = metrics ;
+		this.enabled = enabled ;
+		this.maxBatchSize = maxBatchSize ;
+		this.queue = new ArrayBlockingQueue<>(capacity) ;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			log.info("write pipeline enabled, queueing up to {} mutations, applying up to {} at once", queue.remainingCapacity(), maxBatchSize);
+			metrics.gaugeWriteQueue(queue, BlockingQueue::size);
+			running = true ;
+			writer = new Thread(this::run, "widgets-writer") ;
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (writer == null) {
+			return ;
+		}
+		running = false ;
+		writer.interrupt();
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<Pending> abandoned = new ArrayList<>() ;
+		queue.drainTo(abandoned) ;
+		abandoned.forEach(p -> p.result.completeExceptionally(new IllegalStateException("writer is stopped"))) ;
+	}
+
+	public CompletableFuture<Widget> create(String board, WidgetDto dto) {
+		if (!enabled) {
+			return inline(() -> widgetService.create(board, dto)) ;
+		}
+		return submit(board, List.of(BatchOperationDto.builder().type(WidgetOperation.Type.CREATE).widget(dto).build()))
+				.thenApply(results -> results.get(0).getWidget()) ;
+	}
+
+	/**
+	 * Empty if the widget did not exist when the update was applied. Fails with
+	 * {@link WidgetConflictException} if a version is given and the widget was no longer at it.
+	 */
+	public CompletableFuture<Optional<Widget>> update(String board, String id, WidgetDto dto, Long version) {
+		if (!enabled) {
+			return inline(() -> widgetService.update(board, id, dto, version)) ;
+		}
+		return submit(board, List.of(BatchOperationDto.builder().type(WidgetOperation.Type.UPDATE).id(id).version(version).widget(dto).build()))
+				.thenApply(results -> Optional.ofNullable(applied(results.get(0), version).getWidget())) ;
+	}
+
+	/**
+	 * False if the widget did not exist when the delete was applied. Fails with
+	 * {@link WidgetConflictException} if a version is given and the widget was no longer at it.
+	 */
+	public CompletableFuture<Boolean> deleteById(String board, String id, Long version) {
+		if (!enabled) {
+			return inline(() -> widgetService.deleteById(board, id, version)) ;
+		}
+		return submit(board, List.of(BatchOperationDto.builder().type(WidgetOperation.Type.DELETE).id(id).version(version).build()))
+				.thenApply(results -> applied(results.get(0), version).getStatus() == WidgetOperationResult.Status.DELETED) ;
+	}
+
+	public CompletableFuture<List<WidgetOperationResult>> applyBatch(String board, List<BatchOperationDto> operations) {
+		if (!enabled) {
+			return inline(() -> widgetService.applyBatch(board, operations)) ;
+		}
+		return submit(board, operations) ;
+	}
+
+	private WidgetOperationResult applied(WidgetOperationResult result, Long version) {
+		if (result.getStatus() == WidgetOperationResult.Status.CONFLICT) {
+			throw new WidgetConflictException(result.getId(), version) ;
+		}
+		return result ;
+	}
+
+	private <T> CompletableFuture<T> inline(Supplier<T> mutation) {
+		try {
+			return CompletableFuture.completedFuture(mutation.get()) ;
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e) ;
+		}
+	}
+
+	private CompletableFuture<List<WidgetOperationResult>> submit(String board, List<BatchOperationDto> operations) {
+		if (!running) {
+			return CompletableFuture.failedFuture(new IllegalStateException("writer is stopped")) ;
+		}
+		Pending pending = new Pending(board, operations) ;
+		if (!queue.offer(pending)) {
+			return CompletableFuture.failedFuture(new RejectedExecutionException("write queue is full")) ;
+		}
+		// shutdown stops the writer before draining the queue, a mutation queued after the drain fails here
+		if (!running && queue.remove(pending)) {
+			pending.result.completeExceptionally(new IllegalStateException("writer is stopped")) ;
+		}
+		return pending.result ;
+	}
+
+	private void run() {
+		List<Pending> taken = new ArrayList<>(maxBatchSize) ;
+		while (running) {
+			try {
+				taken.add(queue.take()) ;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return ;
+			}
+			queue.drainTo(taken, maxBatchSize - 1) ;
+			Map<String, List<Pending>> byBoard = new LinkedHashMap<>() ;
+			for (Pending pending : taken) {
+				byBoard.computeIfAbsent(pending.board, b -> new ArrayList<>()).add(pending) ;
+			}
+			try {
+				byBoard.forEach(this::apply);
+			} catch (Throwable e) {
+				log.error("writer failed to apply {} mutations", taken.size(), e);
+				taken.forEach(p -> p.result.completeExceptionally(e)) ;
+			}
+			taken.clear();
+		}
+	}
+
+	/**
+	 * Applies the mutations of one board as a single batch. If the batch fails, its mutations
+	 * are applied one by one so that a bad mutation only fails its own caller.
+	 */
+	private void apply(String board, List<Pending> group) {
+		List<BatchOperationDto> operations = new ArrayList<>() ;
+		group.forEach(p -> operations.addAll(p.operations)) ;
+		try {
+			List<WidgetOperationResult> results = widgetService.applyBatch(board, operations) ;
+			metrics.recordWriteBatch(operations.size());
+			int from = 0 ;
+			for (Pending pending : group) {
+				pending.result.complete(results.subList(from, from + pending.operations.size())) ;
+				from += pending.operations.size() ;
+			}
+		} catch (Throwable e) {
+			if (group.size() == 1) {
+				group.get(0).result.completeExceptionally(e) ;
+				return ;
+			}
+			log.warn("batch of {} mutations failed, applying them one by one", group.size(), e);
+			for (Pending pending : group) {
+				apply(board, List.of(pending)) ;
+			}
+		}
+	}
+
+	private static final class Pending {
+		private final String board ;
+		private final List<BatchOperationDto> operations ;
+		private final CompletableFuture<List<WidgetOperationResult>> result = new CompletableFuture<>() ;
+
+		private Pending(String board, List<BatchOperationDto> operations) {
+			this.board = board ;
+			this.operations = operations ;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.miro.widgets.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.miro.widgets.dto.RegionDto;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-process log of the latest board changes, streamed to subscribers as server-sent events.
+ * Every event gets the next number of a global sequence, which is also its event id, and the
+ * latest {@code capacity} events are kept in a ring. The sequence starts at the startup time in
+ * microseconds, so ids of an earlier run are older than every id of this one. A subscriber
+ * resuming from an event id still in the ring receives every later event of its board, one
+ * resuming from an older id, or an id of an earlier run, gets a {@code reset} event and has to
+ * fetch the board again.
+ * <p>
+ * Only the in-memory storage publishes, so the feed cannot be enabled with the SQL storage
+ * alone. Publishers only append to the ring. A single dispatcher thread filters the events by
+ * board and viewport into a bounded buffer per subscriber, and every subscriber is sent its
+ * buffer by a task of its own, so a slow client only holds up itself. A subscriber whose
+ * buffer is full gets a {@code reset} event and is disconnected.
+ */
+@Component
+@Slf4j
+public class ChangeFeed {
+
+	private final StorageMetrics metrics ;
+	private final boolean enabled ;
+	private final WidgetEvent[] ring ;
+	private final int bufferSize ;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>() ;
+	private final long epoch = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) ;
+	private long last = epoch ;
+	private Thread dispatcher ;
+	private ExecutorService senders ;
+	private volatile boolean running ;
+
+	public ChangeFeed(StorageMetrics metrics,
+			@Value("${storage:inmemory}") String storage,
+			@Value("${widgets.feed.enabled:false}") boolean enabled,
+			@Value("${widgets.feed.capacity:10000}") int capacity,
+			@Value("${widgets.feed.subscriber-buffer:1000}") int bufferSize) {
+		if (enabled && "database".equals(storage)) {
+			throw new IllegalStateException("the change feed needs the inmemory or hybrid storage") ;
+		}
+		this.metrics = metrics ;
+		this.enabled = enabled ;
+		this.ring = new WidgetEvent[capacity] ;
+		this.bufferSize = bufferSize ;
+	}
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			metrics.gaugeFeedSubscribers(subscribers, List::size);
+			running = true ;
+			senders = Executors.newCachedThreadPool(r -> {
+				Thread thread = new Thread(r, "widgets-feed-sender") ;
+				thread.setDaemon(true);
+				return thread ;
+			}) ;
+			dispatcher = new Thread(this::run, "widgets-feed") ;
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (dispatcher == null) {
+			return ;
+		}
+		running = false ;
+		dispatcher.interrupt();
+		try {
+			dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		senders.shutdownNow();
+		subscribers.forEach(s -> s.emitter.complete()) ;
+		subscribers.clear();
+	}
+
+	public boolean isEnabled() {
+		return enabled ;
+	}
+
+	/**
+	 * Appends the events of one commit. Callers publish in commit order.
+	 */
+	public synchronized void publish(List<WidgetEvent> events) {
+		for (WidgetEvent event : events) {
+			event.setSequence(++last);
+			ring[(int) (last % ring.length)] = event ;
+		}
+		if (!events.isEmpty()) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Streams the events of the board that intersect the region, or all of them if the region
+	 * is null, starting after the given event id or with the next event if it is null.
+	 */
+	public synchronized SseEmitter subscribe(String board, RegionDto region, Long lastEventId) {
+		SseEmitter emitter = new SseEmitter(0L) ;
+		long cursor = lastEventId == null ? last : lastEventId ;
+		if (cursor < epoch || cursor > last) {
+			// an id of an earlier run of the service, the subscriber gets a reset
+			cursor = Long.MIN_VALUE / 2 ;
+		}
+		Subscriber subscriber = new Subscriber(board, region, emitter, cursor, bufferSize) ;
+		emitter.onCompletion(() -> subscribers.remove(subscriber)) ;
+		emitter.onTimeout(() -> subscribers.remove(subscriber)) ;
+		emitter.onError(e -> subscribers.remove(subscriber)) ;
+		subscribers.add(subscriber) ;
+		notifyAll();
+		return emitter ;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				awaitBacklog();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return ;
+			}
+			for (Subscriber subscriber : subscribers) {
+				dispatch(subscriber) ;
+			}
+		}
+	}
+
+	private synchronized void awaitBacklog() throws InterruptedException {
+		while (subscribers.stream().allMatch(s -> s.cursor >= last)) {
+			wait();
+		}
+	}
+
+	/**
+	 * Moves the events the subscriber has not seen yet into its buffer and has them sent.
+	 */
+	private void dispatch(Subscriber subscriber) {
+		List<WidgetEvent> pending ;
+		long until ;
+		synchronized (this) {
+			until = last ;
+			if (subscriber.cursor >= until) {
+				return ;
+			}
+			if (subscriber.cursor < until - ring.length) {
+				pending = null ;
+			} else {
+				pending = new ArrayList<>((int) (until - subscriber.cursor)) ;
+				for (long sequence = subscriber.cursor + 1; sequence <= until; sequence++) {
+					pending.add(ring[(int) (sequence % ring.length)]) ;
+				}
+			}
+		}
+		if (pending == null) {
+			log.info("subscriber of board {} fell behind the feed, resetting it", subscriber.board);
+			reset(subscriber, until) ;
+			return ;
+		}
+		for (WidgetEvent event : pending) {
+			WidgetEvent visible = event.getBoard().equals(subscriber.board) ? event.within(subscriber.region) : null ;
+			if (visible != null && !subscriber.buffer.offer(SseEmitter.event()
+					.id(String.valueOf(event.getSequence()))
+					.name(event.getType().name().toLowerCase())
+					.data(visible, MediaType.APPLICATION_JSON))) {
+				log.info("subscriber of board {} does not keep up with the feed, resetting it", subscriber.board);
+				reset(subscriber, until) ;
+				return ;
+			}
+		}
+		subscriber.cursor = until ;
+		send(subscriber) ;
+	}
+
+	/**
+	 * Replaces whatever the subscriber has not been sent yet by a reset, after which it is disconnected.
+	 */
+	private void reset(Subscriber subscriber, long until) {
+		subscribers.remove(subscriber) ;
+		subscriber.buffer.clear();
+		subscriber.buffer.offer(SseEmitter.event().id(String.valueOf(until)).name("reset").data("")) ;
+		subscriber.closing = true ;
+		send(subscriber) ;
+	}
+
+	/**
+	 * Starts a task sending the buffer of the subscriber unless one is running already.
+	 */
+	private void send(Subscriber subscriber) {
+		if (subscriber.sending.compareAndSet(false, true)) {
+			senders.execute(() -> drain(subscriber)) ;
+		}
+	}
+
+	private void drain(Subscriber subscriber) {
+		try {
+			while (true) {
+				SseEmitter.SseEventBuilder event ;
+				while ((event = subscriber.buffer.poll()) != null) {
+					subscriber.emitter.send(event);
+				}
+				if (subscriber.closing) {
+					subscriber.emitter.complete();
+					return ;
+				}
+				subscriber.sending.set(false);
+				// the dispatcher leaves events buffered meanwhile to this task
+				if (subscriber.buffer.isEmpty() || !subscriber.sending.compareAndSet(false, true)) {
+					return ;
+				}
+			}
+		} catch (IOException | IllegalStateException e) {
+			log.debug("subscriber of board {} is gone", subscriber.board, e);
+			subscribers.remove(subscriber) ;
+			subscriber.buffer.clear();
+		}
+	}
+
+	private static final class Subscriber {
+		private final String board ;
+		private final RegionDto region ;
+		private final SseEmitter emitter ;
+		private final BlockingQueue<SseEmitter.SseEventBuilder> buffer ;
+		private final AtomicBoolean sending = new AtomicBoolean() ;
+		private volatile long cursor ;
+		private volatile boolean closing ;
+
+		private Subscriber(String board, RegionDto region, SseEmitter emitter, long cursor, int bufferSize) {
+			this.board = board ;
+			this.region = region ;
+			this.emitter = emitter ;
+			this.cursor = cursor ;
+			this.buffer = new ArrayBlockingQueue<>(bufferSize) ;
+		}
+	}
+}
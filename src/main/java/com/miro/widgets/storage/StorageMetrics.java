@@ -0,0 +1,189 @@
+package com.miro.widgets.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of the widget storages. Every meter is tagged with the active storage mode.
+ */
+@Component
+public class StorageMetrics {
+
+	private final MeterRegistry registry ;
+	private final String storage ;
+	private final Timer lockWait ;
+	private final Timer lockHold ;
+	private final Timer snapshotBuild ;
+	private final Counter commitRetries ;
+	private final DistributionSummary shiftLength ;
+	private final DistributionSummary regionCandidates ;
+	private final DistributionSummary regionResults ;
+	private final DistributionSummary groupCommitSize ;
+	private final Counter writeBehindFailures ;
+	private final Counter regionCacheHits ;
+	private final Counter regionCacheMisses ;
+	private final Timer journalSync ;
+	private final DistributionSummary journalGroupSize ;
+	private final Timer snapshotWrite ;
+	private final DistributionSummary writeBatchSize ;
+
+	public StorageMetrics(MeterRegistry registry, @Value("${storage:inmemory}") String storage) {
+		this.registry = registry ;
+		this.storage = storage ;
+		this.lockWait = timer("widgets.storage.lock.wait", "Time spent waiting for the storage write lock") ;
+		this.lockHold = timer("widgets.storage.lock.hold", "Time the storage write lock was held") ;
+		this.snapshotBuild = timer("widgets.storage.snapshot.build", "Time spent building the next in-memory snapshot") ;
+		this.commitRetries = Counter.builder("widgets.storage.snapshot.retries")
+				.description("Snapshots discarded because another writer published first")
+				.tag("storage", storage)
+				.register(registry) ;
+		this.shiftLength = summary("widgets.zindex.shift.length", "Number of widgets moved up by a single z index shift") ;
+		this.regionCandidates = summary("widgets.region.candidates", "Widgets examined by a region query") ;
+		this.regionResults = summary("widgets.region.results", "Widgets returned by a region query") ;
+		this.groupCommitSize = summary("widgets.storage.group.size", "Operations committed together by the group committer") ;
+		this.writeBehindFailures = Counter.builder("widgets.storage.writebehind.failures")
+				.description("Mutations the hybrid storage failed to replay to the database")
+				.tag("storage", storage)
+				.register(registry) ;
+		this.regionCacheHits = regionCacheRequests("hit") ;
+		this.regionCacheMisses = regionCacheRequests("miss") ;
+		this.journalSync = timer("widgets.journal.sync", "Time spent syncing the journal to disk") ;
+		this.journalGroupSize = summary("widgets.journal.group.size", "Journal records made durable by a single sync") ;
+		this.snapshotWrite = timer("widgets.journal.snapshot.write", "Time spent writing a snapshot of all boards") ;
+		this.writeBatchSize = summary("widgets.write.batch.size", "Mutations applied together by the writer thread") ;
+	}
+
+	public <T> T time(String operation, Supplier<T> action) {
+		return Timer.builder("widgets.storage.operation")
+				.description("Duration of widget storage operations")
+				.tags("storage", storage, "operation", operation)
+				.publishPercentileHistogram()
+				.register(registry)
+				.record(action) ;
+	}
+
+	public void time(String operation, Runnable action) {
+		time(operation, () -> {
+			action.run();
+			return null ;
+		}) ;
+	}
+
+	public void recordLockWait(long nanos) {
+		lockWait.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordLockHold(long nanos) {
+		lockHold.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordSnapshotBuild(long nanos) {
+		snapshotBuild.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordSnapshotRetry() {
+		commitRetries.increment();
+	}
+
+	public void recordShift(int length) {
+		shiftLength.record(length);
+	}
+
+	public void recordRegionQuery(int candidates, int results) {
+		regionCandidates.record(candidates);
+		regionResults.record(results);
+	}
+
+	public void recordGroupCommit(int operations) {
+		groupCommitSize.record(operations);
+	}
+
+	public void recordWriteBehindFailure() {
+		writeBehindFailures.increment();
+	}
+
+	public <T> void gaugeWriteBehindBacklog(T source, ToDoubleFunction<T> backlog) {
+		Gauge.builder("widgets.storage.writebehind.backlog", source, backlog)
+				.description("Mutations waiting to be replayed to the database")
+				.tag("storage", storage)
+				.register(registry) ;
+	}
+
+	public void recordRegionCacheRequest(boolean hit) {
+		(hit ? regionCacheHits : regionCacheMisses).increment();
+	}
+
+	public <T> void gaugeRegionCacheSize(T source, ToDoubleFunction<T> size) {
+		Gauge.builder("widgets.region.cache.size", source, size)
+				.description("Region query results held by the cache")
+				.tag("storage", storage)
+				.register(registry) ;
+	}
+
+	public void recordJournalSync(long nanos, int records) {
+		journalSync.record(nanos, TimeUnit.NANOSECONDS);
+		journalGroupSize.record(records);
+	}
+
+	public void recordSnapshotWrite(long nanos) {
+		snapshotWrite.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void recordWriteBatch(int mutations) {
+		writeBatchSize.record(mutations);
+	}
+
+	public <T> void gaugeWriteQueue(T source, ToDoubleFunction<T> depth) {
+		Gauge.builder("widgets.write.queue.depth", source, depth)
+				.description("Mutations waiting for the writer thread")
+				.tag("storage", storage)
+				.register(registry) ;
+	}
+
+	public <T> void gaugeFeedSubscribers(T source, ToDoubleFunction<T> subscribers) {
+		Gauge.builder("widgets.feed.subscribers", source, subscribers)
+				.description("Clients streaming the change feed")
+				.tag("storage", storage)
+				.register(registry) ;
+	}
+
+	public <T> void gaugeWidgetCount(T source, ToDoubleFunction<T> count) {
+		Gauge.builder("widgets.count", source, count)
+				.description("Number of widgets on all boards")
+				.tag("storage", storage)
+				.register(registry) ;
+	}
+
+	private Counter regionCacheRequests(String result) {
+		return Counter.builder("widgets.region.cache.requests")
+				.description("Region query cache lookups")
+				.tags("storage", storage, "result", result)
+				.register(registry) ;
+	}
+
+	private Timer timer(String name, String description) {
+		return Timer.builder(name)
+				.description(description)
+				.tag("storage", storage)
+				.publishPercentileHistogram()
+				.register(registry) ;
+	}
+
+	private DistributionSummary summary(String name, String description) {
+		return DistributionSummary.builder(name)
+				.description(description)
+				.tag("storage", storage)
+				.publishPercentileHistogram()
+				.register(registry) ;
+	}
+}
@@ -0,0 +1,22 @@
+package com.miro.widgets.storage;
+
+import java.util.List;
+
+import com.miro.widgets.entity.Widget;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The widgets of a board changed after some version, as they are at {@code version}, and the
+ * ids of the widgets deleted since.
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class WidgetChanges {
+	private final long version ;
+	private final List<Widget> upserted ;
+	private final List<String> deleted ;
+}
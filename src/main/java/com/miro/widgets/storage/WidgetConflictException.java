@@ -0,0 +1,13 @@
+package com.miro.widgets.storage;
+
+/**
+ * Thrown when a widget no longer has the version a mutation was conditioned on.
+ */
+public class WidgetConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L ;
+
+	public WidgetConflictException(String id, Long expected) {
+		super("widget " + id + " is no longer at version " + expected) ;
+	}
+}
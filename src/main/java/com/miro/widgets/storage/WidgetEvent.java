@@ -0,0 +1,82 @@
+package com.miro.widgets.storage;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * A change of a board as published by the {@link ChangeFeed}. A shift carries the widgets
+ * that were moved one z index up by a create or update.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WidgetEvent {
+	public enum Type {
+		CREATED, UPDATED, DELETED, SHIFTED
+	}
+	
+	@Setter(AccessLevel.PACKAGE)
+	private long sequence ;
+	private final Type type ;
+	private final String board ;
+	private final String id ;
+	private final Widget widget ;
+	private final List<Widget> widgets ;
+	
+	@JsonIgnore
+	@ToString.Exclude
+	private final Widget previous ;
+	
+	public static WidgetEvent created(Widget widget) {
+		return new WidgetEvent(0, Type.CREATED, widget.getBoard(), widget.getId(), widget, null, null) ;
+	}
+	
+	public static WidgetEvent updated(Widget previous, Widget widget) {
+		return new WidgetEvent(0, Type.UPDATED, widget.getBoard(), widget.getId(), widget, null, previous) ;
+	}
+	
+	public static WidgetEvent deleted(Widget previous) {
+		return new WidgetEvent(0, Type.DELETED, previous.getBoard(), previous.getId(), null, null, previous) ;
+	}
+	
+	public static WidgetEvent shifted(String board, List<Widget> widgets) {
+		return new WidgetEvent(0, Type.SHIFTED, board, null, null, widgets, null) ;
+	}
+	
+	/**
+	 * The part of the event that intersects the region, null if nothing does. An update is
+	 * kept if the widget intersects the region before or after it, so a viewport also learns
+	 * about widgets leaving it.
+	 */
+	public WidgetEvent within(RegionDto region) {
+		if (region == null) {
+			return this ;
+		}
+		if (type == Type.SHIFTED) {
+			List<Widget> visible = widgets.stream().filter(w -> intersects(w, region)).collect(Collectors.toList()) ;
+			if (visible.isEmpty()) {
+				return null ;
+			}
+			return visible.size() == widgets.size() ? this : new WidgetEvent(sequence, type, board, null, null, visible, null) ;
+		}
+		return intersects(widget, region) || intersects(previous, region) ? this : null ;
+	}
+	
+	private static boolean intersects(Widget widget, RegionDto region) {
+		return widget != null
+				&& widget.getX() <= (long) region.getX() + region.getWidth() && (long) widget.getX() + widget.getWidth() >= region.getX()
+				&& widget.getY() <= (long) region.getY() + region.getHeight() && (long) widget.getY() + widget.getHeight() >= region.getY() ;
+	}
+}
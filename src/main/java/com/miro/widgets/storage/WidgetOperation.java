@@ -0,0 +1,42 @@
+package com.miro.widgets.storage;
+
+import com.miro.widgets.entity.Widget;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+@Getter
+@AllArgsConstructor
+@ToString
+public class WidgetOperation {
+	public enum Type {
+		CREATE, UPDATE, DELETE
+	}
+	
+	private final Type type ;
+	private final String board ;
+	private final String id ;
+	private final Widget widget ;
+	
+	/**
+	 * Version the widget must have for an update or delete to apply, null to apply it unconditionally.
+	 */
+	private final Long version ;
+	
+	public static WidgetOperation create(Widget widget) {
+		return new WidgetOperation(Type.CREATE, widget.getBoard(), widget.getId(), widget, null) ;
+	}
+	
+	public static WidgetOperation update(Widget widget) {
+		return new WidgetOperation(Type.UPDATE, widget.getBoard(), widget.getId(), widget, widget.getVersion()) ;
+	}
+	
+	public static WidgetOperation delete(String board, String id) {
+		return delete(board, id, null) ;
+	}
+	
+	public static WidgetOperation delete(String board, String id, Long version) {
+		return new WidgetOperation(Type.DELETE, board, id, null, version) ;
+	}
+}
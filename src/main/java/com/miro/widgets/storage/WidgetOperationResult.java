@@ -0,0 +1,54 @@
+package com.miro.widgets.storage;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.miro.widgets.entity.Widget;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+@Getter
+@AllArgsConstructor
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WidgetOperationResult {
+	public enum Status {
+		CREATED, UPDATED, DELETED, NOT_FOUND, CONFLICT
+	}
+	
+	private final WidgetOperation.Type type ;
+	private final Status status ;
+	private final String id ;
+	private final Widget widget ;
+	
+	/**
+	 * The widget as it was before an update or delete, null if the storage did not read it.
+	 */
+	@JsonIgnore
+	@ToString.Exclude
+	private final Widget previous ;
+	
+	public static WidgetOperationResult created(Widget widget) {
+		return new WidgetOperationResult(WidgetOperation.Type.CREATE, Status.CREATED, widget.getId(), widget, null) ;
+	}
+	
+	public static WidgetOperationResult updated(Widget widget, Widget previous) {
+		return new WidgetOperationResult(WidgetOperation.Type.UPDATE, Status.UPDATED, widget.getId(), widget, previous) ;
+	}
+	
+	public static WidgetOperationResult deleted(String id, Widget previous) {
+		return new WidgetOperationResult(WidgetOperation.Type.DELETE, Status.DELETED, id, null, previous) ;
+	}
+	
+	public static WidgetOperationResult notFound(WidgetOperation operation) {
+		return new WidgetOperationResult(operation.getType(), Status.NOT_FOUND, operation.getId(), null, null) ;
+	}
+	
+	/**
+	 * The widget no longer has the version the operation was conditioned on.
+	 */
+	public static WidgetOperationResult conflict(WidgetOperation operation) {
+		return new WidgetOperationResult(operation.getType(), Status.CONFLICT, operation.getId(), null, null) ;
+	}
+}
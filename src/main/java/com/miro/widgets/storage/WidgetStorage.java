@@ -2,24 +2,103 @@ package com.miro.widgets.storage;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.springframework.data.domain.Pageable;
 
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.entity.Widget;
 
+/**
+ * Widgets are partitioned by board. Z indexes, ordering and regions are scoped to a single
+ * board, widgets are created and updated on the board they carry.
+ */
 public interface WidgetStorage {
-	Optional<Widget> findById(String id) ;
-	
-	List<Widget> findAll(Pageable pageable) ;
-	
-	List<Widget> findAllByRegion(RegionDto region) ;
-	
+	Optional<Widget> findById(String board, String id) ;
+
+	List<Widget> findAll(String board, Pageable pageable) ;
+
+	List<Widget> findAllAfter(String board, Integer afterZindex, int limit) ;
+
+	List<Widget> findAllByRegion(String board, RegionDto region) ;
+
+	/**
+	 * At most {@code limit} widgets within the region with a z index above {@code afterZindex},
+	 * or from the lowest one if it is null, in z index order.
+	 */
+	List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) ;
+
+	/**
+	 * At most {@code limit} widgets containing the point, edges included, by descending z index.
+	 */
+	List<Widget> findAllAt(String board, int x, int y, int limit) ;
+
+	/**
+	 * Version of the board, advanced by every mutation of it, z index shifts included. Versions
+	 * never go back, so a version read before a query identifies its result.
+	 */
+	long version(String board) ;
+
+	/**
+	 * The widgets of the board changed after the version, empty if the storage does not know
+	 * all of those changes anymore.
+	 */
+	Optional<WidgetChanges> changesSince(String board, long version) ;
+
+	/**
+	 * Number of widgets on all boards, possibly a little behind the latest mutations.
+	 */
+	long count() ;
+
+	/**
+	 * Passes the page to the action widget by widget as it is read, without collecting it first.
+	 */
+	void forEach(String board, Pageable pageable, Consumer<Widget> action) ;
+
+	/**
+	 * Passes the widgets within the region to the action as they are found, without collecting them first.
+	 */
+	void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) ;
+
 	Widget create(Widget widget) ;
-	
-	Widget update(Widget widget) ;
-	
-	void deleteById(String id) ;
-	
+
+	/**
+	 * Empty if the widget does not exist. A widget carrying a version is only updated at that
+	 * version, otherwise {@link WidgetConflictException} is thrown.
+	 */
+	default Optional<Widget> update(Widget widget) {
+		return Optional.ofNullable(apply(WidgetOperation.update(widget)).getWidget()) ;
+	}
+
+	/**
+	 * False if the widget does not exist. Given a version, the widget is only deleted at that
+	 * version, otherwise {@link WidgetConflictException} is thrown.
+	 */
+	default boolean deleteById(String board, String id, Long version) {
+		return apply(WidgetOperation.delete(board, id, version)).getStatus() == WidgetOperationResult.Status.DELETED ;
+	}
+
+	default boolean deleteById(String board, String id) {
+		return deleteById(board, id, null) ;
+	}
+
+	/**
+	 * Applies a single operation on its own, throwing {@link WidgetConflictException} instead of
+	 * returning a conflict. The result of an update or delete holds the widget as it was before
+	 * if the storage read it while applying the operation.
+	 */
+	WidgetOperationResult apply(WidgetOperation operation) ;
+
+	/**
+	 * Applies the operations in order as one unit: readers observe either none or all of them.
+	 * The widgets of the operations must belong to the given board. An operation on a widget
+	 * not at the version it is conditioned on results in a conflict and is not applied. Results
+	 * of updates and deletes hold the widget as it was before.
+	 */
+	List<WidgetOperationResult> applyBatch(String board, List<WidgetOperation> operations) ;
+
+	/**
+	 * Removes the widgets of every board.
+	 */
 	void deleteAll() ;
 }
@@ -0,0 +1,174 @@
+package com.miro.widgets.storage.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coalesces concurrent mutations into shared transactions. A single committer thread waits
+ * for the first queued operation, lingers up to the configured time for more, and commits
+ * at most {@code maxBatchSize} of them at once. Callers are released after the commit.
+ * <p>
+ * When a group fails, its operations are retried one by one so that a single bad operation
+ * only fails its own caller.
+ * <p>
+ * At most {@code capacity} operations wait in the queue; further callers are rejected at
+ * once. A caller whose operation has not been taken into a group within {@code maxWaitMillis}
+ * withdraws it and is rejected too, so nothing it was told failed is committed later.
+ */
+@Slf4j
+class GroupCommitter {
+
+	private final Function<List<WidgetOperation>, List<WidgetOperationResult>> commit ;
+	private final int maxBatchSize ;
+	private final long maxLingerNanos ;
+	private final long maxWaitNanos ;
+	private final BlockingQueue<Pending> queue ;
+	private final Thread committer ;
+	private volatile boolean running = true ;
+
+	GroupCommitter(Function<List<WidgetOperation>, List<WidgetOperationResult>> commit, int maxBatchSize, long maxLingerMillis,
+			int capacity, long maxWaitMillis) {
+		this.commit = commit ;
+		this.maxBatchSize = maxBatchSize ;
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis) ;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis) ;
+		this.queue = new ArrayBlockingQueue<>(capacity) ;
+		this.committer = new Thread(this::run, "widgets-group-commit") ;
+		this.committer.setDaemon(true);
+		this.committer.start();
+	}
+
+	WidgetOperationResult apply(WidgetOperation operation) {
+		if (!running) {
+			throw new IllegalStateException("group committer is stopped") ;
+		}
+		Pending pending = new Pending(operation) ;
+		if (!queue.offer(pending)) {
+			throw new RejectedExecutionException("group commit queue is full") ;
+		}
+		try {
+			return pending.result.get(maxWaitNanos, TimeUnit.NANOSECONDS) ;
+		} catch (TimeoutException e) {
+			withdraw(pending, "group commit did not start within " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms") ;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			withdraw(pending, "interrupted while waiting for group commit") ;
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause()) ;
+		}
+		return outcome(pending) ;
+	}
+
+	/**
+	 * Takes the operation back and rejects it, unless a group has taken it already.
+	 */
+	private void withdraw(Pending pending, String reason) {
+		if (queue.remove(pending)) {
+			throw new RejectedExecutionException(reason) ;
+		}
+	}
+
+	/**
+	 * Waits for the transaction of the group that took the operation. It commits regardless of
+	 * the caller, so the wait is not cut short by interrupts.
+	 */
+	private WidgetOperationResult outcome(Pending pending) {
+		try {
+			return pending.result.join() ;
+		} catch (CompletionException e) {
+			throw unwrap(e.getCause()) ;
+		}
+	}
+
+	private static RuntimeException unwrap(Throwable cause) {
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause) ;
+	}
+
+	void shutdown() {
+		running = false ;
+		committer.interrupt();
+		try {
+			committer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<Pending> abandoned = new ArrayList<>() ;
+		queue.drainTo(abandoned) ;
+		abandoned.forEach(p -> p.result.completeExceptionally(new IllegalStateException("group committer is stopped"))) ;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				List<Pending> group = nextGroup() ;
+				if (!group.isEmpty()) {
+					commit(group) ;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return ;
+			}
+		}
+	}
+
+	private List<Pending> nextGroup() throws InterruptedException {
+		List<Pending> group = new ArrayList<>(maxBatchSize) ;
+		group.add(queue.take()) ;
+		long deadline = System.nanoTime() + maxLingerNanos ;
+		while (group.size() < maxBatchSize) {
+			queue.drainTo(group, maxBatchSize - group.size()) ;
+			long remaining = deadline - System.nanoTime() ;
+			if (group.size() >= maxBatchSize || remaining <= 0) {
+				break ;
+			}
+			Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS) ;
+			if (next == null) {
+				break ;
+			}
+			group.add(next) ;
+		}
+		return group ;
+	}
+
+	private void commit(List<Pending> group) {
+		try {
+			List<WidgetOperationResult> results = commit.apply(group.stream().map(p -> p.operation).collect(Collectors.toList())) ;
+			for (int i = 0; i < group.size(); i++) {
+				group.get(i).result.complete(results.get(i)) ;
+			}
+		} catch (RuntimeException e) {
+			if (group.size() == 1) {
+				group.get(0).result.completeExceptionally(e) ;
+				return ;
+			}
+			log.warn("group of {} operations failed, applying them one by one", group.size(), e);
+			for (Pending pending : group) {
+				commit(List.of(pending)) ;
+			}
+		}
+	}
+
+	private static final class Pending {
+		private final WidgetOperation operation ;
+		private final CompletableFuture<WidgetOperationResult> result = new CompletableFuture<>() ;
+
+		private Pending(WidgetOperation operation) {
+			this.operation = operation ;
+		}
+	}
+}
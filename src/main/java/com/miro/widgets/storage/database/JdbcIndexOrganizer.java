@@ -1,35 +1,91 @@
 package com.miro.widgets.storage.database;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import com.miro.widgets.entity.Widget;
 import com.miro.widgets.repository.WidgetRepository;
+import com.miro.widgets.storage.StorageMetrics;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Shifts z indexes with set based statements. Callers are expected to hold the lock of the
+ * board, the cached maximum z index of a board is only reliable under it.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class JdbcIndexOrganizer {
 	
 	private final WidgetRepository widgetRepository ;
+	private final StorageMetrics metrics ;
+	private final Map<String, Integer> maxIndexes = new ConcurrentHashMap<>() ;
 	
-	public int getMaxIndex() {
-		return widgetRepository.findFirstByOrderByZindexDesc().map(w -> w.getZindex()).orElse(0) ;
+	public int getMaxIndex(String board) {
+		Integer max = maxIndexes.get(board) ;
+		if (max == null) {
+			max = widgetRepository.findMaxZindex(board).orElse(0) ;
+			maxIndexes.put(board, max) ;
+		}
+		return max ;
 	}
 	
-	public void shiftIndexes(Widget widget) {
+	/**
+	 * Moves the widgets from the z index of the widget up to the first free one above it by one,
+	 * and returns that free index, which is the widget's own if nothing had to move.
+	 */
+	public int shiftIndexes(Widget widget) {
+		String board = widget.getBoard() ;
 		int zindex = widget.getZindex() ;
-		while (widgetRepository.findByZindex(zindex).isPresent()) {
-			zindex++ ;
+		if (!widgetRepository.existsByBoardAndZindex(board, zindex)) {
+			metrics.recordShift(0);
+			return zindex ;
 		}
 		
-		for (int i = zindex - 1; i >= widget.getZindex(); i--) {
-			Widget existing = widgetRepository.findByZindex(i).get() ;
-			log.info("shifting {} from {} to {}", existing.getId(), existing.getZindex(), existing.getZindex() + 1);
-			existing.setZindex(existing.getZindex() + 1);
-			widgetRepository.save(existing) ;
+		int gap = widgetRepository.findFirstFreeZindexAfter(board, zindex) ;
+		metrics.recordShift(gap - zindex);
+		int max = getMaxIndex(board) ;
+		log.info("shifting {} widgets of board {} from {}..{} to {}..{}", gap - zindex, board, zindex, gap - 1, zindex + 1, gap);
+		
+		// z index is unique within a board, so the run is first moved above the current maximum and then back down
+		int offset = max - zindex + 1 ;
+		widgetRepository.shiftZindexes(board, zindex, gap, offset) ;
+		widgetRepository.shiftZindexes(board, zindex + offset, gap + offset, 1 - offset) ;
+		indexUsed(board, gap) ;
+		return gap ;
+	}
+	
+	public void indexUsed(String board, int zindex) {
+		if (zindex > getMaxIndex(board)) {
+			maxIndexes.put(board, zindex) ;
+			invalidateOnRollback(board) ;
+		}
+	}
+	
+	public void invalidate(String board) {
+		maxIndexes.remove(board) ;
+	}
+	
+	public void invalidateAll() {
+		maxIndexes.clear();
+	}
+	
+	private void invalidateOnRollback(String board) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status != STATUS_COMMITTED) {
+						invalidate(board) ;
+					}
+				}
+			});
 		}
 	}
 }
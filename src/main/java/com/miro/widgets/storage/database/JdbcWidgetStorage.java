@@ -1,93 +1,520 @@
 package com.miro.widgets.storage.database;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.entity.Widget;
 import com.miro.widgets.repository.WidgetRepository;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Keeps a single version for all boards, advanced whenever a mutation completed. Which widgets
+ * changed is not tracked, so {@link #changesSince} never knows the changes and clients have to
+ * fetch the board again.
+ * <p>
+ * Rows are updated and deleted only at the version they were read at, so concurrent writers,
+ * also on other instances, never overwrite each other. Only mutations that may shift z indexes
+ * hold the lock of their board; updates keeping the z index and deletes rely on the version
+ * alone. An unconditional update that lost a race is applied again on top of the winner.
+ */
 @Component
 @RequiredArgsConstructor
-@ConditionalOnProperty(name = "storage", havingValue = "database")
+@ConditionalOnExpression("'${storage:inmemory}' == 'database' or '${storage:inmemory}' == 'hybrid'")
 @Slf4j
 public class JdbcWidgetStorage implements WidgetStorage {
 	private final WidgetRepository widgetRepository ;
 	private final JdbcIndexOrganizer indexOrganizer ;
-	private ReentrantLock lock = new ReentrantLock() ;
+	private final TransactionTemplate transactionTemplate ;
+	private final JdbcTemplate jdbcTemplate ;
+	private final StorageMetrics metrics ;
+	private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>() ;
+	private final AtomicLong version = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())) ;
+	private GroupCommitter groupCommitter ;
+	private TransactionTemplate readOnlyTransactionTemplate ;
+
+	@PersistenceContext
+	private EntityManager entityManager ;
+
+	@Value("${widgets.jdbc.group-commit.enabled:false}")
+	private boolean groupCommitEnabled ;
+
+	@Value("${widgets.jdbc.group-commit.max-batch-size:100}")
+	private int groupCommitMaxBatchSize ;
+
+	@Value("${widgets.jdbc.group-commit.max-linger-ms:2}")
+	private long groupCommitMaxLingerMillis ;
+
+	@Value("${widgets.jdbc.group-commit.capacity:4096}")
+	private int groupCommitCapacity ;
+
+	@Value("${widgets.jdbc.group-commit.max-wait-ms:5000}")
+	private long groupCommitMaxWaitMillis ;
+
+	@Value("${widgets.jdbc.count-refresh-ms:10000}")
+	private long countRefreshMillis ;
+
+	private volatile long count ;
+	private volatile long countedAt ;
+
+	@PostConstruct
+	public void init() {
+		readOnlyTransactionTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager()) ;
+		readOnlyTransactionTemplate.setReadOnly(true);
+		if (groupCommitEnabled) {
+			log.info("group commit enabled, up to {} operations per transaction, lingering {} ms", groupCommitMaxBatchSize, groupCommitMaxLingerMillis);
+			groupCommitter = new GroupCommitter(operations -> {
+				metrics.recordGroupCommit(operations.size());
+				return applyOperations(operations) ;
+			}, groupCommitMaxBatchSize, groupCommitMaxLingerMillis, groupCommitCapacity, groupCommitMaxWaitMillis) ;
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (groupCommitter != null) {
+			groupCommitter.shutdown();
+		}
+	}
+
+	@Override
+	public Optional<Widget> findById(String board, String id) {
+		return widgetRepository.findById(id).filter(w -> w.getBoard().equals(board));
+	}
 
 	@Override
-	public Optional<Widget> findById(String id) {
-		return widgetRepository.findById(id);
+	public List<Widget> findAll(String board, Pageable pageable) {
+		return widgetRepository.findAllByBoardOrderByZindex(board, pageable) ;
 	}
 
 	@Override
-	public List<Widget> findAll(Pageable pageable) {
-		return widgetRepository.findAllByOrderByZindex(pageable).toList() ;
+	public List<Widget> findAllAfter(String board, Integer afterZindex, int limit) {
+		if (afterZindex == null) {
+			return widgetRepository.findAllByBoardOrderByZindex(board, PageRequest.of(0, limit)) ;
+		}
+		return widgetRepository.findAllByBoardAndZindexGreaterThanOrderByZindex(board, afterZindex, PageRequest.of(0, limit)) ;
+	}
+
+	/**
+	 * Boards having at least one widget.
+	 */
+	public List<String> findBoards() {
+		return widgetRepository.findBoards() ;
 	}
 	
 	@Override
-	public List<Widget> findAllByRegion(RegionDto region) {
-		return widgetRepository.findAllByArea(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+	public List<Widget> findAllByRegion(String board, RegionDto region) {
+		List<Widget> withInRegion = widgetRepository.findAllWithinRegion(board, region.getX(), region.getY(), region.getWidth(), region.getHeight()) ;
+		metrics.recordRegionQuery(withInRegion.size(), withInRegion.size());
+		return withInRegion ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) {
+		return widgetRepository.findAllWithinRegionAfter(board, region.getX(), region.getY(), region.getWidth(), region.getHeight(), afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllAt(String board, int x, int y, int limit) {
+		return widgetRepository.findAllAtPoint(board, x, y, limit) ;
+	}
+
+	@Override
+	public long version(String board) {
+		return version.get() ;
+	}
+
+	@Override
+	public Optional<WidgetChanges> changesSince(String board, long version) {
+		return Optional.empty() ;
+	}
+
+	/**
+	 * Counts the rows at most once per {@code widgets.jdbc.count-refresh-ms} and answers with
+	 * the last count in between, so frequent callers such as metric scrapes do not scan the table.
+	 */
+	@Override
+	public long count() {
+		long now = System.currentTimeMillis() ;
+		if (now - countedAt >= countRefreshMillis) {
+			countedAt = now ;
+			count = readOnlyTransactionTemplate.execute(status -> widgetRepository.count()) ;
+		}
+		return count ;
+	}
+
+	@Override
+	public void forEach(String board, Pageable pageable, Consumer<Widget> action) {
+		stream(() -> widgetRepository.streamAllByBoardOrderByZindex(board, pageable), action) ;
+	}
+
+	@Override
+	public void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) {
+		int found = stream(() -> widgetRepository.streamAllWithinRegion(board, region.getX(), region.getY(), region.getWidth(), region.getHeight()), action) ;
+		metrics.recordRegionQuery(found, found);
 	}
 
 	@Override
 	public Widget create(Widget widget) {
-		lock.lock(); 
-		try {
-			if (widget.isZindexNotSpecified()) {
-				widget.setZindex(indexOrganizer.getMaxIndex() + 1);
-				log.info("widget {} has no z index using max value {}", widget.getId(), widget.getZindex());
-			} else {
-				log.info("shifting other widgets");
-				indexOrganizer.shiftIndexes(widget);
+		if (groupCommitter != null) {
+			return groupCommitter.apply(WidgetOperation.create(widget)).getWidget() ;
+		}
+		return locked(widget.getBoard(), () -> transactionTemplate.execute(status -> applyCreate(widget, statements(), Map.of()))) ;
+	}
+
+	@Override
+	public WidgetOperationResult apply(WidgetOperation operation) {
+		switch (operation.getType()) {
+		case CREATE:
+			return WidgetOperationResult.created(create(operation.getWidget())) ;
+		case UPDATE:
+			return update(operation) ;
+		default:
+			return delete(operation) ;
+		}
+	}
+
+	private WidgetOperationResult update(WidgetOperation operation) {
+		Widget widget = operation.getWidget() ;
+		Integer zindex = widget.getZindex() ;
+		while (true) {
+			try {
+				return updateOnce(operation) ;
+			} catch (WidgetConflictException e) {
+				if (operation.getVersion() != null) {
+					throw e ;
+				}
+				log.info("widget {} was updated concurrently, updating it again", widget.getId());
+				widget.setZindex(zindex);
+				widget.setVersion(null);
 			}
+		}
+	}
 
-			widgetRepository.save(widget) ;
-		} finally {
-			lock.unlock(); 
+	private WidgetOperationResult updateOnce(WidgetOperation operation) {
+		Widget widget = operation.getWidget() ;
+		if (groupCommitter != null) {
+			WidgetOperationResult result = groupCommitter.apply(WidgetOperation.update(widget)) ;
+			if (result.getStatus() == WidgetOperationResult.Status.CONFLICT) {
+				throw new WidgetConflictException(widget.getId(), widget.getVersion()) ;
+			}
+			return result ;
 		}
-		return widget ;
+		Supplier<WidgetOperationResult> update = () -> transactionTemplate.execute(status -> {
+			Optional<Widget> current = findDetached(widget.getBoard(), widget.getId()) ;
+			if (current.isEmpty()) {
+				return WidgetOperationResult.notFound(operation) ;
+			}
+			WidgetStatements statements = statements() ;
+			Widget updated = applyUpdate(widget, current.get(), statements, Map.of()) ;
+			statements.flush();
+			return WidgetOperationResult.updated(updated, current.get()) ;
+		}) ;
+		return widget.isZindexNotSpecified() ? unlocked(update) : locked(widget.getBoard(), update) ;
+	}
+
+	@Override
+	public List<WidgetOperationResult> applyBatch(String board, List<WidgetOperation> operations) {
+		return applyOperations(operations) ;
+	}
+
+	/**
+	 * Removing a widget never raises the maximum z index of its board, so it needs no lock.
+	 * The row is deleted without being read, so the result does not hold the previous widget.
+	 */
+	private WidgetOperationResult delete(WidgetOperation operation) {
+		String board = operation.getBoard() ;
+		String id = operation.getId() ;
+		Long version = operation.getVersion() ;
+		if (groupCommitter != null) {
+			WidgetOperationResult result = groupCommitter.apply(operation) ;
+			if (result.getStatus() == WidgetOperationResult.Status.CONFLICT) {
+				throw new WidgetConflictException(id, version) ;
+			}
+			return result ;
+		}
+		return unlocked(() -> transactionTemplate.execute(status -> {
+			int deleted = statements().deleteNow(board, id, version) ;
+			if (deleted == 0 && version != null && findDetached(board, id).isPresent()) {
+				throw new WidgetConflictException(id, version) ;
+			}
+			indexOrganizer.invalidate(board);
+			return deleted > 0 ? WidgetOperationResult.deleted(id, null) : WidgetOperationResult.notFound(operation) ;
+		})) ;
 	}
 
 	@Override
-	public Widget update(Widget widget) {
-		lock.lock(); 
+	public void deleteAll() {
+		widgetRepository.deleteAll();
+		indexOrganizer.invalidateAll();
+		version.incrementAndGet();
+	}
+	
+	/**
+	 * Applies the operations in one transaction, holding the locks of all boards involved. The
+	 * rows to update or delete are read with a single query and checked in memory, creates are
+	 * inserted in a JDBC batch and updates and deletes sent as {@link WidgetStatements}, so a
+	 * group costs a few round trips rather than a few per operation. Only a requested z index
+	 * taken by another widget costs the round trips of a shift. If the transaction fails, the z
+	 * indexes assigned to the widgets are reset, so the operations can be applied again.
+	 */
+	private List<WidgetOperationResult> applyOperations(List<WidgetOperation> operations) {
+		List<Integer> zindexes = operations.stream()
+				.map(o -> o.getWidget() == null ? null : o.getWidget().getZindex())
+				.collect(Collectors.toList()) ;
+		List<Long> versions = operations.stream()
+				.map(o -> o.getWidget() == null ? null : o.getWidget().getVersion())
+				.collect(Collectors.toList()) ;
+		Set<String> boards = operations.stream().map(WidgetOperation::getBoard).collect(Collectors.toCollection(TreeSet::new)) ;
+		return locked(boards, () -> {
+			List<WidgetOperationResult> results ;
+			try {
+				results = transactionTemplate.execute(status -> {
+					// read before anything is pending, a query in between would flush the inserts one board at a time
+					boards.forEach(indexOrganizer::getMaxIndex);
+					Map<String, Widget> rows = currentRows(operations) ;
+					WidgetStatements statements = statements() ;
+					List<WidgetOperationResult> applied = new ArrayList<>(operations.size()) ;
+					for (WidgetOperation operation : operations) {
+						Widget current = rows.get(operation.getId()) ;
+						if (operation.getType() == WidgetOperation.Type.CREATE) {
+							applied.add(WidgetOperationResult.created(applyCreate(operation.getWidget(), statements, rows))) ;
+						} else if (current == null || !current.getBoard().equals(operation.getBoard())) {
+							applied.add(WidgetOperationResult.notFound(operation)) ;
+						} else if (!isAt(current, operation.getVersion())) {
+							applied.add(WidgetOperationResult.conflict(operation)) ;
+						} else if (operation.getType() == WidgetOperation.Type.UPDATE) {
+							Widget updated = applyUpdate(operation.getWidget(), current, statements, rows) ;
+							rows.put(updated.getId(), row(updated)) ;
+							applied.add(WidgetOperationResult.updated(updated, current)) ;
+						} else {
+							statements.delete(current.getBoard(), current.getId(), current.getVersion());
+							rows.remove(current.getId()) ;
+							applied.add(WidgetOperationResult.deleted(current.getId(), current)) ;
+						}
+					}
+					statements.flush();
+					return applied ;
+				}) ;
+			} catch (RuntimeException e) {
+				for (int i = 0; i < operations.size(); i++) {
+					if (operations.get(i).getWidget() != null) {
+						operations.get(i).getWidget().setZindex(zindexes.get(i));
+						operations.get(i).getWidget().setVersion(versions.get(i));
+					}
+				}
+				throw e ;
+			}
+			for (int i = 0; i < operations.size(); i++) {
+				if (results.get(i).getStatus() == WidgetOperationResult.Status.DELETED) {
+					indexOrganizer.invalidate(operations.get(i).getBoard());
+				}
+			}
+			log.info("applied batch of {} operations", operations.size());
+			return results ;
+		}) ;
+	}
+
+	/**
+	 * Current rows of the widgets the operations update or delete, by id and detached, so the
+	 * statements writing them do not leave stale entities in the persistence context.
+	 */
+	private Map<String, Widget> currentRows(List<WidgetOperation> operations) {
+		Set<String> ids = operations.stream()
+				.filter(o -> o.getType() != WidgetOperation.Type.CREATE)
+				.map(WidgetOperation::getId)
+				.collect(Collectors.toSet()) ;
+		Map<String, Widget> rows = new HashMap<>() ;
+		if (!ids.isEmpty()) {
+			for (Widget row : widgetRepository.findAllById(ids)) {
+				entityManager.detach(row);
+				rows.put(row.getId(), row) ;
+			}
+		}
+		return rows ;
+	}
+
+	/**
+	 * Copy of an updated widget standing for its row in later operations of the same batch.
+	 */
+	private static Widget row(Widget widget) {
+		Widget row = Widget.buildFrom(widget) ;
+		row.setLastModificationDate(widget.getLastModificationDate());
+		row.setVersion(widget.getVersion());
+		return row ;
+	}
+
+	private Optional<Widget> findDetached(String board, String id) {
+		// the row may come from the persistence context with its insert still pending
+		entityManager.flush();
+		Optional<Widget> widget = findById(board, id) ;
+		widget.ifPresent(entityManager::detach);
+		return widget ;
+	}
+
+	private WidgetStatements statements() {
+		return new WidgetStatements(jdbcTemplate, entityManager) ;
+	}
+
+	/**
+	 * Reads the rows from a cursor in a read only transaction. Each widget is detached once
+	 * handed over, so the persistence context does not grow with the result.
+	 */
+	private int stream(Supplier<Stream<Widget>> query, Consumer<Widget> action) {
+		return readOnlyTransactionTemplate.execute(status -> {
+			int count = 0 ;
+			try (Stream<Widget> widgets = query.get()) {
+				Iterator<Widget> iterator = widgets.iterator() ;
+				while (iterator.hasNext()) {
+					Widget widget = iterator.next() ;
+					entityManager.detach(widget);
+					action.accept(widget);
+					count++ ;
+				}
+			}
+			return count ;
+		}) ;
+	}
+
+	private <T> T locked(String board, Supplier<T> action) {
+		return locked(Set.of(board), action) ;
+	}
+
+	private <T> T unlocked(Supplier<T> action) {
+		try {
+			return action.get() ;
+		} finally {
+			// advanced once the mutation is visible, a reader never gets a version newer than its result
+			version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Boards must be iterated in a consistent order, so that two writers never wait on each other.
+	 */
+	private <T> T locked(Set<String> boards, Supplier<T> action) {
+		long start = System.nanoTime() ;
+		List<ReentrantLock> held = new ArrayList<>(boards.size()) ;
 		try {
-			if (zIndexHasBeenModified(widget)) {
-				log.info("widget has modified z index");
-				log.info("shifting other widgets");
-				indexOrganizer.shiftIndexes(widget);
+			for (String board : boards) {
+				ReentrantLock lock = locks.computeIfAbsent(board, b -> new ReentrantLock()) ;
+				lock.lock();
+				held.add(lock) ;
+			}
+			long acquired = System.nanoTime() ;
+			metrics.recordLockWait(acquired - start);
+			try {
+				return action.get() ;
+			} finally {
+				// advanced once the mutation is visible, a reader never gets a version newer than its result
+				version.incrementAndGet();
+				metrics.recordLockHold(System.nanoTime() - acquired);
 			}
-			
-			widgetRepository.save(widget) ;
 		} finally {
-			lock.unlock(); 
+			for (int i = held.size() - 1; i >= 0; i--) {
+				held.get(i).unlock();
+			}
 		}
+	}
+
+	private Widget applyCreate(Widget widget, WidgetStatements statements, Map<String, Widget> rows) {
+		if (widget.isZindexNotSpecified()) {
+			widget.setZindex(indexOrganizer.getMaxIndex(widget.getBoard()) + 1);
+			log.info("widget {} has no z index using max value {}", widget.getId(), widget.getZindex());
+		} else {
+			shift(widget, statements, rows) ;
+		}
+
+		// a new widget needs no lookup of an existing row, which merging it would do
+		widget.setVersion(1L);
+		entityManager.persist(widget);
+		indexOrganizer.indexUsed(widget.getBoard(), widget.getZindex());
 		return widget ;
 	}
 
-	@Override
-	public void deleteById(String id) {
-		widgetRepository.deleteById(id);
+	/**
+	 * Writes the widget over the current row if the row is still at the version it was read
+	 * at and at the version the widget carries, if any. Shifts leave versions as they are, so
+	 * without a requested z index the z index of the row is kept instead of overwritten. The
+	 * update is only collected, it is sent when the statements are flushed.
+	 */
+	private Widget applyUpdate(Widget widget, Widget current, WidgetStatements statements, Map<String, Widget> rows) {
+		long version = current.getVersion() ;
+		if (!isAt(current, widget.getVersion())) {
+			throw new WidgetConflictException(widget.getId(), widget.getVersion()) ;
+		}
+		boolean keepZindex = widget.isZindexNotSpecified() ;
+		if (keepZindex) {
+			widget.setZindex(current.getZindex());
+		} else if (!current.getZindex().equals(widget.getZindex())) {
+			log.info("widget has modified z index");
+			shift(widget, statements, rows) ;
+		}
+		widget.updateSpatialColumns();
+		statements.update(widget, version, !keepZindex);
+		widget.setVersion(version + 1);
+		if (!keepZindex) {
+			indexOrganizer.indexUsed(widget.getBoard(), widget.getZindex());
+		}
+		return widget ;
 	}
 
-	@Override
-	public void deleteAll() {
-		widgetRepository.deleteAll();
+	/**
+	 * Shifts the widgets in the way of the requested z index. The shift runs in the database,
+	 * so everything collected before is sent first, and the rows read for the batch are moved
+	 * along with it.
+	 */
+	private void shift(Widget widget, WidgetStatements statements, Map<String, Widget> rows) {
+		log.info("shifting other widgets");
+		statements.flush();
+		int gap = indexOrganizer.shiftIndexes(widget) ;
+		for (Widget row : rows.values()) {
+			if (row.getBoard().equals(widget.getBoard()) && row.getZindex() >= widget.getZindex() && row.getZindex() < gap) {
+				row.setZindex(row.getZindex() + 1);
+			}
+		}
 	}
 	
-	private boolean zIndexHasBeenModified(Widget widget) {
-		return !widgetRepository.findById(widget.getId()).get().getZindex().equals(widget.getZindex()) ;
+	/**
+	 * Whether the widget is at the version, any version matches if it is null.
+	 */
+	private boolean isAt(Widget widget, Long version) {
+		return version == null || version.equals(widget.getVersion()) ;
 	}
 
 }
@@ -0,0 +1,159 @@
+package com.miro.widgets.storage.database;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Hilbert curve keys of widget positions. The coordinate plane is divided into square cells
+ * of {@value #CELL_SIZE} units and a widget is keyed by the cell of its top left corner, so
+ * the widgets fully inside a region are found among the keys of the cells the region covers.
+ * <p>
+ * Aligned square blocks of cells map to contiguous key ranges, which lets a region be
+ * decomposed into a handful of range scans.
+ * <p>
+ * Widgets also get a cover key for point queries. It is the cell of the top left corner on
+ * the level whose cells are at least as large as the widget, so the widget reaches at most
+ * into the next cell to the right and below, and the widgets containing a point are found
+ * among the four cells up and left of the point on each level.
+ */
+public final class SpatialKeys {
+
+	static final int CELL_BITS = 6 ;
+	static final int CELL_SIZE = 1 << CELL_BITS ;
+	static final int ORDER = 32 - CELL_BITS ;
+	static final int MAX_RANGES = 16 ;
+	static final int COVER_LEVELS = 32 - CELL_BITS ;
+
+	private SpatialKeys() {
+	}
+
+	public static long of(int x, int y) {
+		return hilbert(cell(x), cell(y)) ;
+	}
+
+	public static long coverKey(int x, int y, int width, int height) {
+		int level = 0 ;
+		while (level < COVER_LEVELS - 1 && (long) CELL_SIZE << level < Math.max(width, height)) {
+			level++ ;
+		}
+		return coverKey(level, cell(x, level), cell(y, level)) ;
+	}
+
+	/**
+	 * Cover keys of every cell that may hold a widget containing the point, edges included.
+	 */
+	public static List<Long> coverKeys(int x, int y) {
+		List<Long> keys = new ArrayList<>(4 * COVER_LEVELS) ;
+		for (int level = 0; level < COVER_LEVELS; level++) {
+			long cx = cell(x, level), cy = cell(y, level) ;
+			for (long kx = Math.max(0, cx - 1); kx <= cx; kx++) {
+				for (long ky = Math.max(0, cy - 1); ky <= cy; ky++) {
+					keys.add(coverKey(level, kx, ky)) ;
+				}
+			}
+		}
+		return keys ;
+	}
+
+	/**
+	 * Inclusive key ranges covering every cell that contains a point within the given
+	 * inclusive bounds. Ranges are sorted and do not touch each other.
+	 */
+	public static List<long[]> ranges(int minX, int minY, int maxX, int maxY) {
+		long cx0 = cell(minX), cy0 = cell(minY), cx1 = cell(maxX), cy1 = cell(maxY) ;
+
+		List<long[]> covered = new ArrayList<>() ;
+		List<long[]> partial = new ArrayList<>() ;
+		partial.add(new long[] {0, 0, ORDER}) ;
+		int level = ORDER ;
+		while (!partial.isEmpty() && level > 0) {
+			int childLevel = level - 1 ;
+			long side = 1L << childLevel ;
+			List<long[]> coveredChildren = new ArrayList<>() ;
+			List<long[]> partialChildren = new ArrayList<>() ;
+			for (long[] block : partial) {
+				for (int i = 0; i < 4; i++) {
+					long bx = block[0] + ((i & 1) == 0 ? 0 : side) ;
+					long by = block[1] + ((i & 2) == 0 ? 0 : side) ;
+					long bx1 = bx + side - 1, by1 = by + side - 1 ;
+					if (bx1 < cx0 || bx > cx1 || by1 < cy0 || by > cy1) {
+						continue ;
+					}
+					boolean inside = bx >= cx0 && bx1 <= cx1 && by >= cy0 && by1 <= cy1 ;
+					(inside ? coveredChildren : partialChildren).add(new long[] {bx, by, childLevel}) ;
+				}
+			}
+			if (covered.size() + coveredChildren.size() + partialChildren.size() > MAX_RANGES) {
+				break ;
+			}
+			covered.addAll(coveredChildren) ;
+			partial = partialChildren ;
+			level = childLevel ;
+		}
+
+		List<long[]> ranges = new ArrayList<>(covered.size() + partial.size()) ;
+		for (long[] block : covered) {
+			ranges.add(range(block)) ;
+		}
+		for (long[] block : partial) {
+			ranges.add(range(block)) ;
+		}
+		return merge(ranges) ;
+	}
+
+	/**
+	 * Blocks are {x, y, level} of an aligned square of 2^level by 2^level cells.
+	 */
+	private static long[] range(long[] block) {
+		int level = (int) block[2] ;
+		long start = (hilbert(block[0], block[1]) >>> (2 * level)) << (2 * level) ;
+		return new long[] {start, start + (1L << (2 * level)) - 1} ;
+	}
+
+	private static List<long[]> merge(List<long[]> ranges) {
+		ranges.sort(Comparator.comparingLong(r -> r[0]));
+		List<long[]> merged = new ArrayList<>(ranges.size()) ;
+		for (long[] range : ranges) {
+			long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1) ;
+			if (last != null && last[1] + 1 >= range[0]) {
+				last[1] = Math.max(last[1], range[1]) ;
+			} else {
+				merged.add(range) ;
+			}
+		}
+		return merged ;
+	}
+
+	private static long cell(int coordinate) {
+		return cell(coordinate, 0) ;
+	}
+
+	private static long cell(int coordinate, int level) {
+		return ((long) coordinate - Integer.MIN_VALUE) >>> (CELL_BITS + level) ;
+	}
+
+	private static long coverKey(int level, long cx, long cy) {
+		return ((long) level << (2 * ORDER)) | (cx << ORDER) | cy ;
+	}
+
+	private static long hilbert(long x, long y) {
+		long n = 1L << ORDER ;
+		long d = 0 ;
+		for (long s = n >>> 1; s > 0; s >>>= 1) {
+			long rx = (x & s) != 0 ? 1 : 0 ;
+			long ry = (y & s) != 0 ? 1 : 0 ;
+			d += s * s * ((3 * rx) ^ ry) ;
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x ;
+					y = n - 1 - y ;
+				}
+				long t = x ;
+				x = y ;
+				y = t ;
+			}
+		}
+		return d ;
+	}
+}
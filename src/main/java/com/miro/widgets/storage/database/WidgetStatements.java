@@ -0,0 +1,115 @@
+package com.miro.widgets.storage.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.WidgetConflictException;
+
+/**
+ * Updates and deletes of widget rows collected within a transaction and sent as one JDBC batch
+ * per statement, instead of a round trip and a flush of the persistence context per row. Every
+ * statement is conditioned on the version the row was read at, a row no longer at it fails the
+ * transaction with a conflict. The persistence context is flushed before the statements are
+ * sent and cleared after, once for all of them, so it holds no entities they made stale.
+ * Ids are bound as the 16 bytes the id column holds.
+ * <p>
+ * Updates are sent before deletes. Neither frees or takes a z index another statement of the
+ * batch needs, writes that do are preceded by a {@link #flush()}.
+ */
+final class WidgetStatements {
+
+	private static final String UPDATE = "UPDATE widget SET x = ?, y = ?, width = ?, height = ?, last_modification_date = ?, "
+			+ "spatial_key = ?, cover_key = ?, right_edge = ?, bottom_edge = ?, version = version + 1" ;
+	private static final String AT_VERSION = " WHERE id = ? AND board = ? AND version = ?" ;
+	private static final String UPDATE_AT_VERSION = UPDATE + AT_VERSION ;
+	private static final String UPDATE_WITH_ZINDEX_AT_VERSION = UPDATE + ", zindex = ?" + AT_VERSION ;
+	private static final String DELETE_AT_VERSION = "DELETE FROM widget" + AT_VERSION ;
+	private static final String DELETE = "DELETE FROM widget WHERE id = ? AND board = ?" ;
+
+	private final JdbcTemplate jdbcTemplate ;
+	private final EntityManager entityManager ;
+	private final Map<String, List<Statement>> batches = new LinkedHashMap<>() ;
+
+	WidgetStatements(JdbcTemplate jdbcTemplate, EntityManager entityManager) {
+		this.jdbcTemplate = jdbcTemplate ;
+		this.entityManager = entityManager ;
+		batches.put(UPDATE_AT_VERSION, new ArrayList<>()) ;
+		batches.put(UPDATE_WITH_ZINDEX_AT_VERSION, new ArrayList<>()) ;
+		batches.put(DELETE_AT_VERSION, new ArrayList<>()) ;
+	}
+
+	/**
+	 * Writes the widget over its row at the given version, with its z index or keeping the one of the row.
+	 */
+	void update(Widget widget, long version, boolean withZindex) {
+		List<Object> arguments = new ArrayList<>(Arrays.asList(widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight(),
+				widget.getLastModificationDate(), widget.getSpatialKey(), widget.getCoverKey(), widget.getRightEdge(), widget.getBottomEdge())) ;
+		if (withZindex) {
+			arguments.add(widget.getZindex()) ;
+		}
+		arguments.addAll(Arrays.asList(WidgetIds.toBytes(widget.getId()), widget.getBoard(), version)) ;
+		batches.get(withZindex ? UPDATE_WITH_ZINDEX_AT_VERSION : UPDATE_AT_VERSION).add(new Statement(widget.getId(), version, arguments.toArray())) ;
+	}
+
+	void delete(String board, String id, long version) {
+		batches.get(DELETE_AT_VERSION).add(new Statement(id, version, new Object[] {WidgetIds.toBytes(id), board, version})) ;
+	}
+
+	/**
+	 * Deletes the row right away, only at the version if one is given, and returns the number of rows deleted.
+	 */
+	int deleteNow(String board, String id, Long version) {
+		entityManager.flush();
+		byte[] key = WidgetIds.toBytes(id) ;
+		int deleted = version == null ? jdbcTemplate.update(DELETE, key, board) : jdbcTemplate.update(DELETE_AT_VERSION, key, board, version) ;
+		entityManager.clear();
+		return deleted ;
+	}
+
+	/**
+	 * Writes the inserts pending in the persistence context, then sends the collected statements.
+	 */
+	void flush() {
+		entityManager.flush();
+		if (batches.values().stream().allMatch(List::isEmpty)) {
+			return ;
+		}
+		for (Map.Entry<String, List<Statement>> batch : batches.entrySet()) {
+			List<Statement> statements = batch.getValue() ;
+			if (statements.isEmpty()) {
+				continue ;
+			}
+			int[] counts = jdbcTemplate.batchUpdate(batch.getKey(), statements.stream().map(s -> s.arguments).collect(Collectors.toList())) ;
+			for (int i = 0; i < counts.length; i++) {
+				// drivers may answer a batch without counts, only a count of 0 is known to have missed
+				if (counts[i] == 0) {
+					throw new WidgetConflictException(statements.get(i).id, statements.get(i).version) ;
+				}
+			}
+			statements.clear();
+		}
+		entityManager.clear();
+	}
+
+	private static final class Statement {
+		private final String id ;
+		private final long version ;
+		private final Object[] arguments ;
+
+		private Statement(String id, long version, Object[] arguments) {
+			this.id = id ;
+			this.version = version ;
+			this.arguments = arguments ;
+		}
+	}
+}
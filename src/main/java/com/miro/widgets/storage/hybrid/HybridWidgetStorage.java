@@ -0,0 +1,284 @@
+package com.miro.widgets.storage.hybrid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+import com.miro.widgets.storage.WidgetStorage;
+import com.miro.widgets.storage.database.JdbcWidgetStorage;
+import com.miro.widgets.storage.inmemory.InMemoryWidgetStorage;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serves every read from the in-memory storage and writes mutations through to the database,
+ * holding the lock of the board while doing so. Clearing all boards holds off every writer,
+ * so no mutation reaches one store before the clear and the other after it.
+ * The in-memory snapshot decides the z indexes, the database replays each mutation with the
+ * z indexes already assigned, so both end up in the same order. Versions are checked against
+ * the in-memory widgets, the database applies what memory accepted unconditionally.
+ * <p>
+ * In {@code sync} write mode a mutation returns once the database has committed it; if the
+ * database rejects it, the in-memory board is reloaded from the database. In {@code async}
+ * mode mutations are replayed in order by a single write-behind thread and a failed replay
+ * is only logged and counted.
+ */
+@Component
+@Primary
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "storage", havingValue = "hybrid")
+@Slf4j
+public class HybridWidgetStorage implements WidgetStorage {
+
+	private static final int LOAD_PAGE_SIZE = 1000 ;
+
+	private final InMemoryWidgetStorage memory ;
+	private final JdbcWidgetStorage database ;
+	private final StorageMetrics metrics ;
+	private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>() ;
+	private final ReentrantReadWriteLock clear = new ReentrantReadWriteLock() ;
+	private ThreadPoolExecutor writeBehind ;
+
+	@Value("${widgets.hybrid.write-mode:sync}")
+	private String writeMode ;
+
+	@PostConstruct
+	public void init() {
+		load();
+		if ("async".equalsIgnoreCase(writeMode)) {
+			log.info("hybrid storage writes behind to the database");
+			writeBehind = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "widgets-write-behind") ;
+				thread.setDaemon(true);
+				return thread ;
+			}) ;
+			metrics.gaugeWriteBehindBacklog(writeBehind, e -> e.getQueue().size()) ;
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		if (writeBehind != null) {
+			writeBehind.shutdown();
+			if (!writeBehind.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.warn("{} database writes were not replayed before shutdown", writeBehind.getQueue().size());
+			}
+		}
+	}
+
+	@Override
+	public Optional<Widget> findById(String board, String id) {
+		return memory.findById(board, id) ;
+	}
+
+	@Override
+	public List<Widget> findAll(String board, Pageable pageable) {
+		return memory.findAll(board, pageable) ;
+	}
+
+	@Override
+	public List<Widget> findAllAfter(String board, Integer afterZindex, int limit) {
+		return memory.findAllAfter(board, afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegion(String board, RegionDto region) {
+		return memory.findAllByRegion(board, region) ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) {
+		return memory.findAllByRegionAfter(board, region, afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllAt(String board, int x, int y, int limit) {
+		return memory.findAllAt(board, x, y, limit) ;
+	}
+
+	@Override
+	public long version(String board) {
+		return memory.version(board) ;
+	}
+
+	@Override
+	public Optional<WidgetChanges> changesSince(String board, long version) {
+		return memory.changesSince(board, version) ;
+	}
+
+	@Override
+	public long count() {
+		return memory.count() ;
+	}
+
+	@Override
+	public void forEach(String board, Pageable pageable, Consumer<Widget> action) {
+		memory.forEach(board, pageable, action);
+	}
+
+	@Override
+	public void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) {
+		memory.forEachByRegion(board, region, action);
+	}
+
+	@Override
+	public Widget create(Widget widget) {
+		return locked(widget.getBoard(), () -> {
+			memory.create(widget) ;
+			Widget replayed = copy(widget) ;
+			writeThrough(widget.getBoard(), () -> database.create(replayed)) ;
+			return widget ;
+		}) ;
+	}
+
+	@Override
+	public WidgetOperationResult apply(WidgetOperation operation) {
+		if (operation.getType() == WidgetOperation.Type.CREATE) {
+			return WidgetOperationResult.created(create(operation.getWidget())) ;
+		}
+		return locked(operation.getBoard(), () -> {
+			WidgetOperationResult result = memory.apply(operation) ;
+			if (result.getStatus() == WidgetOperationResult.Status.UPDATED) {
+				Widget replayed = copy(operation.getWidget()) ;
+				writeThrough(operation.getBoard(), () -> database.update(replayed)) ;
+			} else if (result.getStatus() == WidgetOperationResult.Status.DELETED) {
+				writeThrough(operation.getBoard(), () -> database.deleteById(operation.getBoard(), operation.getId())) ;
+			}
+			return result ;
+		}) ;
+	}
+
+	@Override
+	public List<WidgetOperationResult> applyBatch(String board, List<WidgetOperation> operations) {
+		return locked(board, () -> {
+			List<WidgetOperationResult> results = memory.applyBatch(board, operations) ;
+			List<WidgetOperation> replayed = new ArrayList<>(operations.size()) ;
+			for (int i = 0; i < operations.size(); i++) {
+				WidgetOperation operation = operations.get(i) ;
+				if (results.get(i).getStatus() != WidgetOperationResult.Status.CONFLICT) {
+					replayed.add(new WidgetOperation(operation.getType(), operation.getBoard(), operation.getId(), operation.getWidget() == null ? null : copy(operation.getWidget()), null)) ;
+				}
+			}
+			writeThrough(board, () -> database.applyBatch(board, replayed)) ;
+			return results ;
+		}) ;
+	}
+
+	@Override
+	public void deleteAll() {
+		clear.writeLock().lock();
+		try {
+			memory.deleteAll();
+			if (writeBehind != null) {
+				writeBehind.execute(database::deleteAll);
+			} else {
+				database.deleteAll();
+			}
+		} finally {
+			clear.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Loads every board into memory, page by page in z index order.
+	 */
+	private void load() {
+		long start = System.nanoTime() ;
+		int loaded = 0 ;
+		for (String board : database.findBoards()) {
+			loaded += load(board) ;
+		}
+		log.info("loaded {} widgets from the database in {} ms", loaded, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	private int load(String board) {
+		List<Widget> widgets = new ArrayList<>() ;
+		Integer after = null ;
+		while (true) {
+			List<Widget> page = database.findAllAfter(board, after, LOAD_PAGE_SIZE) ;
+			widgets.addAll(page) ;
+			if (page.size() < LOAD_PAGE_SIZE) {
+				break ;
+			}
+			after = page.get(page.size() - 1).getZindex() ;
+		}
+		memory.replaceAll(board, widgets);
+		return widgets.size() ;
+	}
+
+	private void writeThrough(String board, Runnable write) {
+		if (writeBehind != null) {
+			writeBehind.execute(() -> {
+				try {
+					write.run();
+				} catch (RuntimeException e) {
+					metrics.recordWriteBehindFailure();
+					log.error("database write failed, the database no longer matches the in-memory board", e);
+				}
+			});
+			return ;
+		}
+		try {
+			write.run();
+		} catch (RuntimeException e) {
+			log.warn("database write failed, reloading board {} from the database", board, e);
+			load(board);
+			throw e ;
+		}
+	}
+
+	private <T> T locked(String board, Supplier<T> action) {
+		ReentrantLock lock = locks.computeIfAbsent(board, b -> new ReentrantLock()) ;
+		clear.readLock().lock();
+		lock.lock();
+		try {
+			return action.get() ;
+		} finally {
+			lock.unlock();
+			clear.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The database may assign state to the widget it saves, the copy isolates the database
+	 * write from the caller's instance. It has no version, so the database applies it
+	 * whatever version its row has.
+	 */
+	private Widget copy(Widget widget) {
+		return Widget.builder()
+				.id(widget.getId())
+				.board(widget.getBoard())
+				.x(widget.getX())
+				.y(widget.getY())
+				.zindex(widget.getZindex())
+				.width(widget.getWidth())
+				.height(widget.getHeight())
+				.lastModificationDate(widget.getLastModificationDate())
+				.build() ;
+	}
+}
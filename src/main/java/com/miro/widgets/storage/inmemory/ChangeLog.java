@@ -0,0 +1,77 @@
+package com.miro.widgets.storage.inmemory;
+
+import java.util.UUID;
+
+import com.miro.widgets.storage.inmemory.collection.PersistentHashMap;
+import com.miro.widgets.storage.inmemory.collection.PersistentTreeMap;
+
+/**
+ * Immutable log of the version at which every widget of a board last changed. Every recorded
+ * change advances the version of the board by one. Only the latest {@code capacity} changed
+ * widgets are kept, so the changes after a version can be told only while none after it
+ * has been dropped.
+ */
+final class ChangeLog {
+
+	private final long version ;
+	private final long retainedAfter ;
+	private final int capacity ;
+	private final PersistentTreeMap<Long, UUID> idsByVersion ;
+	private final PersistentHashMap<UUID, Long> versionsById ;
+
+	private ChangeLog(long version, long retainedAfter, int capacity, PersistentTreeMap<Long, UUID> idsByVersion, PersistentHashMap<UUID, Long> versionsById) {
+		this.version = version ;
+		this.retainedAfter = retainedAfter ;
+		this.capacity = capacity ;
+		this.idsByVersion = idsByVersion ;
+		this.versionsById = versionsById ;
+	}
+
+	static ChangeLog empty(long version, int capacity) {
+		return new ChangeLog(version, version, capacity, PersistentTreeMap.empty(), PersistentHashMap.empty()) ;
+	}
+
+	long getVersion() {
+		return version ;
+	}
+
+	int getCapacity() {
+		return capacity ;
+	}
+
+	ChangeLog record(UUID id) {
+		long next = version + 1 ;
+		Long previous = versionsById.get(id) ;
+		PersistentTreeMap<Long, UUID> ids = (previous == null ? idsByVersion : idsByVersion.remove(previous)).put(next, id) ;
+		PersistentHashMap<UUID, Long> versions = versionsById.put(id, next) ;
+		long retained = retainedAfter ;
+		if (ids.size() > capacity) {
+			long oldest = ids.firstKey() ;
+			versions = versions.remove(ids.get(oldest)) ;
+			ids = ids.remove(oldest) ;
+			retained = oldest ;
+		}
+		return new ChangeLog(next, retained, capacity, ids, versions) ;
+	}
+
+	/**
+	 * Advances the version and forgets every change, for changes too many to record one by one.
+	 */
+	ChangeLog truncate() {
+		return empty(version + 1, capacity) ;
+	}
+
+	/**
+	 * Whether every change after the version is still known.
+	 */
+	boolean retains(long since) {
+		return since >= retainedAfter && since <= version ;
+	}
+
+	/**
+	 * Ids of the widgets changed after the version, in the order of their latest change.
+	 */
+	Iterable<UUID> changedAfter(long since) {
+		return idsByVersion.tailValues(since, false) ;
+	}
+}
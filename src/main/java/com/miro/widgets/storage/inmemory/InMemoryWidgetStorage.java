@@ -2,150 +2,408 @@ package com.miro.widgets.storage.inmemory;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Component;
 
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.ChangeFeed;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetEvent;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
+import com.miro.widgets.storage.inmemory.spatial.SpatialIndex;
 
-import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Every board has its own snapshot reference, so writers on different boards never retry
+ * against each other and the cost of a write depends only on the size of its board.
+ * <p>
+ * Every change of a widget, including a move by a z index shift, advances the version of its
+ * board and is kept in the bounded change log of the snapshot, so clients can fetch only the
+ * widgets changed since the version they last saw. Versions start at the startup time in
+ * microseconds, so they keep growing across restarts.
+ * <p>
+ * While the change feed is enabled, every commit also records its changes, including the
+ * widgets moved by z index shifts, and publishes them once the snapshot is published.
+ */
 @Component
-@ConditionalOnProperty(name = "storage", havingValue = "inmemory", matchIfMissing = true)
+@ConditionalOnExpression("'${storage:inmemory}' == 'inmemory' or '${storage:inmemory}' == 'hybrid'")
 @Slf4j
-@RequiredArgsConstructor
 public class InMemoryWidgetStorage implements WidgetStorage {
 	
 	private final IndexOrganizer zIndexOrganizer ;
-	private CombinedStorage storage = new CombinedStorage(new HashMap<>(), new ArrayList<>()) ;
-	private ReentrantLock lock = new ReentrantLock() ;
+	private final StorageMetrics metrics ;
+	private final ChangeFeed changeFeed ;
+	private final WidgetSnapshot empty ;
+	private final Map<String, AtomicReference<WidgetSnapshot>> boards = new ConcurrentHashMap<>() ;
+	
+	public InMemoryWidgetStorage(IndexOrganizer zIndexOrganizer, SpatialIndex emptySpatialIndex, StorageMetrics metrics, ChangeFeed changeFeed,
+			@Value("${widgets.changes.capacity:1000}") int changesCapacity) {
+		this.zIndexOrganizer = zIndexOrganizer ;
+		this.metrics = metrics ;
+		this.changeFeed = changeFeed ;
+		this.empty = WidgetSnapshot.empty(emptySpatialIndex, ChangeLog.empty(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), changesCapacity)) ;
+	}
 
 	@Override
-	public Optional<Widget> findById(String id) {
-		return Optional.ofNullable(storage.getWidgetMap().get(id));
+	public Optional<Widget> findById(String board, String id) {
+		return Optional.ofNullable(snapshot(board).get(id));
 	}
 
 	@Override
-	public List<Widget> findAll(Pageable pageable) {
-		return storage.getWidgetMap().values().stream()
-				.sorted(Comparator.comparingInt(Widget::getZindex))
-				.skip(pageable.getPageNumber() * pageable.getPageSize())
-				.limit(pageable.getPageSize())
-				.collect(Collectors.toList());
+	public List<Widget> findAll(String board, Pageable pageable) {
+		return take(snapshot(board).orderedByZindexFromRank((int) pageable.getOffset()), pageable.getPageSize()) ;
 	}
 
 	@Override
-	public Widget create(Widget widget) {
-		lock.lock(); 
-		try {
-			Map<String, Widget> updatedMap = new HashMap<>(storage.getWidgetMap());
-			
-			if (widget.isZindexNotSpecified()) {
-				widget.setZindex(zIndexOrganizer.getMaxIndex(updatedMap) + 1);
-				log.info("widget {} has no z index using max value {}", widget.getId(), widget.getZindex());
-			} else {
-				log.info("shifting other widgets");
-				updatedMap = zIndexOrganizer.shiftIndexes(widget, updatedMap) ;
-			}
-
-			updatedMap.put(widget.getId(), widget) ;
-			storage = new CombinedStorage(updatedMap, sortByArea(updatedMap)) ;
-		} finally {
-			lock.unlock(); 
+	public List<Widget> findAllAfter(String board, Integer afterZindex, int limit) {
+		WidgetSnapshot snapshot = snapshot(board) ;
+		if (afterZindex == null) {
+			return take(snapshot.orderedByZindex(), limit) ;
 		}
-		return widget ;
+		return take(snapshot.orderedByZindexAfter(afterZindex), limit) ;
 	}
 
 	@Override
-	public Widget update(Widget widget) {
-		lock.lock(); 
-		try {
-			Map<String, Widget> updatedMap = new HashMap<>(storage.getWidgetMap());
-			
-			if (zIndexHasBeenModified(widget, updatedMap)) {
-				log.info("widget has modified z index");
-				log.info("shifting other widgets");
-				updatedMap.remove(widget.getId()) ;
-				updatedMap = zIndexOrganizer.shiftIndexes(widget, updatedMap) ;
-			}
+	public long version(String board) {
+		return snapshot(board).getVersion() ;
+	}
 
-			updatedMap.put(widget.getId(), widget) ;
-			storage = new CombinedStorage(updatedMap, sortByArea(updatedMap)) ;
-		} finally {
-			lock.unlock(); 
-		}
+	@Override
+	public Optional<WidgetChanges> changesSince(String board, long version) {
+		return Optional.ofNullable(snapshot(board).changesSince(version)) ;
+	}
+
+	@Override
+	public long count() {
+		return boards.values().stream().mapToLong(board -> board.get().size()).sum() ;
+	}
+
+	@Override
+	public Widget create(Widget widget) {
+		Integer zindex = widget.getZindex() ;
+		commit(widget.getBoard(), (snapshot, events) -> {
+			widget.setZindex(zindex);
+			return applyCreate(widget, snapshot, events) ;
+		}) ;
 		return widget ;
 	}
 
 	@Override
-	public void deleteById(String id) {
-		lock.lock(); 
-		try {
-			Map<String, Widget> updatedMap = new HashMap<>(storage.getWidgetMap());
-			updatedMap.remove(id) ;
-			storage = new CombinedStorage(updatedMap, sortByArea(updatedMap)) ;
-		} finally {
-			lock.unlock(); 
+	public WidgetOperationResult apply(WidgetOperation operation) {
+		switch (operation.getType()) {
+		case CREATE:
+			return WidgetOperationResult.created(create(operation.getWidget())) ;
+		case UPDATE:
+			return updateWidget(operation) ;
+		default:
+			return deleteWidget(operation) ;
 		}
 	}
 
+	/**
+	 * The version is checked against the snapshot the update is applied to, so the update is
+	 * a compare-and-set of the widget within the compare-and-set of the snapshot.
+	 */
+	private WidgetOperationResult updateWidget(WidgetOperation operation) {
+		Widget widget = operation.getWidget() ;
+		Integer zindex = widget.getZindex() ;
+		Widget[] previous = new Widget[1] ;
+		commit(widget.getBoard(), (snapshot, events) -> {
+			previous[0] = snapshot.get(widget.getId()) ;
+			if (previous[0] == null) {
+				return snapshot ;
+			}
+			if (!isAt(previous[0], operation.getVersion())) {
+				throw new WidgetConflictException(widget.getId(), operation.getVersion()) ;
+			}
+			widget.setZindex(zindex);
+			return applyUpdate(widget, snapshot, events) ;
+		}) ;
+		return previous[0] == null ? WidgetOperationResult.notFound(operation) : WidgetOperationResult.updated(widget, previous[0]) ;
+	}
+
+	private WidgetOperationResult deleteWidget(WidgetOperation operation) {
+		Widget[] previous = new Widget[1] ;
+		commit(operation.getBoard(), (snapshot, events) -> {
+			previous[0] = snapshot.get(operation.getId()) ;
+			if (previous[0] == null) {
+				return snapshot ;
+			}
+			if (!isAt(previous[0], operation.getVersion())) {
+				throw new WidgetConflictException(operation.getId(), operation.getVersion()) ;
+			}
+			return applyDelete(operation.getId(), snapshot, events) ;
+		}) ;
+		return previous[0] == null ? WidgetOperationResult.notFound(operation) : WidgetOperationResult.deleted(operation.getId(), previous[0]) ;
+	}
+
+	@Override
+	public List<WidgetOperationResult> applyBatch(String board, List<WidgetOperation> operations) {
+		List<Integer> zindexes = operations.stream()
+				.map(o -> o.getWidget() == null ? null : o.getWidget().getZindex())
+				.collect(Collectors.toList()) ;
+		List<WidgetOperationResult> results = new ArrayList<>(operations.size()) ;
+		commit(board, (snapshot, events) -> {
+			results.clear();
+			for (int i = 0; i < operations.size(); i++) {
+				WidgetOperation operation = operations.get(i) ;
+				switch (operation.getType()) {
+				case CREATE:
+					operation.getWidget().setZindex(zindexes.get(i));
+					snapshot = applyCreate(operation.getWidget(), snapshot, events) ;
+					results.add(WidgetOperationResult.created(operation.getWidget())) ;
+					break ;
+				case UPDATE:
+					Widget updated = snapshot.get(operation.getId()) ;
+					if (updated == null) {
+						results.add(WidgetOperationResult.notFound(operation)) ;
+					} else if (!isAt(updated, operation.getVersion())) {
+						results.add(WidgetOperationResult.conflict(operation)) ;
+					} else {
+						operation.getWidget().setZindex(zindexes.get(i));
+						snapshot = applyUpdate(operation.getWidget(), snapshot, events) ;
+						results.add(WidgetOperationResult.updated(operation.getWidget(), updated)) ;
+					}
+					break ;
+				case DELETE:
+					Widget deleted = snapshot.get(operation.getId()) ;
+					if (deleted == null) {
+						results.add(WidgetOperationResult.notFound(operation)) ;
+					} else if (!isAt(deleted, operation.getVersion())) {
+						results.add(WidgetOperationResult.conflict(operation)) ;
+					} else {
+						snapshot = applyDelete(operation.getId(), snapshot, events) ;
+						results.add(WidgetOperationResult.deleted(operation.getId(), deleted)) ;
+					}
+					break ;
+				}
+			}
+			return snapshot ;
+		}) ;
+		log.info("applied batch of {} operations", operations.size());
+		return results ;
+	}
+
 	@Override
 	public void deleteAll() {
-		lock.lock(); 
-		try {
-			storage = new CombinedStorage(new HashMap<>(), new ArrayList<>()) ;
-		} finally {
-			lock.unlock(); 
-		}
+		boards.values().forEach(storage -> storage.updateAndGet(empty::following));
+	}
+
+	/**
+	 * Replaces the whole board with the given widgets in one publish. The widgets must
+	 * have distinct z indexes.
+	 */
+	public void replaceAll(String board, Iterable<Widget> widgets) {
+		List<Widget> ordered = new ArrayList<>() ;
+		widgets.forEach(ordered::add) ;
+		ordered.sort(Comparator.comparing(Widget::getZindex));
+		WidgetSnapshot replaced = WidgetSnapshot.of(ordered, empty.getSpatialIndex()) ;
+		board(board).updateAndGet(replaced::following);
+	}
+	
+	/**
+	 * The widgets of every board in z index order, taken from the snapshots current at the time of the call.
+	 */
+	public Map<String, Iterable<Widget>> snapshotBoards() {
+		Map<String, Iterable<Widget>> snapshots = new TreeMap<>() ;
+		boards.forEach((board, storage) -> snapshots.put(board, storage.get().orderedByZindex())) ;
+		return snapshots ;
 	}
 	
 	@Override
-	public List<Widget> findAllByRegion(RegionDto region) {
+	public List<Widget> findAllByRegion(String board, RegionDto region) {
 		List<Widget> withInRegion = new ArrayList<>() ;
-		for (Widget widget : storage.getWidgetsSortedByArea()) {
-			if (widget.getArea() <= region.getArea()) {
-				withInRegion.add(widget) ;
-			} else {
-				break ;
+		forEachByRegion(board, region, withInRegion::add) ;
+		return withInRegion ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) {
+		return snapshot(board).withinByZindex(region, afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllAt(String board, int x, int y, int limit) {
+		return snapshot(board).containingByZindexDescending(x, y, limit) ;
+	}
+
+	@Override
+	public void forEach(String board, Pageable pageable, Consumer<Widget> action) {
+		Iterator<Widget> iterator = snapshot(board).orderedByZindexFromRank((int) pageable.getOffset()).iterator() ;
+		for (int i = 0; i < pageable.getPageSize() && iterator.hasNext(); i++) {
+			action.accept(iterator.next());
+		}
+	}
+
+	@Override
+	public void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) {
+		WidgetSnapshot snapshot = snapshot(board) ;
+		int[] counts = new int[2] ;
+		snapshot.getSpatialIndex().search(region, widget -> {
+			counts[0]++ ;
+			if (isWithinRegion(widget, region)) {
+				counts[1]++ ;
+				action.accept(snapshot.get(widget.getKey()));
+			}
+		});
+		metrics.recordRegionQuery(counts[0], counts[1]);
+	}
+
+	/**
+	 * Builds the next snapshot from the current one without holding a lock and publishes
+	 * it only if no other writer got in between, otherwise starts over from the newer one.
+	 * The change must not have side effects besides the returned snapshot.
+	 */
+	private void commit(String board, BiFunction<WidgetSnapshot, List<WidgetEvent>, WidgetSnapshot> change) {
+		AtomicReference<WidgetSnapshot> storage = board(board) ;
+		if (!changeFeed.isEnabled()) {
+			commit(storage, change, null) ;
+			return ;
+		}
+		// the feed must receive the changes in commit order, so the commits of a board take turns
+		synchronized (storage) {
+			List<WidgetEvent> events = new ArrayList<>() ;
+			commit(storage, change, events) ;
+			changeFeed.publish(events);
+		}
+	}
+
+	/**
+	 * The change records its events into the list unless it is null, the list is cleared before every attempt.
+	 */
+	private void commit(AtomicReference<WidgetSnapshot> storage, BiFunction<WidgetSnapshot, List<WidgetEvent>, WidgetSnapshot> change, List<WidgetEvent> events) {
+		while (true) {
+			WidgetSnapshot current = storage.get() ;
+			long start = System.nanoTime() ;
+			if (events != null) {
+				events.clear();
+			}
+			WidgetSnapshot updated = change.apply(current, events) ;
+			metrics.recordSnapshotBuild(System.nanoTime() - start);
+			if (storage.compareAndSet(current, updated)) {
+				return ;
 			}
+			metrics.recordSnapshotRetry();
+			log.debug("snapshot changed concurrently, retrying");
 		}
-		
-		return withInRegion
-				.stream()
-				.filter(w -> w.getX() >= region.getX() && w.getX() <= region.getX() + region.getWidth()
-						  && w.getX() + w.getWidth() >= region.getX() &&  w.getX() + w.getWidth() <= region.getX() + region.getWidth()
-						  && w.getY() >= region.getY() && w.getY() <= region.getY() + region.getHeight()
-						  && w.getY() + w.getHeight() >= region.getY() && w.getY() + w.getHeight() <= region.getY() + region.getHeight())
-				.collect(Collectors.toList());
 	}
 
-	private boolean zIndexHasBeenModified(Widget widget, Map<String, Widget> updatedMap) {
-		return !updatedMap.get(widget.getId()).getZindex().equals(widget.getZindex()) ;
+	private WidgetSnapshot snapshot(String board) {
+		AtomicReference<WidgetSnapshot> storage = boards.get(board) ;
+		return storage == null ? empty : storage.get() ;
 	}
 
-	private List<Widget> sortByArea(Map<String, Widget> widgetMap) {
-		return widgetMap.values().stream().sorted(Comparator.comparingInt(Widget::getArea)).collect(Collectors.toList()) ;
+	private AtomicReference<WidgetSnapshot> board(String board) {
+		return boards.computeIfAbsent(board, b -> new AtomicReference<>(empty)) ;
 	}
-	
-	@Getter
-	private class CombinedStorage {
-		private Map<String, Widget> widgetMap = new HashMap<>() ;
-		private List<Widget> widgetsSortedByArea ;
-		
-		public CombinedStorage(Map<String, Widget> widgetMap, List<Widget> widgetsSortedByArea) {
-			this.widgetMap = widgetMap ;
-			this.widgetsSortedByArea = widgetsSortedByArea ;
+
+	private WidgetSnapshot applyCreate(Widget widget, WidgetSnapshot snapshot, List<WidgetEvent> events) {
+		if (widget.isZindexNotSpecified()) {
+			widget.setZindex(zIndexOrganizer.getMaxIndex(snapshot) + 1);
+			log.info("widget {} has no z index using max value {}", widget.getId(), widget.getZindex());
+		} else {
+			log.info("shifting other widgets");
+			snapshot = shiftIndexes(widget, snapshot, events) ;
+		}
+		widget.setVersion(1L);
+		snapshot = snapshot.put(widget).changed(widget.getId()) ;
+		if (events != null) {
+			events.add(WidgetEvent.created(snapshot.get(widget.getId()))) ;
+		}
+		return snapshot ;
+	}
+
+	private WidgetSnapshot applyUpdate(Widget widget, WidgetSnapshot snapshot, List<WidgetEvent> events) {
+		Widget previous = events == null ? null : snapshot.get(widget.getId()) ;
+		Long current = snapshot.get(widget.getId()).getVersion() ;
+		widget.setVersion(current == null ? 1L : current + 1);
+		if (widget.isZindexNotSpecified()) {
+			widget.setZindex(snapshot.get(widget.getId()).getZindex());
+		}
+		if (zIndexHasBeenModified(widget, snapshot)) {
+			log.info("widget has modified z index");
+			log.info("shifting other widgets");
+			snapshot = snapshot.remove(widget.getId()) ;
+			snapshot = shiftIndexes(widget, snapshot, events) ;
+		}
+		snapshot = snapshot.put(widget).changed(widget.getId()) ;
+		if (events != null) {
+			events.add(WidgetEvent.updated(previous, snapshot.get(widget.getId()))) ;
+		}
+		return snapshot ;
+	}
+
+	private WidgetSnapshot applyDelete(String id, WidgetSnapshot snapshot, List<WidgetEvent> events) {
+		Widget previous = snapshot.get(id) ;
+		if (previous == null) {
+			return snapshot ;
+		}
+		if (events != null) {
+			events.add(WidgetEvent.deleted(previous)) ;
+		}
+		return snapshot.remove(id).changed(id) ;
+	}
+
+	/**
+	 * Shifts the widgets in the way of the widget and records them as they are after the shift.
+	 */
+	private WidgetSnapshot shiftIndexes(Widget widget, WidgetSnapshot snapshot, List<WidgetEvent> events) {
+		int length = snapshot.runLength(widget.getZindex()) ;
+		snapshot = zIndexOrganizer.shiftIndexes(widget, snapshot) ;
+		if (length == 0) {
+			return snapshot ;
 		}
+		Iterable<Widget> shifted = snapshot.orderedByZindexAfter(widget.getZindex()) ;
+		if (events != null) {
+			List<Widget> taken = take(shifted, length) ;
+			events.add(WidgetEvent.shifted(widget.getBoard(), taken)) ;
+			shifted = taken ;
+		}
+		return snapshot.changed(shifted, length) ;
+	}
+
+	private List<Widget> take(Iterable<Widget> widgets, int limit) {
+		List<Widget> result = new ArrayList<>(limit) ;
+		Iterator<Widget> iterator = widgets.iterator() ;
+		while (result.size() < limit && iterator.hasNext()) {
+			result.add(iterator.next()) ;
+		}
+		return result ;
+	}
+
+	/**
+	 * Whether the widget is at the version, any version matches if it is null.
+	 */
+	private boolean isAt(Widget widget, Long version) {
+		return version == null || version.equals(widget.getVersion()) ;
+	}
+
+	private boolean zIndexHasBeenModified(Widget widget, WidgetSnapshot snapshot) {
+		return !snapshot.get(widget.getId()).getZindex().equals(widget.getZindex()) ;
+	}
+	
+	private boolean isWithinRegion(PackedWidget w, RegionDto region) {
+		return w.getX() >= region.getX() && w.getX() + w.getWidth() <= region.getX() + region.getWidth()
+				&& w.getY() >= region.getY() && w.getY() + w.getHeight() <= region.getY() + region.getHeight() ;
 	}
 }
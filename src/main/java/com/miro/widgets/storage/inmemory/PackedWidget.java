@@ -0,0 +1,110 @@
+package com.miro.widgets.storage.inmemory;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+
+/**
+ * Widget as held by the in-memory snapshots: the id is kept as its UUID, coordinates, size, z index
+ * and version are primitive fields, the modification date is kept as epoch seconds and nanos,
+ * and board names are shared. The id UUID is the key of the widget in every index. A {@link Widget} is only built when a widget is read. The packing is per record,
+ * widgets are not stored in columns.
+ */
+public final class PackedWidget {
+
+	private static final int NO_DATE = -1 ;
+	private static final long NO_VERSION = 0 ;
+
+	private final UUID key ;
+	private final String board ;
+	private final int x ;
+	private final int y ;
+	private final int width ;
+	private final int height ;
+	private final int zindex ;
+	private final long modifiedSeconds ;
+	private final int modifiedNanos ;
+	private final long version ;
+
+	private PackedWidget(UUID key, String board, int x, int y, int width, int height, int zindex, long modifiedSeconds, int modifiedNanos, long version) {
+		this.key = key ;
+		this.board = board ;
+		this.x = x ;
+		this.y = y ;
+		this.width = width ;
+		this.height = height ;
+		this.zindex = zindex ;
+		this.modifiedSeconds = modifiedSeconds ;
+		this.modifiedNanos = modifiedNanos ;
+		this.version = version ;
+	}
+
+	/**
+	 * Packs the widget, which must have its coordinates, size and z index set.
+	 */
+	public static PackedWidget of(Widget widget) {
+		LocalDateTime modified = widget.getLastModificationDate() ;
+		return new PackedWidget(WidgetIds.parse(widget.getId()),
+				widget.getBoard() == null ? null : widget.getBoard().intern(),
+				widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight(), widget.getZindex(),
+				modified == null ? 0 : modified.toEpochSecond(ZoneOffset.UTC),
+				modified == null ? NO_DATE : modified.getNano(),
+				widget.getVersion() == null ? NO_VERSION : widget.getVersion()) ;
+	}
+
+	public Widget toWidget() {
+		return toWidget(0, null) ;
+	}
+
+	/**
+	 * Builds the widget moved up by the given number of z indexes, modified at the given time if it is set.
+	 */
+	public Widget toWidget(int shift, LocalDateTime shiftedAt) {
+		return Widget.builder()
+				.id(key.toString())
+				.board(board)
+				.x(x)
+				.y(y)
+				.zindex(zindex + shift)
+				.width(width)
+				.height(height)
+				.lastModificationDate(shiftedAt != null ? shiftedAt : getLastModificationDate())
+				.version(getVersion())
+				.build() ;
+	}
+
+	public UUID getKey() {
+		return key ;
+	}
+
+	public int getX() {
+		return x ;
+	}
+
+	public int getY() {
+		return y ;
+	}
+
+	public int getWidth() {
+		return width ;
+	}
+
+	public int getHeight() {
+		return height ;
+	}
+
+	public int getZindex() {
+		return zindex ;
+	}
+
+	public Long getVersion() {
+		return version == NO_VERSION ? null : version ;
+	}
+
+	public LocalDateTime getLastModificationDate() {
+		return modifiedNanos == NO_DATE ? null : LocalDateTime.ofEpochSecond(modifiedSeconds, modifiedNanos, ZoneOffset.UTC) ;
+	}
+}
@@ -0,0 +1,324 @@
+package com.miro.widgets.storage.inmemory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.inmemory.collection.PersistentHashMap;
+import com.miro.widgets.storage.inmemory.spatial.SpatialIndex;
+
+/**
+ * Immutable view of the in-memory board. All orders share structure with the
+ * previous snapshot, so each write only allocates the nodes on its update paths.
+ * <p>
+ * Widgets are ordered by sparse internal order keys rather than by their z index,
+ * which lets a shift of a whole run of z indexes be applied lazily by the {@link ZOrderTree}.
+ * When two neighbours run out of room between their keys, a small window of keys
+ * around the insert position is relabelled.
+ * <p>
+ * Each snapshot carries the version of its board and the log of its latest changes, which
+ * writers advance explicitly next to the changes of the widgets.
+ * <p>
+ * Widgets are keyed by the UUID of their id, the string form is only parsed on the way in and
+ * built again when a widget is read.
+ */
+final class WidgetSnapshot {
+
+	private static final long MIN_KEY = -(1L << 61) ;
+	private static final long MAX_KEY = 1L << 61 ;
+	private static final long KEY_SPACING = 1L << 20 ;
+	private static final long MIN_RELABEL_SPACING = 1L << 10 ;
+
+	private final PersistentHashMap<UUID, Long> orderKeys ;
+	private final ZOrderTree widgetsByZindex ;
+	private final SpatialIndex spatialIndex ;
+	private final ChangeLog changes ;
+
+	private WidgetSnapshot(PersistentHashMap<UUID, Long> orderKeys, ZOrderTree widgetsByZindex, SpatialIndex spatialIndex, ChangeLog changes) {
+		this.orderKeys = orderKeys ;
+		this.widgetsByZindex = widgetsByZindex ;
+		this.spatialIndex = spatialIndex ;
+		this.changes = changes ;
+	}
+
+	static WidgetSnapshot empty(SpatialIndex emptySpatialIndex) {
+		return empty(emptySpatialIndex, ChangeLog.empty(0, 0)) ;
+	}
+
+	static WidgetSnapshot empty(SpatialIndex emptySpatialIndex, ChangeLog changes) {
+		return new WidgetSnapshot(PersistentHashMap.empty(), ZOrderTree.EMPTY, emptySpatialIndex, changes) ;
+	}
+
+	/**
+	 * Snapshot of the widgets, which must be ordered by distinct z indexes. The orders are built
+	 * at once instead of through a new snapshot per widget.
+	 */
+	static WidgetSnapshot of(List<Widget> widgets, SpatialIndex emptySpatialIndex) {
+		int size = widgets.size() ;
+		long[] keys = new long[size] ;
+		List<UUID> ids = new ArrayList<>(size) ;
+		List<Long> boxedKeys = new ArrayList<>(size) ;
+		PackedWidget[] packed = new PackedWidget[size] ;
+		for (int i = 0; i < size; i++) {
+			keys[i] = (i - size / 2) * KEY_SPACING ;
+			packed[i] = PackedWidget.of(widgets.get(i)) ;
+			ids.add(packed[i].getKey()) ;
+			boxedKeys.add(keys[i]) ;
+		}
+		return new WidgetSnapshot(PersistentHashMap.of(ids, boxedKeys),
+				ZOrderTree.of(keys, packed),
+				emptySpatialIndex.insertAll(Arrays.asList(packed)),
+				ChangeLog.empty(0, 0)) ;
+	}
+
+	public Widget get(String id) {
+		return get(WidgetIds.parse(id)) ;
+	}
+
+	public Widget get(UUID id) {
+		Long key = orderKeys.get(id) ;
+		return key == null ? null : widgetsByZindex.get(key) ;
+	}
+
+	public Widget findByZindex(int zindex) {
+		int rank = widgetsByZindex.rankOfZindex(zindex) ;
+		if (rank == widgetsByZindex.size()) {
+			return null ;
+		}
+		Widget widget = widgetsByZindex.getByRank(rank) ;
+		return widget.getZindex() == zindex ? widget : null ;
+	}
+
+	public int getMaxIndex() {
+		int size = widgetsByZindex.size() ;
+		return size == 0 ? 0 : widgetsByZindex.getByRank(size - 1).getZindex() ;
+	}
+
+	public int size() {
+		return widgetsByZindex.size() ;
+	}
+
+	public Iterable<Widget> orderedByZindex() {
+		return widgetsByZindex.fromRank(0) ;
+	}
+
+	public Iterable<Widget> orderedByZindexFromRank(int rank) {
+		return widgetsByZindex.fromRank(rank) ;
+	}
+
+	public Iterable<Widget> orderedByZindexAfter(int zindex) {
+		if (zindex == Integer.MAX_VALUE) {
+			return widgetsByZindex.fromRank(widgetsByZindex.size()) ;
+		}
+		return widgetsByZindex.fromRank(widgetsByZindex.rankOfZindex(zindex + 1)) ;
+	}
+
+	/**
+	 * At most {@code limit} widgets lying within the region with a z index above the given one,
+	 * or from the lowest one if it is null, in ascending z order.
+	 */
+	public List<Widget> withinByZindex(RegionDto region, Integer afterZindex, int limit) {
+		List<Widget> result = new ArrayList<>() ;
+		if (limit <= 0 || (afterZindex != null && afterZindex == Integer.MAX_VALUE)) {
+			return result ;
+		}
+		int rank = afterZindex == null ? 0 : widgetsByZindex.rankOfZindex(afterZindex + 1) ;
+		long minX = region.getX(), minY = region.getY() ;
+		widgetsByZindex.forEachWithin(rank, minX, minY, minX + region.getWidth(), minY + region.getHeight(), widget -> {
+			result.add(widget) ;
+			return result.size() < limit ;
+		});
+		return result ;
+	}
+
+	/**
+	 * At most {@code limit} widgets containing the point, edges included, in descending z order.
+	 */
+	public List<Widget> containingByZindexDescending(int x, int y, int limit) {
+		List<Widget> result = new ArrayList<>() ;
+		if (limit <= 0) {
+			return result ;
+		}
+		widgetsByZindex.forEachContaining(x, y, widget -> {
+			result.add(widget) ;
+			return result.size() < limit ;
+		});
+		return result ;
+	}
+
+	public SpatialIndex getSpatialIndex() {
+		return spatialIndex ;
+	}
+
+	/**
+	 * Length of the contiguous run of occupied z indexes starting at the given one.
+	 */
+	public int runLength(int zindex) {
+		int rank = widgetsByZindex.rankOfZindex(zindex) ;
+		if (rank == widgetsByZindex.size() || widgetsByZindex.getByRank(rank).getZindex() != zindex) {
+			return 0 ;
+		}
+		return widgetsByZindex.runEnd(rank) - rank ;
+	}
+
+	/**
+	 * Moves the run of {@code length} widgets starting at the given z index one z index up.
+	 */
+	public WidgetSnapshot shift(int zindex, int length, LocalDateTime shiftedAt) {
+		int rank = widgetsByZindex.rankOfZindex(zindex) ;
+		return new WidgetSnapshot(orderKeys, widgetsByZindex.shift(rank, rank + length, shiftedAt), spatialIndex, changes) ;
+	}
+
+	public long getVersion() {
+		return changes.getVersion() ;
+	}
+
+	/**
+	 * Records a change of the widget, the widget is deleted if the snapshot no longer has it.
+	 */
+	public WidgetSnapshot changed(String id) {
+		return new WidgetSnapshot(orderKeys, widgetsByZindex, spatialIndex, changes.record(WidgetIds.parse(id))) ;
+	}
+
+	/**
+	 * Records a change of each of the first {@code count} widgets, or forgets the changes recorded
+	 * so far if they would not fit into the log anyway.
+	 */
+	public WidgetSnapshot changed(Iterable<Widget> widgets, int count) {
+		if (count > changes.getCapacity()) {
+			return new WidgetSnapshot(orderKeys, widgetsByZindex, spatialIndex, changes.truncate()) ;
+		}
+		ChangeLog log = changes ;
+		Iterator<Widget> iterator = widgets.iterator() ;
+		for (int i = 0; i < count && iterator.hasNext(); i++) {
+			log = log.record(WidgetIds.parse(iterator.next().getId())) ;
+		}
+		return new WidgetSnapshot(orderKeys, widgetsByZindex, spatialIndex, log) ;
+	}
+
+	/**
+	 * This snapshot as the next version of the previous one, which replaced all its widgets.
+	 */
+	public WidgetSnapshot following(WidgetSnapshot previous) {
+		return new WidgetSnapshot(orderKeys, widgetsByZindex, spatialIndex, previous.changes.truncate()) ;
+	}
+
+	/**
+	 * The widgets changed after the version, null if some of those changes are no longer known.
+	 */
+	public WidgetChanges changesSince(long version) {
+		if (!changes.retains(version)) {
+			return null ;
+		}
+		List<Widget> upserted = new ArrayList<>() ;
+		List<String> deleted = new ArrayList<>() ;
+		for (UUID id : changes.changedAfter(version)) {
+			Widget widget = get(id) ;
+			if (widget == null) {
+				deleted.add(id.toString()) ;
+			} else {
+				upserted.add(widget) ;
+			}
+		}
+		return new WidgetChanges(changes.getVersion(), upserted, deleted) ;
+	}
+
+	/**
+	 * Stores the widget at its z index, which must not be occupied by another widget.
+	 */
+	public WidgetSnapshot put(Widget widget) {
+		PackedWidget packed = PackedWidget.of(widget) ;
+		return remove(packed.getKey()).insert(packed) ;
+	}
+
+	public WidgetSnapshot remove(String id) {
+		return remove(WidgetIds.parse(id)) ;
+	}
+
+	private WidgetSnapshot remove(UUID id) {
+		Long key = orderKeys.get(id) ;
+		if (key == null) {
+			return this ;
+		}
+		PackedWidget existing = widgetsByZindex.stored(key) ;
+		return new WidgetSnapshot(orderKeys.remove(id),
+				widgetsByZindex.remove(key),
+				spatialIndex.remove(existing),
+				changes) ;
+	}
+
+	private WidgetSnapshot insert(PackedWidget widget) {
+		int size = widgetsByZindex.size() ;
+		int rank = widgetsByZindex.rankOfZindex(widget.getZindex()) ;
+		long lower = rank == 0 ? MIN_KEY : widgetsByZindex.keyByRank(rank - 1) ;
+		long upper = rank == size ? MAX_KEY : widgetsByZindex.keyByRank(rank) ;
+
+		if (upper - lower < 2) {
+			return relabel(widget, rank) ;
+		}
+
+		long key ;
+		if (rank == size && size > 0) {
+			key = lower + Math.min(KEY_SPACING, (upper - lower) / 2) ;
+		} else if (rank == 0 && size > 0) {
+			key = upper - Math.min(KEY_SPACING, (upper - lower) / 2) ;
+		} else {
+			key = lower + (upper - lower) / 2 ;
+		}
+
+		return new WidgetSnapshot(orderKeys.put(widget.getKey(), key),
+				widgetsByZindex.insert(key, widget),
+				spatialIndex.insert(widget),
+				changes) ;
+	}
+
+	/**
+	 * Spreads the keys of the smallest sparse enough window around {@code rank} evenly
+	 * across the window, leaving a slot for the new widget at {@code rank}.
+	 */
+	private WidgetSnapshot relabel(PackedWidget widget, int rank) {
+		int size = widgetsByZindex.size() ;
+		int radius = 1 ;
+		int from, to ;
+		long lower, upper ;
+		while (true) {
+			from = Math.max(0, rank - radius) ;
+			to = Math.min(size, rank + radius) ;
+			lower = from == 0 ? MIN_KEY : widgetsByZindex.keyByRank(from - 1) ;
+			upper = to == size ? MAX_KEY : widgetsByZindex.keyByRank(to) ;
+			if ((upper - lower) / (to - from + 2) >= MIN_RELABEL_SPACING || (from == 0 && to == size)) {
+				break ;
+			}
+			radius *= 2 ;
+		}
+
+		long spacing = (upper - lower) / (to - from + 2) ;
+		List<PackedWidget> window = new ArrayList<>(to - from) ;
+		ZOrderTree tree = widgetsByZindex ;
+		for (int i = from; i < to; i++) {
+			long key = widgetsByZindex.keyByRank(i) ;
+			window.add(PackedWidget.of(widgetsByZindex.get(key))) ;
+			tree = tree.remove(key) ;
+		}
+
+		PersistentHashMap<UUID, Long> keys = orderKeys ;
+		for (int i = from; i < to; i++) {
+			long key = lower + spacing * (i - from + (i < rank ? 1 : 2)) ;
+			PackedWidget existing = window.get(i - from) ;
+			tree = tree.insert(key, existing) ;
+			keys = keys.put(existing.getKey(), key) ;
+		}
+		long key = lower + spacing * (rank - from + 1) ;
+		return new WidgetSnapshot(keys.put(widget.getKey(), key),
+				tree.insert(key, widget),
+				spatialIndex.insert(widget),
+				changes) ;
+	}
+}
@@ -0,0 +1,476 @@
+package com.miro.widgets.storage.inmemory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+import com.miro.widgets.entity.Widget;
+
+/**
+ * Persistent AVL tree of widgets ordered by an internal order key. Order keys are
+ * allocated with gaps, so a widget keeps its key while other widgets are shifted
+ * around it. Shifting a run of z indexes is recorded as a lazy offset on the covering
+ * subtrees instead of copying every shifted widget; the offset is applied when a
+ * widget is read, which is also when the {@link Widget} is built from its packed form.
+ * <p>
+ * Every node also keeps the bounding box of the widgets in its subtree. Shifts never move
+ * widgets on the plane, so the boxes stay valid and a region can be searched in z order
+ * by skipping the subtrees whose box misses it.
+ */
+final class ZOrderTree {
+
+	static final ZOrderTree EMPTY = new ZOrderTree(null) ;
+
+	private final Node root ;
+
+	private ZOrderTree(Node root) {
+		this.root = root ;
+	}
+
+	/**
+	 * Balanced tree of the widgets, which must be given in ascending key order.
+	 */
+	static ZOrderTree of(long[] keys, PackedWidget[] widgets) {
+		return new ZOrderTree(build(keys, widgets, 0, keys.length)) ;
+	}
+
+	int size() {
+		return size(root) ;
+	}
+
+	Widget get(long key) {
+		Node node = root ;
+		int acc = 0 ;
+		LocalDateTime accTime = null ;
+		while (node != null) {
+			if (key == node.key) {
+				return node.resolve(acc, accTime) ;
+			}
+			acc += node.tag ;
+			accTime = latest(accTime, node.tagShiftedAt) ;
+			node = key < node.key ? node.left : node.right ;
+		}
+		return null ;
+	}
+
+	/**
+	 * The widget as it was inserted, without the shifts applied to it since.
+	 */
+	PackedWidget stored(long key) {
+		Node node = root ;
+		while (node != null) {
+			if (key == node.key) {
+				return node.widget ;
+			}
+			node = key < node.key ? node.left : node.right ;
+		}
+		return null ;
+	}
+
+	/**
+	 * Number of widgets with a z index lower than the given one.
+	 */
+	int rankOfZindex(int zindex) {
+		Node node = root ;
+		int acc = 0 ;
+		int rank = 0 ;
+		while (node != null) {
+			int nodeZindex = node.zindex(acc) ;
+			acc += node.tag ;
+			if (nodeZindex < zindex) {
+				rank += size(node.left) + 1 ;
+				node = node.right ;
+			} else {
+				node = node.left ;
+			}
+		}
+		return rank ;
+	}
+
+	Widget getByRank(int rank) {
+		Node node = root ;
+		int acc = 0 ;
+		LocalDateTime accTime = null ;
+		while (node != null) {
+			int leftSize = size(node.left) ;
+			if (rank == leftSize) {
+				return node.resolve(acc, accTime) ;
+			}
+			acc += node.tag ;
+			accTime = latest(accTime, node.tagShiftedAt) ;
+			if (rank < leftSize) {
+				node = node.left ;
+			} else {
+				rank -= leftSize + 1 ;
+				node = node.right ;
+			}
+		}
+		throw new IndexOutOfBoundsException("rank " + rank) ;
+	}
+
+	long keyByRank(int rank) {
+		Node node = root ;
+		while (node != null) {
+			int leftSize = size(node.left) ;
+			if (rank == leftSize) {
+				return node.key ;
+			}
+			if (rank < leftSize) {
+				node = node.left ;
+			} else {
+				rank -= leftSize + 1 ;
+				node = node.right ;
+			}
+		}
+		throw new IndexOutOfBoundsException("rank " + rank) ;
+	}
+
+	/**
+	 * First rank after the contiguous run of z indexes that starts at the given rank.
+	 * Since z indexes are strictly increasing, {@code zindex(rank) - rank} never decreases
+	 * and the run ends at the first rank where it grows.
+	 */
+	int runEnd(int rank) {
+		int target = getByRank(rank).getZindex() - rank ;
+		Node node = root ;
+		int acc = 0 ;
+		int offset = 0 ;
+		int result = size() ;
+		while (node != null) {
+			int nodeRank = offset + size(node.left) ;
+			int nodeZindex = node.zindex(acc) ;
+			acc += node.tag ;
+			if (nodeZindex - nodeRank > target) {
+				result = nodeRank ;
+				node = node.left ;
+			} else {
+				offset = nodeRank + 1 ;
+				node = node.right ;
+			}
+		}
+		return result ;
+	}
+
+	/**
+	 * Moves every widget with a rank in [fromRank, toRank) one z index up.
+	 */
+	ZOrderTree shift(int fromRank, int toRank, LocalDateTime shiftedAt) {
+		if (fromRank >= toRank) {
+			return this ;
+		}
+		return new ZOrderTree(shift(root, 0, fromRank, toRank, shiftedAt)) ;
+	}
+
+	ZOrderTree insert(long key, PackedWidget widget) {
+		return new ZOrderTree(insert(root, key, widget)) ;
+	}
+
+	ZOrderTree remove(long key) {
+		return new ZOrderTree(remove(root, key)) ;
+	}
+
+	Iterable<Widget> fromRank(int rank) {
+		return () -> new WidgetIterator(root, rank) ;
+	}
+
+	/**
+	 * Passes the widgets lying within the bounds, edges included, from the given rank on in
+	 * ascending z order to the action until it returns false.
+	 */
+	void forEachWithin(int fromRank, long minX, long minY, long maxX, long maxY, Predicate<Widget> action) {
+		forEachWithin(root, 0, fromRank, 0, null, minX, minY, maxX, maxY, action) ;
+	}
+
+	private static boolean forEachWithin(Node node, int offset, int fromRank, int acc, LocalDateTime accTime,
+			long minX, long minY, long maxX, long maxY, Predicate<Widget> action) {
+		if (node == null || offset + node.size <= fromRank
+				|| node.minX > maxX || node.maxX < minX || node.minY > maxY || node.maxY < minY) {
+			return true ;
+		}
+		int nodeRank = offset + size(node.left) ;
+		int childAcc = acc + node.tag ;
+		LocalDateTime childAccTime = latest(accTime, node.tagShiftedAt) ;
+		if (!forEachWithin(node.left, offset, fromRank, childAcc, childAccTime, minX, minY, maxX, maxY, action)) {
+			return false ;
+		}
+		PackedWidget widget = node.widget ;
+		if (nodeRank >= fromRank && widget.getX() >= minX && widget.getY() >= minY
+				&& (long) widget.getX() + widget.getWidth() <= maxX && (long) widget.getY() + widget.getHeight() <= maxY
+				&& !action.test(node.resolve(acc, accTime))) {
+			return false ;
+		}
+		return forEachWithin(node.right, nodeRank + 1, fromRank, childAcc, childAccTime, minX, minY, maxX, maxY, action) ;
+	}
+
+	/**
+	 * Passes the widgets containing the point, edges included, in descending z order to the
+	 * action until it returns false.
+	 */
+	void forEachContaining(long x, long y, Predicate<Widget> action) {
+		forEachContaining(root, 0, null, x, y, action) ;
+	}
+
+	private static boolean forEachContaining(Node node, int acc, LocalDateTime accTime, long x, long y, Predicate<Widget> action) {
+		if (node == null || node.minX > x || node.maxX < x || node.minY > y || node.maxY < y) {
+			return true ;
+		}
+		int childAcc = acc + node.tag ;
+		LocalDateTime childAccTime = latest(accTime, node.tagShiftedAt) ;
+		if (!forEachContaining(node.right, childAcc, childAccTime, x, y, action)) {
+			return false ;
+		}
+		PackedWidget widget = node.widget ;
+		if (widget.getX() <= x && widget.getY() <= y
+				&& (long) widget.getX() + widget.getWidth() >= x && (long) widget.getY() + widget.getHeight() >= y
+				&& !action.test(node.resolve(acc, accTime))) {
+			return false ;
+		}
+		return forEachContaining(node.left, childAcc, childAccTime, x, y, action) ;
+	}
+
+	private static Node shift(Node node, int offset, int fromRank, int toRank, LocalDateTime shiftedAt) {
+		if (node == null || toRank <= offset || fromRank >= offset + node.size) {
+			return node ;
+		}
+		if (fromRank <= offset && offset + node.size <= toRank) {
+			return node.shifted(shiftedAt) ;
+		}
+		int nodeRank = offset + size(node.left) ;
+		Node left = shift(node.left, offset, fromRank, toRank, shiftedAt) ;
+		Node right = shift(node.right, nodeRank + 1, fromRank, toRank, shiftedAt) ;
+		boolean self = nodeRank >= fromRank && nodeRank < toRank ;
+		return new Node(node.key, node.widget,
+				self ? node.selfShift + 1 : node.selfShift, self ? shiftedAt : node.selfShiftedAt,
+				node.tag, node.tagShiftedAt, left, right) ;
+	}
+
+	private static Node build(long[] keys, PackedWidget[] widgets, int from, int to) {
+		if (from >= to) {
+			return null ;
+		}
+		int middle = (from + to) >>> 1 ;
+		return new Node(keys[middle], widgets[middle], 0, null, 0, null, build(keys, widgets, from, middle), build(keys, widgets, middle + 1, to)) ;
+	}
+
+	private static Node insert(Node node, long key, PackedWidget widget) {
+		if (node == null) {
+			return new Node(key, widget, 0, null, 0, null, null, null) ;
+		}
+		node = node.clean() ;
+		if (key < node.key) {
+			return balance(node.with(insert(node.left, key, widget), node.right)) ;
+		}
+		if (key > node.key) {
+			return balance(node.with(node.left, insert(node.right, key, widget))) ;
+		}
+		return new Node(key, widget, 0, null, 0, null, node.left, node.right) ;
+	}
+
+	private static Node remove(Node node, long key) {
+		if (node == null) {
+			return null ;
+		}
+		node = node.clean() ;
+		if (key < node.key) {
+			return balance(node.with(remove(node.left, key), node.right)) ;
+		}
+		if (key > node.key) {
+			return balance(node.with(node.left, remove(node.right, key))) ;
+		}
+		if (node.left == null) {
+			return node.right ;
+		}
+		if (node.right == null) {
+			return node.left ;
+		}
+		Node[] min = new Node[1] ;
+		Node right = removeMin(node.right, min) ;
+		return balance(min[0].with(node.left, right)) ;
+	}
+
+	private static Node removeMin(Node node, Node[] min) {
+		node = node.clean() ;
+		if (node.left == null) {
+			min[0] = node ;
+			return node.right ;
+		}
+		return balance(node.with(removeMin(node.left, min), node.right)) ;
+	}
+
+	private static Node balance(Node node) {
+		int diff = height(node.left) - height(node.right) ;
+		if (diff > 1) {
+			Node left = node.left.clean() ;
+			if (height(left.left) >= height(left.right)) {
+				return left.with(left.left, node.with(left.right, node.right)) ;
+			}
+			Node leftRight = left.right.clean() ;
+			return leftRight.with(left.with(left.left, leftRight.left), node.with(leftRight.right, node.right)) ;
+		}
+		if (diff < -1) {
+			Node right = node.right.clean() ;
+			if (height(right.right) >= height(right.left)) {
+				return right.with(node.with(node.left, right.left), right.right) ;
+			}
+			Node rightLeft = right.left.clean() ;
+			return rightLeft.with(node.with(node.left, rightLeft.left), right.with(rightLeft.right, right.right)) ;
+		}
+		return node ;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height ;
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size ;
+	}
+
+	private static LocalDateTime latest(LocalDateTime first, LocalDateTime second) {
+		if (first == null) {
+			return second ;
+		}
+		if (second == null) {
+			return first ;
+		}
+		return first.isAfter(second) ? first : second ;
+	}
+
+	/**
+	 * {@code selfShift} applies to the node's own widget, {@code tag} to both of its subtrees.
+	 */
+	private static final class Node {
+		private final long key ;
+		private final PackedWidget widget ;
+		private final int selfShift ;
+		private final LocalDateTime selfShiftedAt ;
+		private final int tag ;
+		private final LocalDateTime tagShiftedAt ;
+		private final Node left ;
+		private final Node right ;
+		private final int height ;
+		private final int size ;
+		private final int minX ;
+		private final int minY ;
+		private final long maxX ;
+		private final long maxY ;
+
+		private Node(long key, PackedWidget widget, int selfShift, LocalDateTime selfShiftedAt, int tag, LocalDateTime tagShiftedAt, Node left, Node right) {
+			this.key = key ;
+			this.widget = widget ;
+			this.selfShift = selfShift ;
+			this.selfShiftedAt = selfShiftedAt ;
+			this.tag = tag ;
+			this.tagShiftedAt = tagShiftedAt ;
+			this.left = left ;
+			this.right = right ;
+			this.height = Math.max(ZOrderTree.height(left), ZOrderTree.height(right)) + 1 ;
+			this.size = ZOrderTree.size(left) + ZOrderTree.size(right) + 1 ;
+			this.minX = Math.min(widget.getX(), Math.min(left == null ? Integer.MAX_VALUE : left.minX, right == null ? Integer.MAX_VALUE : right.minX)) ;
+			this.minY = Math.min(widget.getY(), Math.min(left == null ? Integer.MAX_VALUE : left.minY, right == null ? Integer.MAX_VALUE : right.minY)) ;
+			this.maxX = Math.max((long) widget.getX() + widget.getWidth(), Math.max(left == null ? Long.MIN_VALUE : left.maxX, right == null ? Long.MIN_VALUE : right.maxX)) ;
+			this.maxY = Math.max((long) widget.getY() + widget.getHeight(), Math.max(left == null ? Long.MIN_VALUE : left.maxY, right == null ? Long.MIN_VALUE : right.maxY)) ;
+		}
+
+		private int zindex(int acc) {
+			return widget.getZindex() + selfShift + acc ;
+		}
+
+		private Widget resolve(int acc, LocalDateTime accTime) {
+			int shift = selfShift + acc ;
+			LocalDateTime shiftedAt = latest(selfShiftedAt, accTime) ;
+			return widget.toWidget(shift, shiftedAt) ;
+		}
+
+		private Node shifted(LocalDateTime shiftedAt) {
+			return shifted(1, shiftedAt) ;
+		}
+
+		private Node shifted(int shift, LocalDateTime shiftedAt) {
+			return new Node(key, widget, selfShift + shift, latest(selfShiftedAt, shiftedAt), tag + shift, latest(tagShiftedAt, shiftedAt), left, right) ;
+		}
+
+		private Node clean() {
+			if (tag == 0 && tagShiftedAt == null) {
+				return this ;
+			}
+			return new Node(key, widget, selfShift, selfShiftedAt, 0, null,
+					left == null ? null : left.shifted(tag, tagShiftedAt),
+					right == null ? null : right.shifted(tag, tagShiftedAt)) ;
+		}
+
+		private Node with(Node left, Node right) {
+			return new Node(key, widget, selfShift, selfShiftedAt, tag, tagShiftedAt, left, right) ;
+		}
+	}
+
+	private static final class WidgetIterator implements Iterator<Widget> {
+		private final Deque<Frame> stack = new ArrayDeque<>() ;
+
+		private WidgetIterator(Node root, int rank) {
+			Node node = root ;
+			int acc = 0 ;
+			LocalDateTime accTime = null ;
+			while (node != null) {
+				int leftSize = size(node.left) ;
+				Frame frame = new Frame(node, acc, accTime) ;
+				if (rank <= leftSize) {
+					stack.push(frame) ;
+					node = node.left ;
+				} else {
+					rank -= leftSize + 1 ;
+					node = node.right ;
+				}
+				acc = frame.childAcc() ;
+				accTime = frame.childAccTime() ;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty() ;
+		}
+
+		@Override
+		public Widget next() {
+			if (stack.isEmpty()) {
+				throw new NoSuchElementException() ;
+			}
+			Frame frame = stack.pop() ;
+			int acc = frame.childAcc() ;
+			LocalDateTime accTime = frame.childAccTime() ;
+			Node child = frame.node.right ;
+			while (child != null) {
+				Frame childFrame = new Frame(child, acc, accTime) ;
+				stack.push(childFrame) ;
+				acc = childFrame.childAcc() ;
+				accTime = childFrame.childAccTime() ;
+				child = child.left ;
+			}
+			return frame.node.resolve(frame.acc, frame.accTime) ;
+		}
+	}
+
+	private static final class Frame {
+		private final Node node ;
+		private final int acc ;
+		private final LocalDateTime accTime ;
+
+		private Frame(Node node, int acc, LocalDateTime accTime) {
+			this.node = node ;
+			this.acc = acc ;
+			this.accTime = accTime ;
+		}
+
+		private int childAcc() {
+			return acc + node.tag ;
+		}
+
+		private LocalDateTime childAccTime() {
+			return latest(accTime, node.tagShiftedAt) ;
+		}
+	}
+}
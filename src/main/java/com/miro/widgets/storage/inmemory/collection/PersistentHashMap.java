@@ -0,0 +1,358 @@
+package com.miro.widgets.storage.inmemory.collection;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash array mapped trie. Every update copies only the path from the root
+ * to the changed entry, so a new version costs O(log32 n) and shares everything else
+ * with the previous one.
+ */
+public final class PersistentHashMap<K, V> {
+
+	private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(null, 0) ;
+
+	private final Node<K, V> root ;
+	private final int size ;
+
+	private PersistentHashMap(Node<K, V> root, int size) {
+		this.root = root ;
+		this.size = size ;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return (PersistentHashMap<K, V>) EMPTY ;
+	}
+
+	/**
+	 * Map of the given entries built at once, without a new version per entry. The keys
+	 * must be distinct.
+	 */
+	public static <K, V> PersistentHashMap<K, V> of(List<? extends K> keys, List<? extends V> values) {
+		int size = keys.size() ;
+		if (size == 0) {
+			return empty() ;
+		}
+		int[] hashes = new int[size] ;
+		int[] entries = new int[size] ;
+		for (int i = 0; i < size; i++) {
+			hashes[i] = hash(keys.get(i)) ;
+			entries[i] = i ;
+		}
+		return new PersistentHashMap<>(build(keys, values, hashes, entries, new int[size], 0, size, 0), size) ;
+	}
+
+	public int size() {
+		return size ;
+	}
+
+	public boolean isEmpty() {
+		return size == 0 ;
+	}
+
+	public V get(K key) {
+		return root == null ? null : root.get(0, hash(key), key) ;
+	}
+
+	public boolean containsKey(K key) {
+		return get(key) != null ;
+	}
+
+	public PersistentHashMap<K, V> put(K key, V value) {
+		boolean[] added = new boolean[1] ;
+		Node<K, V> start = root == null ? BitmapNode.empty() : root ;
+		Node<K, V> newRoot = start.put(0, hash(key), key, value, added) ;
+		if (newRoot == root) {
+			return this ;
+		}
+		return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size) ;
+	}
+
+	public PersistentHashMap<K, V> remove(K key) {
+		if (root == null || !containsKey(key)) {
+			return this ;
+		}
+		Node<K, V> newRoot = root.remove(0, hash(key), key) ;
+		return newRoot == null ? empty() : new PersistentHashMap<>(newRoot, size - 1) ;
+	}
+
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		if (root != null) {
+			root.forEach(action);
+		}
+	}
+
+	/**
+	 * Node of the entries in [from, to), which share the hash bits below the shift. The entries
+	 * are bucketed by their next 5 bits with a counting sort.
+	 */
+	private static <K, V> Node<K, V> build(List<? extends K> keys, List<? extends V> values, int[] hashes, int[] entries, int[] buffer, int from, int to, int shift) {
+		int hash = hashes[entries[from]] ;
+		boolean collision = true ;
+		for (int i = from + 1; i < to && collision; i++) {
+			collision = hashes[entries[i]] == hash ;
+		}
+		if (collision) {
+			Object[] array = new Object[2 * (to - from)] ;
+			for (int i = from; i < to; i++) {
+				array[2 * (i - from)] = keys.get(entries[i]) ;
+				array[2 * (i - from) + 1] = values.get(entries[i]) ;
+			}
+			return to - from == 1 ? new BitmapNode<>(BitmapNode.bit(shift, hash), array) : new CollisionNode<>(hash, array) ;
+		}
+		int[] starts = new int[33] ;
+		for (int i = from; i < to; i++) {
+			starts[((hashes[entries[i]] >>> shift) & 31) + 1]++ ;
+		}
+		int bitmap = 0 ;
+		for (int bucket = 0; bucket < 32; bucket++) {
+			bitmap |= starts[bucket + 1] > 0 ? 1 << bucket : 0 ;
+			starts[bucket + 1] += starts[bucket] ;
+		}
+		int[] next = starts.clone() ;
+		for (int i = from; i < to; i++) {
+			buffer[from + next[(hashes[entries[i]] >>> shift) & 31]++] = entries[i] ;
+		}
+		System.arraycopy(buffer, from, entries, from, to - from);
+		Object[] array = new Object[2 * Integer.bitCount(bitmap)] ;
+		int slot = 0 ;
+		for (int bucket = 0; bucket < 32; bucket++) {
+			int start = from + starts[bucket] ;
+			int end = from + starts[bucket + 1] ;
+			if (end - start == 1) {
+				array[slot++] = keys.get(entries[start]) ;
+				array[slot++] = values.get(entries[start]) ;
+			} else if (end - start > 1) {
+				array[slot++] = null ;
+				array[slot++] = build(keys, values, hashes, entries, buffer, start, end, shift + 5) ;
+			}
+		}
+		return new BitmapNode<>(bitmap, array) ;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode() ;
+		return h ^ (h >>> 16) ;
+	}
+
+	private interface Node<K, V> {
+		V get(int shift, int hash, K key) ;
+
+		Node<K, V> put(int shift, int hash, K key, V value, boolean[] added) ;
+
+		Node<K, V> remove(int shift, int hash, K key) ;
+
+		void forEach(BiConsumer<? super K, ? super V> action) ;
+	}
+
+	/**
+	 * Entries are stored as key/value pairs. A null key marks a slot whose value is a child node.
+	 */
+	private static final class BitmapNode<K, V> implements Node<K, V> {
+		private static final BitmapNode<?, ?> EMPTY = new BitmapNode<>(0, new Object[0]) ;
+
+		private final int bitmap ;
+		private final Object[] array ;
+
+		private BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap ;
+			this.array = array ;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <K, V> BitmapNode<K, V> empty() {
+			return (BitmapNode<K, V>) EMPTY ;
+		}
+
+		private static int bit(int shift, int hash) {
+			return 1 << ((hash >>> shift) & 31) ;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1)) ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(int shift, int hash, K key) {
+			int bit = bit(shift, hash) ;
+			if ((bitmap & bit) == 0) {
+				return null ;
+			}
+			int idx = index(bit) ;
+			Object k = array[2 * idx] ;
+			Object v = array[2 * idx + 1] ;
+			if (k == null) {
+				return ((Node<K, V>) v).get(shift + 5, hash, key) ;
+			}
+			return key.equals(k) ? (V) v : null ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Node<K, V> put(int shift, int hash, K key, V value, boolean[] added) {
+			int bit = bit(shift, hash) ;
+			int idx = index(bit) ;
+			if ((bitmap & bit) == 0) {
+				Object[] newArray = new Object[array.length + 2] ;
+				System.arraycopy(array, 0, newArray, 0, 2 * idx);
+				newArray[2 * idx] = key ;
+				newArray[2 * idx + 1] = value ;
+				System.arraycopy(array, 2 * idx, newArray, 2 * idx + 2, array.length - 2 * idx);
+				added[0] = true ;
+				return new BitmapNode<>(bitmap | bit, newArray) ;
+			}
+
+			Object k = array[2 * idx] ;
+			Object v = array[2 * idx + 1] ;
+			if (k == null) {
+				Node<K, V> child = (Node<K, V>) v ;
+				Node<K, V> newChild = child.put(shift + 5, hash, key, value, added) ;
+				return newChild == child ? this : replace(2 * idx + 1, null, newChild) ;
+			}
+			if (key.equals(k)) {
+				return v == value ? this : replace(2 * idx, k, value) ;
+			}
+
+			added[0] = true ;
+			Node<K, V> child = createNode(shift + 5, (K) k, (V) v, hash, key, value) ;
+			return replace(2 * idx, null, child) ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Node<K, V> remove(int shift, int hash, K key) {
+			int bit = bit(shift, hash) ;
+			if ((bitmap & bit) == 0) {
+				return this ;
+			}
+			int idx = index(bit) ;
+			Object k = array[2 * idx] ;
+			Object v = array[2 * idx + 1] ;
+			if (k == null) {
+				Node<K, V> child = (Node<K, V>) v ;
+				Node<K, V> newChild = child.remove(shift + 5, hash, key) ;
+				if (newChild == child) {
+					return this ;
+				}
+				if (newChild != null) {
+					return replace(2 * idx + 1, null, newChild) ;
+				}
+			} else if (!key.equals(k)) {
+				return this ;
+			}
+
+			if (bitmap == bit) {
+				return null ;
+			}
+			Object[] newArray = new Object[array.length - 2] ;
+			System.arraycopy(array, 0, newArray, 0, 2 * idx);
+			System.arraycopy(array, 2 * idx + 2, newArray, 2 * idx, newArray.length - 2 * idx);
+			return new BitmapNode<>(bitmap ^ bit, newArray) ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void forEach(BiConsumer<? super K, ? super V> action) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (array[i] == null) {
+					((Node<K, V>) array[i + 1]).forEach(action);
+				} else {
+					action.accept((K) array[i], (V) array[i + 1]);
+				}
+			}
+		}
+
+		private BitmapNode<K, V> replace(int keyOrValueIndex, Object key, Object value) {
+			Object[] newArray = array.clone() ;
+			int keyIndex = keyOrValueIndex & ~1 ;
+			newArray[keyIndex] = key ;
+			newArray[keyIndex + 1] = value ;
+			return new BitmapNode<>(bitmap, newArray) ;
+		}
+
+		private static <K, V> Node<K, V> createNode(int shift, K key1, V value1, int hash2, K key2, V value2) {
+			int hash1 = hash(key1) ;
+			if (hash1 == hash2) {
+				return new CollisionNode<>(hash1, new Object[] {key1, value1, key2, value2}) ;
+			}
+			boolean[] added = new boolean[1] ;
+			return BitmapNode.<K, V>empty()
+					.put(shift, hash1, key1, value1, added)
+					.put(shift, hash2, key2, value2, added) ;
+		}
+	}
+
+	private static final class CollisionNode<K, V> implements Node<K, V> {
+		private final int hash ;
+		private final Object[] array ;
+
+		private CollisionNode(int hash, Object[] array) {
+			this.hash = hash ;
+			this.array = array ;
+		}
+
+		private int indexOf(K key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i ;
+				}
+			}
+			return -1 ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(int shift, int hash, K key) {
+			int idx = indexOf(key) ;
+			return idx < 0 ? null : (V) array[idx + 1] ;
+		}
+
+		@Override
+		public Node<K, V> put(int shift, int hash, K key, V value, boolean[] added) {
+			if (hash != this.hash) {
+				Object[] wrapper = new Object[] {null, this} ;
+				return new BitmapNode<K, V>(BitmapNode.bit(shift, this.hash), wrapper).put(shift, hash, key, value, added) ;
+			}
+			int idx = indexOf(key) ;
+			if (idx >= 0) {
+				if (array[idx + 1] == value) {
+					return this ;
+				}
+				Object[] newArray = array.clone() ;
+				newArray[idx + 1] = value ;
+				return new CollisionNode<>(hash, newArray) ;
+			}
+			Object[] newArray = new Object[array.length + 2] ;
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			newArray[array.length] = key ;
+			newArray[array.length + 1] = value ;
+			added[0] = true ;
+			return new CollisionNode<>(hash, newArray) ;
+		}
+
+		@Override
+		public Node<K, V> remove(int shift, int hash, K key) {
+			int idx = indexOf(key) ;
+			if (idx < 0) {
+				return this ;
+			}
+			if (array.length == 2) {
+				return null ;
+			}
+			Object[] newArray = new Object[array.length - 2] ;
+			System.arraycopy(array, 0, newArray, 0, idx);
+			System.arraycopy(array, idx + 2, newArray, idx, newArray.length - idx);
+			return new CollisionNode<>(hash, newArray) ;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void forEach(BiConsumer<? super K, ? super V> action) {
+			for (int i = 0; i < array.length; i += 2) {
+				action.accept((K) array[i], (V) array[i + 1]);
+			}
+		}
+	}
+}
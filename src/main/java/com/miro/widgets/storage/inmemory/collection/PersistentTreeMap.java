@@ -0,0 +1,231 @@
+package com.miro.widgets.storage.inmemory.collection;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable AVL tree. Updates copy the O(log n) nodes on the search path and share
+ * the rest of the tree with the previous version.
+ */
+public final class PersistentTreeMap<K, V> {
+
+	private final Comparator<? super K> comparator ;
+	private final Node<K, V> root ;
+
+	private PersistentTreeMap(Comparator<? super K> comparator, Node<K, V> root) {
+		this.comparator = comparator ;
+		this.root = root ;
+	}
+
+	public static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> empty() {
+		return new PersistentTreeMap<>(Comparator.naturalOrder(), null) ;
+	}
+
+	public static <K, V> PersistentTreeMap<K, V> empty(Comparator<? super K> comparator) {
+		return new PersistentTreeMap<>(comparator, null) ;
+	}
+
+	public int size() {
+		return size(root) ;
+	}
+
+	public boolean isEmpty() {
+		return root == null ;
+	}
+
+	public V get(K key) {
+		Node<K, V> node = root ;
+		while (node != null) {
+			int cmp = comparator.compare(key, node.key) ;
+			if (cmp == 0) {
+				return node.value ;
+			}
+			node = cmp < 0 ? node.left : node.right ;
+		}
+		return null ;
+	}
+
+	public boolean containsKey(K key) {
+		return get(key) != null ;
+	}
+
+	public K firstKey() {
+		Node<K, V> node = root ;
+		if (node == null) {
+			return null ;
+		}
+		while (node.left != null) {
+			node = node.left ;
+		}
+		return node.key ;
+	}
+
+	public K lastKey() {
+		Node<K, V> node = root ;
+		if (node == null) {
+			return null ;
+		}
+		while (node.right != null) {
+			node = node.right ;
+		}
+		return node.key ;
+	}
+
+	public PersistentTreeMap<K, V> put(K key, V value) {
+		Node<K, V> newRoot = put(root, key, value) ;
+		return newRoot == root ? this : new PersistentTreeMap<>(comparator, newRoot) ;
+	}
+
+	public PersistentTreeMap<K, V> remove(K key) {
+		Node<K, V> newRoot = remove(root, key) ;
+		return newRoot == root ? this : new PersistentTreeMap<>(comparator, newRoot) ;
+	}
+
+	public Iterable<V> values() {
+		return () -> new ValueIterator<>(root, null, false, comparator) ;
+	}
+
+	public Iterable<V> tailValues(K fromKey, boolean inclusive) {
+		return () -> new ValueIterator<>(root, fromKey, inclusive, comparator) ;
+	}
+
+	private Node<K, V> put(Node<K, V> node, K key, V value) {
+		if (node == null) {
+			return new Node<>(key, value, null, null) ;
+		}
+		int cmp = comparator.compare(key, node.key) ;
+		if (cmp == 0) {
+			return node.value == value ? node : new Node<>(key, value, node.left, node.right) ;
+		}
+		if (cmp < 0) {
+			Node<K, V> left = put(node.left, key, value) ;
+			return left == node.left ? node : balance(node.key, node.value, left, node.right) ;
+		}
+		Node<K, V> right = put(node.right, key, value) ;
+		return right == node.right ? node : balance(node.key, node.value, node.left, right) ;
+	}
+
+	private Node<K, V> remove(Node<K, V> node, K key) {
+		if (node == null) {
+			return null ;
+		}
+		int cmp = comparator.compare(key, node.key) ;
+		if (cmp < 0) {
+			Node<K, V> left = remove(node.left, key) ;
+			return left == node.left ? node : balance(node.key, node.value, left, node.right) ;
+		}
+		if (cmp > 0) {
+			Node<K, V> right = remove(node.right, key) ;
+			return right == node.right ? node : balance(node.key, node.value, node.left, right) ;
+		}
+		if (node.left == null) {
+			return node.right ;
+		}
+		if (node.right == null) {
+			return node.left ;
+		}
+		Node<K, V> successor = node.right ;
+		while (successor.left != null) {
+			successor = successor.left ;
+		}
+		return balance(successor.key, successor.value, node.left, removeMin(node.right)) ;
+	}
+
+	private Node<K, V> removeMin(Node<K, V> node) {
+		if (node.left == null) {
+			return node.right ;
+		}
+		return balance(node.key, node.value, removeMin(node.left), node.right) ;
+	}
+
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+		int diff = height(left) - height(right) ;
+		if (diff > 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right)) ;
+			}
+			return new Node<>(left.right.key, left.right.value,
+					new Node<>(left.key, left.value, left.left, left.right.left),
+					new Node<>(key, value, left.right.right, right)) ;
+		}
+		if (diff < -1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right) ;
+			}
+			return new Node<>(right.left.key, right.left.value,
+					new Node<>(key, value, left, right.left.left),
+					new Node<>(right.key, right.value, right.left.right, right.right)) ;
+		}
+		return new Node<>(key, value, left, right) ;
+	}
+
+	private static int height(Node<?, ?> node) {
+		return node == null ? 0 : node.height ;
+	}
+
+	private static int size(Node<?, ?> node) {
+		return node == null ? 0 : node.size ;
+	}
+
+	private static final class Node<K, V> {
+		private final K key ;
+		private final V value ;
+		private final Node<K, V> left ;
+		private final Node<K, V> right ;
+		private final int height ;
+		private final int size ;
+
+		private Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+			this.key = key ;
+			this.value = value ;
+			this.left = left ;
+			this.right = right ;
+			this.height = Math.max(height(left), height(right)) + 1 ;
+			this.size = size(left) + size(right) + 1 ;
+		}
+	}
+
+	private static final class ValueIterator<K, V> implements Iterator<V> {
+		private final Deque<Node<K, V>> stack = new ArrayDeque<>() ;
+
+		private ValueIterator(Node<K, V> root, K fromKey, boolean inclusive, Comparator<? super K> comparator) {
+			Node<K, V> node = root ;
+			while (node != null) {
+				if (fromKey == null) {
+					stack.push(node) ;
+					node = node.left ;
+					continue ;
+				}
+				int cmp = comparator.compare(node.key, fromKey) ;
+				if (cmp > 0 || (cmp == 0 && inclusive)) {
+					stack.push(node) ;
+					node = node.left ;
+				} else {
+					node = node.right ;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !stack.isEmpty() ;
+		}
+
+		@Override
+		public V next() {
+			if (stack.isEmpty()) {
+				throw new NoSuchElementException() ;
+			}
+			Node<K, V> node = stack.pop() ;
+			Node<K, V> child = node.right ;
+			while (child != null) {
+				stack.push(child) ;
+				child = child.left ;
+			}
+			return node.value ;
+		}
+	}
+}
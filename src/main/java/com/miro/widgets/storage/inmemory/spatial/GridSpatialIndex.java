@@ -0,0 +1,134 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+import com.miro.widgets.storage.inmemory.collection.PersistentHashMap;
+
+/**
+ * Uniform grid of fixed size cells. A widget is registered in every cell it overlaps,
+ * widgets covering more than {@link #MAX_CELLS_PER_WIDGET} cells are kept in a separate
+ * bucket that every query scans.
+ */
+public final class GridSpatialIndex implements SpatialIndex {
+	
+	private static final int MAX_CELLS_PER_WIDGET = 64 ;
+	
+	private final int cellSize ;
+	private final PersistentHashMap<Long, PersistentHashMap<UUID, PackedWidget>> cells ;
+	private final PersistentHashMap<UUID, PackedWidget> oversized ;
+	
+	private GridSpatialIndex(int cellSize, PersistentHashMap<Long, PersistentHashMap<UUID, PackedWidget>> cells, PersistentHashMap<UUID, PackedWidget> oversized) {
+		this.cellSize = cellSize ;
+		this.cells = cells ;
+		this.oversized = oversized ;
+	}
+	
+	public static GridSpatialIndex empty(int cellSize) {
+		if (cellSize < 1) {
+			throw new IllegalArgumentException("grid cell size must be greater than 0") ;
+		}
+		return new GridSpatialIndex(cellSize, PersistentHashMap.empty(), PersistentHashMap.empty()) ;
+	}
+
+	@Override
+	public SpatialIndex insert(PackedWidget widget) {
+		if (isOversized(widget)) {
+			return new GridSpatialIndex(cellSize, cells, oversized.put(widget.getKey(), widget)) ;
+		}
+		PersistentHashMap<Long, PersistentHashMap<UUID, PackedWidget>> updated = cells ;
+		for (long cx = cell(widget.getX()); cx <= cell((long) widget.getX() + widget.getWidth()); cx++) {
+			for (long cy = cell(widget.getY()); cy <= cell((long) widget.getY() + widget.getHeight()); cy++) {
+				long key = key(cx, cy) ;
+				PersistentHashMap<UUID, PackedWidget> bucket = updated.get(key) ;
+				if (bucket == null) {
+					bucket = PersistentHashMap.empty() ;
+				}
+				updated = updated.put(key, bucket.put(widget.getKey(), widget)) ;
+			}
+		}
+		return new GridSpatialIndex(cellSize, updated, oversized) ;
+	}
+
+	@Override
+	public SpatialIndex remove(PackedWidget widget) {
+		if (isOversized(widget)) {
+			return new GridSpatialIndex(cellSize, cells, oversized.remove(widget.getKey())) ;
+		}
+		PersistentHashMap<Long, PersistentHashMap<UUID, PackedWidget>> updated = cells ;
+		for (long cx = cell(widget.getX()); cx <= cell((long) widget.getX() + widget.getWidth()); cx++) {
+			for (long cy = cell(widget.getY()); cy <= cell((long) widget.getY() + widget.getHeight()); cy++) {
+				long key = key(cx, cy) ;
+				PersistentHashMap<UUID, PackedWidget> bucket = updated.get(key) ;
+				if (bucket == null) {
+					continue ;
+				}
+				bucket = bucket.remove(widget.getKey()) ;
+				updated = bucket.isEmpty() ? updated.remove(key) : updated.put(key, bucket) ;
+			}
+		}
+		return new GridSpatialIndex(cellSize, updated, oversized) ;
+	}
+
+	@Override
+	public void search(RegionDto region, Consumer<PackedWidget> consumer) {
+		long minX = region.getX() ;
+		long minY = region.getY() ;
+		long maxX = minX + region.getWidth() ;
+		long maxY = minY + region.getHeight() ;
+		
+		oversized.forEach((id, widget) -> {
+			if (SpatialIndex.intersects(widget, minX, minY, maxX, maxY)) {
+				consumer.accept(widget);
+			}
+		});
+		
+		long fromX = cell(minX), toX = cell(maxX), fromY = cell(minY), toY = cell(maxY) ;
+		if ((toX - fromX + 1) * (toY - fromY + 1) > cells.size()) {
+			cells.forEach((key, bucket) -> {
+				long cx = key >> 32 ;
+				long cy = (int) (long) key ;
+				if (cx >= fromX && cx <= toX && cy >= fromY && cy <= toY) {
+					searchBucket(bucket, cx, cy, minX, minY, maxX, maxY, consumer);
+				}
+			});
+			return ;
+		}
+		
+		for (long cx = fromX; cx <= toX; cx++) {
+			for (long cy = fromY; cy <= toY; cy++) {
+				PersistentHashMap<UUID, PackedWidget> bucket = cells.get(key(cx, cy)) ;
+				if (bucket != null) {
+					searchBucket(bucket, cx, cy, minX, minY, maxX, maxY, consumer);
+				}
+			}
+		}
+	}
+	
+	private void searchBucket(PersistentHashMap<UUID, PackedWidget> bucket, long cx, long cy, long minX, long minY, long maxX, long maxY, Consumer<PackedWidget> consumer) {
+		bucket.forEach((id, widget) -> {
+			// a widget spanning several cells is reported only from the first cell shared with the region
+			if (SpatialIndex.intersects(widget, minX, minY, maxX, maxY)
+					&& cx == Math.max(cell(widget.getX()), cell(minX))
+					&& cy == Math.max(cell(widget.getY()), cell(minY))) {
+				consumer.accept(widget);
+			}
+		});
+	}
+	
+	private boolean isOversized(PackedWidget widget) {
+		long columns = cell((long) widget.getX() + widget.getWidth()) - cell(widget.getX()) + 1 ;
+		long rows = cell((long) widget.getY() + widget.getHeight()) - cell(widget.getY()) + 1 ;
+		return columns * rows > MAX_CELLS_PER_WIDGET ;
+	}
+	
+	private long cell(long coordinate) {
+		return Math.floorDiv(coordinate, cellSize) ;
+	}
+	
+	private static long key(long cx, long cy) {
+		return (cx << 32) | (cy & 0xffffffffL) ;
+	}
+}
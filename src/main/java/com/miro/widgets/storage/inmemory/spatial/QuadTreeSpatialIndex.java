@@ -0,0 +1,144 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+import com.miro.widgets.storage.inmemory.collection.PersistentHashMap;
+
+/**
+ * Loose quadtree over the whole integer plane. A widget lives in the deepest node whose
+ * cell is at least as large as the widget and contains its center; node bounds are
+ * enlarged by half a cell on every side so that such a node always covers the widget.
+ */
+public final class QuadTreeSpatialIndex implements SpatialIndex {
+	
+	private static final int ROOT_SIZE_BITS = 32 ;
+	private static final int MAX_DEPTH = 28 ;
+	private static final long ORIGIN = Integer.MIN_VALUE ;
+	
+	private static final QuadTreeSpatialIndex EMPTY = new QuadTreeSpatialIndex(null) ;
+	
+	private final Node root ;
+	
+	private QuadTreeSpatialIndex(Node root) {
+		this.root = root ;
+	}
+	
+	public static QuadTreeSpatialIndex empty() {
+		return EMPTY ;
+	}
+
+	@Override
+	public SpatialIndex insert(PackedWidget widget) {
+		return new QuadTreeSpatialIndex(insert(root, 0, widget, depthOf(widget), centerX(widget), centerY(widget))) ;
+	}
+
+	@Override
+	public SpatialIndex remove(PackedWidget widget) {
+		Node newRoot = remove(root, 0, widget, depthOf(widget), centerX(widget), centerY(widget)) ;
+		return newRoot == root ? this : new QuadTreeSpatialIndex(newRoot) ;
+	}
+
+	@Override
+	public void search(RegionDto region, Consumer<PackedWidget> consumer) {
+		long minX = region.getX() ;
+		long minY = region.getY() ;
+		search(root, 0, ORIGIN, ORIGIN, minX, minY, minX + region.getWidth(), minY + region.getHeight(), consumer);
+	}
+	
+	private static Node insert(Node node, int depth, PackedWidget widget, int targetDepth, long centerX, long centerY) {
+		if (node == null) {
+			node = Node.EMPTY ;
+		}
+		if (depth == targetDepth) {
+			return new Node(node.items.put(widget.getKey(), widget), node.children) ;
+		}
+		int quadrant = quadrant(depth, centerX, centerY) ;
+		Node[] children = node.children.clone() ;
+		children[quadrant] = insert(children[quadrant], depth + 1, widget, targetDepth, centerX, centerY) ;
+		return new Node(node.items, children) ;
+	}
+	
+	private static Node remove(Node node, int depth, PackedWidget widget, int targetDepth, long centerX, long centerY) {
+		if (node == null) {
+			return null ;
+		}
+		if (depth == targetDepth) {
+			PersistentHashMap<UUID, PackedWidget> items = node.items.remove(widget.getKey()) ;
+			return items == node.items ? node : Node.of(items, node.children) ;
+		}
+		int quadrant = quadrant(depth, centerX, centerY) ;
+		Node child = remove(node.children[quadrant], depth + 1, widget, targetDepth, centerX, centerY) ;
+		if (child == node.children[quadrant]) {
+			return node ;
+		}
+		Node[] children = node.children.clone() ;
+		children[quadrant] = child ;
+		return Node.of(node.items, children) ;
+	}
+	
+	private static void search(Node node, int depth, long cellX, long cellY, long minX, long minY, long maxX, long maxY, Consumer<PackedWidget> consumer) {
+		if (node == null) {
+			return ;
+		}
+		long size = 1L << (ROOT_SIZE_BITS - depth) ;
+		long slack = size / 2 ;
+		if (cellX - slack > maxX || cellX + size + slack < minX || cellY - slack > maxY || cellY + size + slack < minY) {
+			return ;
+		}
+		
+		node.items.forEach((id, widget) -> {
+			if (SpatialIndex.intersects(widget, minX, minY, maxX, maxY)) {
+				consumer.accept(widget);
+			}
+		});
+		
+		long half = size / 2 ;
+		for (int quadrant = 0; quadrant < 4; quadrant++) {
+			search(node.children[quadrant], depth + 1, cellX + ((quadrant & 1) == 0 ? 0 : half), cellY + ((quadrant & 2) == 0 ? 0 : half), minX, minY, maxX, maxY, consumer);
+		}
+	}
+	
+	private static int depthOf(PackedWidget widget) {
+		long extent = Math.max(widget.getWidth(), widget.getHeight()) ;
+		int depth = 0 ;
+		while (depth < MAX_DEPTH && (1L << (ROOT_SIZE_BITS - depth - 1)) >= extent) {
+			depth++ ;
+		}
+		return depth ;
+	}
+	
+	private static int quadrant(int depth, long centerX, long centerY) {
+		int bit = ROOT_SIZE_BITS - depth - 1 ;
+		return (int) (((centerX - ORIGIN) >>> bit) & 1) | (int) ((((centerY - ORIGIN) >>> bit) & 1) << 1) ;
+	}
+	
+	private static long centerX(PackedWidget widget) {
+		return Math.min((long) widget.getX() + widget.getWidth() / 2, Integer.MAX_VALUE) ;
+	}
+	
+	private static long centerY(PackedWidget widget) {
+		return Math.min((long) widget.getY() + widget.getHeight() / 2, Integer.MAX_VALUE) ;
+	}
+	
+	private static final class Node {
+		private static final Node EMPTY = new Node(PersistentHashMap.empty(), new Node[4]) ;
+		
+		private final PersistentHashMap<UUID, PackedWidget> items ;
+		private final Node[] children ;
+		
+		private Node(PersistentHashMap<UUID, PackedWidget> items, Node[] children) {
+			this.items = items ;
+			this.children = children ;
+		}
+		
+		private static Node of(PersistentHashMap<UUID, PackedWidget> items, Node[] children) {
+			if (items.isEmpty() && children[0] == null && children[1] == null && children[2] == null && children[3] == null) {
+				return null ;
+			}
+			return new Node(items, children) ;
+		}
+	}
+}
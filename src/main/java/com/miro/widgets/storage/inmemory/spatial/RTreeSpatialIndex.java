@@ -0,0 +1,321 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+
+/**
+ * Persistent R-tree. Insertion descends by least enlargement and splits overflowing
+ * nodes in half along the axis with the larger spread; removal drops emptied nodes
+ * without reinsertion. Only the nodes on the modified path are copied.
+ * <p>
+ * Leaves keep the bounds of their widgets in a primitive column next to the widgets,
+ * so a leaf is scanned without touching the widgets that do not intersect the region.
+ */
+public final class RTreeSpatialIndex implements SpatialIndex {
+	
+	private static final int MAX_ENTRIES = 16 ;
+	private static final long HILBERT_MAX = (1 << 16) - 1 ;
+	
+	private static final RTreeSpatialIndex EMPTY = new RTreeSpatialIndex(null) ;
+	
+	private final Node root ;
+	
+	private RTreeSpatialIndex(Node root) {
+		this.root = root ;
+	}
+	
+	public static RTreeSpatialIndex empty() {
+		return EMPTY ;
+	}
+
+	@Override
+	public SpatialIndex insert(PackedWidget widget) {
+		if (root == null) {
+			return new RTreeSpatialIndex(Node.of(true, new Object[] {widget})) ;
+		}
+		Node[] nodes = insert(root, widget) ;
+		return new RTreeSpatialIndex(nodes.length == 1 ? nodes[0] : Node.of(false, new Object[] {nodes[0], nodes[1]})) ;
+	}
+
+	/**
+	 * Packs the widgets into an empty tree: widgets are sorted by the Hilbert key of their
+	 * centers, and consecutive runs of entries are cut into full nodes level by level.
+	 */
+	@Override
+	public SpatialIndex insertAll(List<PackedWidget> widgets) {
+		if (root != null || widgets.isEmpty()) {
+			return SpatialIndex.super.insertAll(widgets) ;
+		}
+		long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE ;
+		for (PackedWidget widget : widgets) {
+			minX = Math.min(minX, centerX(widget)) ;
+			minY = Math.min(minY, centerY(widget)) ;
+			maxX = Math.max(maxX, centerX(widget)) ;
+			maxY = Math.max(maxY, centerY(widget)) ;
+		}
+		double scaleX = (double) HILBERT_MAX / Math.max(1, maxX - minX) ;
+		double scaleY = (double) HILBERT_MAX / Math.max(1, maxY - minY) ;
+		// keys take up to 32 bits, so they are sorted next to the positions rather than packed with them
+		long[] keys = new long[widgets.size()] ;
+		Integer[] order = new Integer[keys.length] ;
+		for (int i = 0; i < keys.length; i++) {
+			PackedWidget widget = widgets.get(i) ;
+			keys[i] = hilbert((long) ((centerX(widget) - minX) * scaleX), (long) ((centerY(widget) - minY) * scaleY)) ;
+			order[i] = i ;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+		Object[] entries = new Object[order.length] ;
+		for (int i = 0; i < order.length; i++) {
+			entries[i] = widgets.get(order[i]) ;
+		}
+		boolean leaf = true ;
+		do {
+			entries = pack(leaf, entries) ;
+			leaf = false ;
+		} while (entries.length > 1) ;
+		return new RTreeSpatialIndex((Node) entries[0]) ;
+	}
+
+	@Override
+	public SpatialIndex remove(PackedWidget widget) {
+		Node newRoot = remove(root, widget) ;
+		if (newRoot == root) {
+			return this ;
+		}
+		while (newRoot != null && !newRoot.leaf && newRoot.entries.length == 1) {
+			newRoot = (Node) newRoot.entries[0] ;
+		}
+		return newRoot == null ? EMPTY : new RTreeSpatialIndex(newRoot) ;
+	}
+
+	@Override
+	public void search(RegionDto region, Consumer<PackedWidget> consumer) {
+		long minX = region.getX() ;
+		long minY = region.getY() ;
+		search(root, minX, minY, minX + region.getWidth(), minY + region.getHeight(), consumer);
+	}
+	
+	private static void search(Node node, long minX, long minY, long maxX, long maxY, Consumer<PackedWidget> consumer) {
+		if (node == null || node.minX > maxX || node.maxX < minX || node.minY > maxY || node.maxY < minY) {
+			return ;
+		}
+		if (node.leaf) {
+			int[] bounds = node.bounds ;
+			for (int i = 0, b = 0; i < node.entries.length; i++, b += 4) {
+				if (bounds[b] <= maxX && (long) bounds[b] + bounds[b + 2] >= minX
+						&& bounds[b + 1] <= maxY && (long) bounds[b + 1] + bounds[b + 3] >= minY) {
+					consumer.accept((PackedWidget) node.entries[i]);
+				}
+			}
+			return ;
+		}
+		for (Object entry : node.entries) {
+			search((Node) entry, minX, minY, maxX, maxY, consumer);
+		}
+	}
+	
+	private static Node[] insert(Node node, PackedWidget widget) {
+		Object[] entries ;
+		if (node.leaf) {
+			entries = Arrays.copyOf(node.entries, node.entries.length + 1) ;
+			entries[node.entries.length] = widget ;
+		} else {
+			int best = chooseSubtree(node, widget) ;
+			Node[] replaced = insert((Node) node.entries[best], widget) ;
+			entries = Arrays.copyOf(node.entries, node.entries.length + replaced.length - 1) ;
+			entries[best] = replaced[0] ;
+			if (replaced.length == 2) {
+				entries[node.entries.length] = replaced[1] ;
+			}
+		}
+		
+		if (entries.length <= MAX_ENTRIES) {
+			return new Node[] {Node.of(node.leaf, entries)} ;
+		}
+		return split(node.leaf, entries) ;
+	}
+	
+	private static Node remove(Node node, PackedWidget widget) {
+		if (node == null) {
+			return null ;
+		}
+		long minX = widget.getX(), minY = widget.getY() ;
+		long maxX = minX + widget.getWidth(), maxY = minY + widget.getHeight() ;
+		
+		for (int i = 0; i < node.entries.length; i++) {
+			Object entry = node.entries[i] ;
+			Object replacement ;
+			if (node.leaf) {
+				if (!((PackedWidget) entry).getKey().equals(widget.getKey())) {
+					continue ;
+				}
+				replacement = null ;
+			} else {
+				Node child = (Node) entry ;
+				if (child.minX > minX || child.minY > minY || child.maxX < maxX || child.maxY < maxY) {
+					continue ;
+				}
+				replacement = remove(child, widget) ;
+				if (replacement == child) {
+					continue ;
+				}
+			}
+			
+			Object[] entries ;
+			if (replacement == null) {
+				if (node.entries.length == 1) {
+					return null ;
+				}
+				entries = new Object[node.entries.length - 1] ;
+				System.arraycopy(node.entries, 0, entries, 0, i);
+				System.arraycopy(node.entries, i + 1, entries, i, entries.length - i);
+			} else {
+				entries = node.entries.clone() ;
+				entries[i] = replacement ;
+			}
+			return Node.of(node.leaf, entries) ;
+		}
+		return node ;
+	}
+	
+	private static int chooseSubtree(Node node, PackedWidget widget) {
+		int best = 0 ;
+		double bestEnlargement = Double.MAX_VALUE ;
+		double bestArea = Double.MAX_VALUE ;
+		for (int i = 0; i < node.entries.length; i++) {
+			Node child = (Node) node.entries[i] ;
+			double area = child.area() ;
+			double enlarged = (double) (Math.max(child.maxX, (long) widget.getX() + widget.getWidth()) - Math.min(child.minX, widget.getX()))
+					* (Math.max(child.maxY, (long) widget.getY() + widget.getHeight()) - Math.min(child.minY, widget.getY())) ;
+			double enlargement = enlarged - area ;
+			if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+				best = i ;
+				bestEnlargement = enlargement ;
+				bestArea = area ;
+			}
+		}
+		return best ;
+	}
+	
+	private static Node[] split(boolean leaf, Object[] entries) {
+		long minCenterX = Long.MAX_VALUE, maxCenterX = Long.MIN_VALUE, minCenterY = Long.MAX_VALUE, maxCenterY = Long.MIN_VALUE ;
+		for (Object entry : entries) {
+			long cx = centerX(entry), cy = centerY(entry) ;
+			minCenterX = Math.min(minCenterX, cx) ;
+			maxCenterX = Math.max(maxCenterX, cx) ;
+			minCenterY = Math.min(minCenterY, cy) ;
+			maxCenterY = Math.max(maxCenterY, cy) ;
+		}
+		Comparator<Object> order = maxCenterX - minCenterX >= maxCenterY - minCenterY
+				? Comparator.comparingLong(RTreeSpatialIndex::centerX)
+				: Comparator.comparingLong(RTreeSpatialIndex::centerY) ;
+		Object[] sorted = entries.clone() ;
+		Arrays.sort(sorted, order);
+		int half = sorted.length / 2 ;
+		return new Node[] {
+				Node.of(leaf, Arrays.copyOfRange(sorted, 0, half)),
+				Node.of(leaf, Arrays.copyOfRange(sorted, half, sorted.length))
+		} ;
+	}
+	
+	private static Object[] pack(boolean leaf, Object[] entries) {
+		Object[] packed = new Object[(entries.length + MAX_ENTRIES - 1) / MAX_ENTRIES] ;
+		for (int i = 0; i < packed.length; i++) {
+			packed[i] = Node.of(leaf, Arrays.copyOfRange(entries, i * MAX_ENTRIES, Math.min(entries.length, (i + 1) * MAX_ENTRIES))) ;
+		}
+		return packed ;
+	}
+	
+	/**
+	 * Position of the point on a Hilbert curve filling a square of 2^16 by 2^16 points.
+	 */
+	private static long hilbert(long x, long y) {
+		long n = HILBERT_MAX + 1 ;
+		long d = 0 ;
+		for (long s = n >>> 1; s > 0; s >>>= 1) {
+			long rx = (x & s) != 0 ? 1 : 0 ;
+			long ry = (y & s) != 0 ? 1 : 0 ;
+			d += s * s * ((3 * rx) ^ ry) ;
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x ;
+					y = n - 1 - y ;
+				}
+				long t = x ;
+				x = y ;
+				y = t ;
+			}
+		}
+		return d ;
+	}
+	
+	private static long centerX(Object entry) {
+		if (entry instanceof PackedWidget) {
+			PackedWidget widget = (PackedWidget) entry ;
+			return 2L * widget.getX() + widget.getWidth() ;
+		}
+		Node node = (Node) entry ;
+		return node.minX + node.maxX ;
+	}
+	
+	private static long centerY(Object entry) {
+		if (entry instanceof PackedWidget) {
+			PackedWidget widget = (PackedWidget) entry ;
+			return 2L * widget.getY() + widget.getHeight() ;
+		}
+		Node node = (Node) entry ;
+		return node.minY + node.maxY ;
+	}
+	
+	private static final class Node {
+		private final boolean leaf ;
+		private final Object[] entries ;
+		private final int[] bounds ;
+		private final long minX, minY, maxX, maxY ;
+		
+		private Node(boolean leaf, Object[] entries, int[] bounds, long minX, long minY, long maxX, long maxY) {
+			this.leaf = leaf ;
+			this.entries = entries ;
+			this.bounds = bounds ;
+			this.minX = minX ;
+			this.minY = minY ;
+			this.maxX = maxX ;
+			this.maxY = maxY ;
+		}
+		
+		private static Node of(boolean leaf, Object[] entries) {
+			long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE ;
+			int[] bounds = leaf ? new int[entries.length * 4] : null ;
+			for (int i = 0; i < entries.length; i++) {
+				Object entry = entries[i] ;
+				if (leaf) {
+					PackedWidget widget = (PackedWidget) entry ;
+					bounds[i * 4] = widget.getX() ;
+					bounds[i * 4 + 1] = widget.getY() ;
+					bounds[i * 4 + 2] = widget.getWidth() ;
+					bounds[i * 4 + 3] = widget.getHeight() ;
+					minX = Math.min(minX, widget.getX()) ;
+					minY = Math.min(minY, widget.getY()) ;
+					maxX = Math.max(maxX, (long) widget.getX() + widget.getWidth()) ;
+					maxY = Math.max(maxY, (long) widget.getY() + widget.getHeight()) ;
+				} else {
+					Node node = (Node) entry ;
+					minX = Math.min(minX, node.minX) ;
+					minY = Math.min(minY, node.minY) ;
+					maxX = Math.max(maxX, node.maxX) ;
+					maxY = Math.max(maxY, node.maxY) ;
+				}
+			}
+			return new Node(leaf, entries, bounds, minX, minY, maxX, maxY) ;
+		}
+		
+		private double area() {
+			return (double) (maxX - minX) * (maxY - minY) ;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+
+/**
+ * Immutable spatial index over widget bounding boxes. Implementations are persistent:
+ * insert and remove return a new index sharing structure with the receiver, so an
+ * index can be published as part of a snapshot and queried without locking.
+ */
+public interface SpatialIndex {
+	SpatialIndex insert(PackedWidget widget) ;
+	
+	SpatialIndex remove(PackedWidget widget) ;
+	
+	/**
+	 * Inserts all widgets, implementations may build the index in bulk.
+	 */
+	default SpatialIndex insertAll(List<PackedWidget> widgets) {
+		SpatialIndex index = this ;
+		for (PackedWidget widget : widgets) {
+			index = index.insert(widget) ;
+		}
+		return index ;
+	}
+	
+	/**
+	 * Passes every widget whose bounds intersect the region to the consumer exactly once.
+	 * Callers apply the exact containment check.
+	 */
+	void search(RegionDto region, Consumer<PackedWidget> consumer) ;
+	
+	/**
+	 * Passes every widget containing the point, edges included, to the consumer exactly once.
+	 */
+	default void search(int x, int y, Consumer<PackedWidget> consumer) {
+		search(RegionDto.builder().x(x).y(y).width(0).height(0).build(), consumer) ;
+	}
+	
+	static boolean intersects(PackedWidget widget, long minX, long minY, long maxX, long maxY) {
+		return widget.getX() <= maxX && (long) widget.getX() + widget.getWidth() >= minX
+				&& widget.getY() <= maxY && (long) widget.getY() + widget.getHeight() >= minY ;
+	}
+}
@@ -0,0 +1,28 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class SpatialIndexConfig {
+	
+	@Bean
+	@ConditionalOnProperty(name = "widgets.inmemory.spatial-index", havingValue = "rtree", matchIfMissing = true)
+	public SpatialIndex rtreeSpatialIndex() {
+		return RTreeSpatialIndex.empty() ;
+	}
+	
+	@Bean
+	@ConditionalOnProperty(name = "widgets.inmemory.spatial-index", havingValue = "quadtree")
+	public SpatialIndex quadTreeSpatialIndex() {
+		return QuadTreeSpatialIndex.empty() ;
+	}
+	
+	@Bean
+	@ConditionalOnProperty(name = "widgets.inmemory.spatial-index", havingValue = "grid")
+	public SpatialIndex gridSpatialIndex(@Value("${widgets.inmemory.grid-cell-size:256}") int cellSize) {
+		return GridSpatialIndex.empty(cellSize) ;
+	}
+}
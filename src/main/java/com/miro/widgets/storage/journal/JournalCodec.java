@@ -0,0 +1,262 @@
+package com.miro.widgets.storage.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetStorage;
+
+/**
+ * Binary encoding of widgets and of the mutations recorded in the journal. Absent fields of a
+ * widget are marked in a leading flag byte, the requested z index of a mutation may be absent.
+ * Updates and deletes are recorded with the version they were conditioned on, if any, so that
+ * a replay reaches the same results, including the conflicts. Ids are written as the two longs
+ * of their UUID.
+ */
+final class JournalCodec {
+
+	static final byte CREATE = 1 ;
+	static final byte UPDATE = 2 ;
+	static final byte DELETE = 3 ;
+	static final byte BATCH = 4 ;
+	static final byte CLEAR = 5 ;
+
+	private static final int HAS_X = 1 ;
+	private static final int HAS_Y = 1 << 1 ;
+	private static final int HAS_ZINDEX = 1 << 2 ;
+	private static final int HAS_WIDTH = 1 << 3 ;
+	private static final int HAS_HEIGHT = 1 << 4 ;
+	private static final int HAS_DATE = 1 << 5 ;
+	private static final int HAS_VERSION = 1 << 6 ;
+
+	/**
+	 * Marks a batched delete followed by the version it is conditioned on.
+	 */
+	private static final int CONDITIONAL = 1 << 4 ;
+
+	private static final int ID_SIZE = 16 ;
+
+	private JournalCodec() {
+	}
+
+	static byte[] create(Widget widget) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + maxSize(widget, true)) ;
+		buffer.put(CREATE) ;
+		putWidget(buffer, widget, true) ;
+		return toArray(buffer) ;
+	}
+
+	static byte[] update(Widget widget) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + maxSize(widget, true)) ;
+		buffer.put(UPDATE) ;
+		putWidget(buffer, widget, true) ;
+		return toArray(buffer) ;
+	}
+
+	static byte[] delete(String board, String id, Long version) {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + maxSize(board) + ID_SIZE + 8) ;
+		buffer.put(DELETE) ;
+		putString(buffer, board) ;
+		putId(buffer, id) ;
+		if (version != null) {
+			buffer.putLong(version) ;
+		}
+		return toArray(buffer) ;
+	}
+
+	static byte[] batch(String board, List<WidgetOperation> operations) {
+		int size = 1 + maxSize(board) + 4 ;
+		for (WidgetOperation operation : operations) {
+			size += 1 + (operation.getType() == WidgetOperation.Type.DELETE ? ID_SIZE + 8 : maxSize(operation.getWidget(), true)) ;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size) ;
+		buffer.put(BATCH) ;
+		putString(buffer, board) ;
+		buffer.putInt(operations.size()) ;
+		for (WidgetOperation operation : operations) {
+			if (operation.getType() == WidgetOperation.Type.DELETE) {
+				buffer.put((byte) (operation.getType().ordinal() | (operation.getVersion() == null ? 0 : CONDITIONAL))) ;
+				putId(buffer, operation.getId()) ;
+				if (operation.getVersion() != null) {
+					buffer.putLong(operation.getVersion()) ;
+				}
+			} else {
+				buffer.put((byte) operation.getType().ordinal()) ;
+				putWidget(buffer, operation.getWidget(), true) ;
+			}
+		}
+		return toArray(buffer) ;
+	}
+
+	static byte[] clear() {
+		return new byte[] { CLEAR } ;
+	}
+
+	/**
+	 * Applies the recorded mutation to the storage.
+	 */
+	static void replay(ByteBuffer record, WidgetStorage storage) {
+		byte type = record.get() ;
+		switch (type) {
+		case CREATE:
+			storage.create(getWidget(record, null)) ;
+			break ;
+		case UPDATE:
+			Widget updated = getWidget(record, null) ;
+			replayConditional(() -> storage.update(updated)) ;
+			break ;
+		case DELETE:
+			String deletedFrom = getString(record) ;
+			String deleted = getId(record) ;
+			Long version = record.hasRemaining() ? record.getLong() : null ;
+			replayConditional(() -> storage.deleteById(deletedFrom, deleted, version)) ;
+			break ;
+		case BATCH:
+			String board = getString(record) ;
+			int size = record.getInt() ;
+			List<WidgetOperation> operations = new ArrayList<>(size) ;
+			for (int i = 0; i < size; i++) {
+				int marker = record.get() ;
+				WidgetOperation.Type operation = WidgetOperation.Type.values()[marker & ~CONDITIONAL] ;
+				switch (operation) {
+				case CREATE:
+					operations.add(WidgetOperation.create(getWidget(record, null))) ;
+					break ;
+				case UPDATE:
+					operations.add(WidgetOperation.update(getWidget(record, null))) ;
+					break ;
+				case DELETE:
+					String id = getId(record) ;
+					operations.add(WidgetOperation.delete(board, id, (marker & CONDITIONAL) == 0 ? null : record.getLong())) ;
+					break ;
+				}
+			}
+			storage.applyBatch(board, operations) ;
+			break ;
+		case CLEAR:
+			storage.deleteAll();
+			break ;
+		default:
+			throw new IllegalStateException("unknown journal record type " + type) ;
+		}
+	}
+
+	/**
+	 * Conditional mutations are journaled before they are applied, one that failed on its
+	 * version fails the same way on replay and leaves the storage unchanged.
+	 */
+	private static void replayConditional(Runnable mutation) {
+		try {
+			mutation.run();
+		} catch (WidgetConflictException e) {
+			// failed the same way when it was written
+		}
+	}
+
+	/**
+	 * Upper bound of the encoded size of the widget.
+	 */
+	static int maxSize(Widget widget, boolean withBoard) {
+		return ID_SIZE + (withBoard ? maxSize(widget.getBoard()) : 0) + 1 + 5 * 4 + 8 + 4 + 8 ;
+	}
+
+	static void putWidget(ByteBuffer buffer, Widget widget, boolean withBoard) {
+		putId(buffer, widget.getId()) ;
+		if (withBoard) {
+			putString(buffer, widget.getBoard()) ;
+		}
+		int flags = (widget.getX() == null ? 0 : HAS_X)
+				| (widget.getY() == null ? 0 : HAS_Y)
+				| (widget.getZindex() == null ? 0 : HAS_ZINDEX)
+				| (widget.getWidth() == null ? 0 : HAS_WIDTH)
+				| (widget.getHeight() == null ? 0 : HAS_HEIGHT)
+				| (widget.getLastModificationDate() == null ? 0 : HAS_DATE)
+				| (widget.getVersion() == null ? 0 : HAS_VERSION) ;
+		buffer.put((byte) flags) ;
+		putInt(buffer, widget.getX()) ;
+		putInt(buffer, widget.getY()) ;
+		putInt(buffer, widget.getZindex()) ;
+		putInt(buffer, widget.getWidth()) ;
+		putInt(buffer, widget.getHeight()) ;
+		if (widget.getLastModificationDate() != null) {
+			buffer.putLong(widget.getLastModificationDate().toEpochSecond(ZoneOffset.UTC)) ;
+			buffer.putInt(widget.getLastModificationDate().getNano()) ;
+		}
+		if (widget.getVersion() != null) {
+			buffer.putLong(widget.getVersion()) ;
+		}
+	}
+
+	/**
+	 * Reads a widget, its board is read as well unless it is given.
+	 */
+	static Widget getWidget(ByteBuffer buffer, String board) {
+		String id = getId(buffer) ;
+		if (board == null) {
+			board = getString(buffer) ;
+		}
+		int flags = buffer.get() ;
+		return Widget.builder()
+				.id(id)
+				.board(board)
+				.x(getInt(buffer, flags, HAS_X))
+				.y(getInt(buffer, flags, HAS_Y))
+				.zindex(getInt(buffer, flags, HAS_ZINDEX))
+				.width(getInt(buffer, flags, HAS_WIDTH))
+				.height(getInt(buffer, flags, HAS_HEIGHT))
+				.lastModificationDate((flags & HAS_DATE) == 0 ? null : LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC))
+				.version((flags & HAS_VERSION) == 0 ? null : buffer.getLong())
+				.build() ;
+	}
+
+	static int maxSize(String value) {
+		return 2 + 3 * value.length() ;
+	}
+
+	static void putString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8) ;
+		buffer.putShort((short) bytes.length) ;
+		buffer.put(bytes) ;
+	}
+
+	static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())] ;
+		buffer.get(bytes) ;
+		return new String(bytes, StandardCharsets.UTF_8) ;
+	}
+
+	static void putId(ByteBuffer buffer, String id) {
+		UUID uuid = WidgetIds.parse(id) ;
+		buffer.putLong(uuid.getMostSignificantBits()) ;
+		buffer.putLong(uuid.getLeastSignificantBits()) ;
+	}
+
+	static String getId(ByteBuffer buffer) {
+		return new UUID(buffer.getLong(), buffer.getLong()).toString() ;
+	}
+
+	private static void putInt(ByteBuffer buffer, Integer value) {
+		if (value != null) {
+			buffer.putInt(value) ;
+		}
+	}
+
+	private static Integer getInt(ByteBuffer buffer, int flags, int flag) {
+		return (flags & flag) == 0 ? null : buffer.getInt() ;
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.position()] ;
+		buffer.flip() ;
+		buffer.get(bytes) ;
+		return bytes ;
+	}
+}
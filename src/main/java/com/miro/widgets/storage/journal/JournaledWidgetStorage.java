@@ -0,0 +1,283 @@
+package com.miro.widgets.storage.journal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+import com.miro.widgets.storage.WidgetStorage;
+import com.miro.widgets.storage.inmemory.InMemoryWidgetStorage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Makes the in-memory storage durable. Reads are served from memory. A mutation is appended
+ * to the journal and then applied to memory while the lock of its board is held, so the
+ * journal has the order of the snapshots and a mutation the journal refused never reaches
+ * memory. It returns once a group commit has synced it to disk. A failed sync stops the
+ * journal from accepting further writes.
+ * <p>
+ * Boards are written to a snapshot periodically or once the current journal segment grows
+ * past its size, after which the covered segments are deleted. The snapshot is cut by
+ * rotating the journal while all writers are held off, the immutable board snapshots taken
+ * at that moment are written afterwards without blocking anyone. On startup the latest
+ * snapshot is loaded and the journal written after it is replayed.
+ */
+@Component
+@Primary
+@ConditionalOnExpression("'${storage:inmemory}' == 'inmemory' and ${widgets.inmemory.journal.enabled:false}")
+@Slf4j
+public class JournaledWidgetStorage implements WidgetStorage {
+
+	private final InMemoryWidgetStorage memory ;
+	private final StorageMetrics metrics ;
+	private final Path directory ;
+	private final long snapshotIntervalSeconds ;
+	private final long segmentSize ;
+	private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>() ;
+	private final ReentrantReadWriteLock cut = new ReentrantReadWriteLock() ;
+	private final AtomicBoolean snapshotRequested = new AtomicBoolean() ;
+	private WidgetJournal journal ;
+	private ScheduledExecutorService snapshots ;
+
+	public JournaledWidgetStorage(InMemoryWidgetStorage memory, StorageMetrics metrics,
+			@Value("${widgets.inmemory.journal.directory:data/journal}") String directory,
+			@Value("${widgets.inmemory.journal.snapshot-interval-seconds:300}") long snapshotIntervalSeconds,
+			@Value("${widgets.inmemory.journal.segment-size:67108864}") long segmentSize) {
+		this.memory = memory ;
+		this.metrics = metrics ;
+		this.directory = Paths.get(directory) ;
+		this.snapshotIntervalSeconds = snapshotIntervalSeconds ;
+		this.segmentSize = segmentSize ;
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		Files.createDirectories(directory) ;
+		journal = new WidgetJournal(directory, recover(), metrics) ;
+		snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "widgets-snapshot") ;
+			thread.setDaemon(true);
+			return thread ;
+		}) ;
+		snapshots.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS) ;
+	}
+
+	@PreDestroy
+	public void shutdown() throws IOException, InterruptedException {
+		snapshots.shutdown();
+		snapshots.awaitTermination(30, TimeUnit.SECONDS) ;
+		journal.close();
+	}
+
+	@Override
+	public Optional<Widget> findById(String board, String id) {
+		return memory.findById(board, id) ;
+	}
+
+	@Override
+	public List<Widget> findAll(String board, Pageable pageable) {
+		return memory.findAll(board, pageable) ;
+	}
+
+	@Override
+	public List<Widget> findAllAfter(String board, Integer afterZindex, int limit) {
+		return memory.findAllAfter(board, afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegion(String board, RegionDto region) {
+		return memory.findAllByRegion(board, region) ;
+	}
+
+	@Override
+	public List<Widget> findAllByRegionAfter(String board, RegionDto region, Integer afterZindex, int limit) {
+		return memory.findAllByRegionAfter(board, region, afterZindex, limit) ;
+	}
+
+	@Override
+	public List<Widget> findAllAt(String board, int x, int y, int limit) {
+		return memory.findAllAt(board, x, y, limit) ;
+	}
+
+	@Override
+	public long version(String board) {
+		return memory.version(board) ;
+	}
+
+	@Override
+	public Optional<WidgetChanges> changesSince(String board, long version) {
+		return memory.changesSince(board, version) ;
+	}
+
+	@Override
+	public long count() {
+		return memory.count() ;
+	}
+
+	@Override
+	public void forEach(String board, Pageable pageable, Consumer<Widget> action) {
+		memory.forEach(board, pageable, action);
+	}
+
+	@Override
+	public void forEachByRegion(String board, RegionDto region, Consumer<Widget> action) {
+		memory.forEachByRegion(board, region, action);
+	}
+
+	@Override
+	public Widget create(Widget widget) {
+		return journaled(widget.getBoard(), JournalCodec.create(widget), () -> memory.create(widget)) ;
+	}
+
+	@Override
+	public WidgetOperationResult apply(WidgetOperation operation) {
+		switch (operation.getType()) {
+		case CREATE:
+			return WidgetOperationResult.created(create(operation.getWidget())) ;
+		case UPDATE:
+			return journaled(operation.getBoard(), JournalCodec.update(operation.getWidget()), () -> memory.apply(operation)) ;
+		default:
+			return journaled(operation.getBoard(), JournalCodec.delete(operation.getBoard(), operation.getId(), operation.getVersion()), () -> memory.apply(operation)) ;
+		}
+	}
+
+	@Override
+	public List<WidgetOperationResult> applyBatch(String board, List<WidgetOperation> operations) {
+		return journaled(board, JournalCodec.batch(board, operations), () -> memory.applyBatch(board, operations)) ;
+	}
+
+	@Override
+	public void deleteAll() {
+		long position ;
+		cut.writeLock().lock();
+		try {
+			position = journal.append(JournalCodec.clear()) ;
+			memory.deleteAll();
+		} finally {
+			cut.writeLock().unlock();
+		}
+		journal.awaitDurable(position);
+	}
+
+	/**
+	 * Writes all boards to a new snapshot and deletes the journal segments and snapshots it supersedes.
+	 */
+	public synchronized void snapshot() throws IOException {
+		long start = System.nanoTime() ;
+		long segment ;
+		Map<String, Iterable<Widget>> boards ;
+		cut.writeLock().lock();
+		try {
+			segment = journal.rotate() ;
+			boards = memory.snapshotBoards() ;
+		} finally {
+			cut.writeLock().unlock();
+		}
+		Path snapshot = SnapshotFiles.write(directory, segment, boards) ;
+		for (Path previous : SnapshotFiles.snapshots(directory)) {
+			if (SnapshotFiles.number(previous) < segment) {
+				Files.deleteIfExists(previous) ;
+			}
+		}
+		for (Path covered : WidgetJournal.segments(directory)) {
+			if (WidgetJournal.number(covered) < segment) {
+				Files.deleteIfExists(covered) ;
+			}
+		}
+		metrics.recordSnapshotWrite(System.nanoTime() - start);
+		log.info("wrote snapshot {} in {} ms", snapshot, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Appends the record and then applies the mutation to memory under the lock of the board,
+	 * then waits for the record to be synced outside of it. A mutation that fails in memory,
+	 * such as a version conflict, fails the same way when its record is replayed.
+	 */
+	private <T> T journaled(String board, byte[] record, Supplier<T> mutation) {
+		T result ;
+		long position ;
+		ReentrantLock lock = locks.computeIfAbsent(board, b -> new ReentrantLock()) ;
+		cut.readLock().lock();
+		lock.lock();
+		try {
+			position = journal.append(record) ;
+			result = mutation.get() ;
+		} finally {
+			lock.unlock();
+			cut.readLock().unlock();
+		}
+		journal.awaitDurable(position);
+		if (journal.segmentBytes() > segmentSize && snapshotRequested.compareAndSet(false, true)) {
+			snapshots.execute(this::snapshotIfChanged);
+		}
+		return result ;
+	}
+
+	private void snapshotIfChanged() {
+		snapshotRequested.set(false);
+		try {
+			if (journal.segmentBytes() > 0) {
+				snapshot();
+			}
+		} catch (IOException | RuntimeException e) {
+			log.error("snapshot failed, the journal is kept", e);
+		}
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the journal written after it, returns the number
+	 * of the segment to continue the journal in.
+	 */
+	private long recover() throws IOException {
+		long start = System.nanoTime() ;
+		SnapshotFiles.deleteTemporary(directory);
+		long from = 0 ;
+		Path latest = null ;
+		List<Path> snapshots = SnapshotFiles.snapshots(directory) ;
+		if (!snapshots.isEmpty()) {
+			latest = snapshots.get(snapshots.size() - 1) ;
+			SnapshotFiles.read(latest, memory::replaceAll);
+			from = SnapshotFiles.number(latest) ;
+		}
+		long next = from ;
+		int records = 0 ;
+		List<Path> segments = WidgetJournal.segments(directory) ;
+		for (int i = 0; i < segments.size(); i++) {
+			long segment = WidgetJournal.number(segments.get(i)) ;
+			if (segment >= from) {
+				records += WidgetJournal.read(segments.get(i), i == segments.size() - 1, record -> JournalCodec.replay(record, memory)) ;
+				next = segment + 1 ;
+			}
+		}
+		log.info("recovered from snapshot {} and {} journal records in {} ms", latest, records, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return next ;
+	}
+}
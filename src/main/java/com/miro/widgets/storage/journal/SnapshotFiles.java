@@ -0,0 +1,185 @@
+package com.miro.widgets.storage.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.miro.widgets.entity.Widget;
+
+/**
+ * Compact binary images of all boards, written and read through memory mapped windows of the
+ * file. A snapshot is written to a temporary file and renamed once it is complete, so a
+ * snapshot file is never partial. Its number is the first journal segment it does not cover.
+ * <p>
+ * Layout: magic, version, then per board a marker byte, the board name and the widget count
+ * followed by the length prefixed widgets in z index order, and a closing zero byte.
+ */
+final class SnapshotFiles {
+
+	private static final int MAGIC = 0x57534e50 ;
+	private static final int VERSION = 2 ;
+	private static final String PREFIX = "snapshot-" ;
+	private static final String SUFFIX = ".snap" ;
+	private static final String TEMPORARY_SUFFIX = ".tmp" ;
+	private static final long WINDOW = 64L << 20 ;
+
+	private SnapshotFiles() {
+	}
+
+	static Path write(Path directory, long segment, Map<String, Iterable<Widget>> boards) throws IOException {
+		Path temporary = directory.resolve(name(segment) + TEMPORARY_SUFFIX) ;
+		long size ;
+		try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			Window window = new Window(file, FileChannel.MapMode.READ_WRITE) ;
+			window.ensure(8).putInt(MAGIC).putInt(VERSION) ;
+			for (Map.Entry<String, Iterable<Widget>> board : boards.entrySet()) {
+				List<Widget> widgets = new ArrayList<>() ;
+				board.getValue().forEach(widgets::add) ;
+				MappedByteBuffer buffer = window.ensure(1 + JournalCodec.maxSize(board.getKey()) + 4) ;
+				buffer.put((byte) 1) ;
+				JournalCodec.putString(buffer, board.getKey()) ;
+				buffer.putInt(widgets.size()) ;
+				for (Widget widget : widgets) {
+					buffer = window.ensure(2 + JournalCodec.maxSize(widget, false)) ;
+					int start = buffer.position() ;
+					buffer.position(start + 2) ;
+					JournalCodec.putWidget(buffer, widget, false) ;
+					buffer.putShort(start, (short) (buffer.position() - start - 2)) ;
+				}
+			}
+			window.ensure(1).put((byte) 0) ;
+			size = window.position() ;
+			window.force();
+			file.truncate(size) ;
+			file.force(true);
+		}
+		Path snapshot = directory.resolve(name(segment)) ;
+		Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING) ;
+		syncDirectory(directory) ;
+		return snapshot ;
+	}
+
+	/**
+	 * Passes the widgets of every board in the snapshot to the action.
+	 */
+	static void read(Path snapshot, BiConsumer<String, List<Widget>> action) throws IOException {
+		try (FileChannel file = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			Window window = new Window(file, FileChannel.MapMode.READ_ONLY) ;
+			MappedByteBuffer buffer = window.ensure(8) ;
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IllegalStateException(snapshot + " is not a widget snapshot") ;
+			}
+			while (window.ensure(1).get() != 0) {
+				buffer = window.ensure(2) ;
+				int length = Short.toUnsignedInt(buffer.getShort(buffer.position())) ;
+				buffer = window.ensure(2 + length + 4) ;
+				String board = JournalCodec.getString(buffer) ;
+				int count = buffer.getInt() ;
+				List<Widget> widgets = new ArrayList<>(count) ;
+				for (int i = 0; i < count; i++) {
+					buffer = window.ensure(2) ;
+					buffer = window.ensure(2 + Short.toUnsignedInt(buffer.getShort(buffer.position()))) ;
+					buffer.getShort() ;
+					widgets.add(JournalCodec.getWidget(buffer, board)) ;
+				}
+				action.accept(board, widgets);
+			}
+		}
+	}
+
+	/**
+	 * Complete snapshots of the directory, the latest last.
+	 */
+	static List<Path> snapshots(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(f -> f.getFileName().toString().startsWith(PREFIX) && f.getFileName().toString().endsWith(SUFFIX))
+					.sorted((a, b) -> Long.compare(number(a), number(b)))
+					.collect(Collectors.toList()) ;
+		}
+	}
+
+	static long number(Path snapshot) {
+		String name = snapshot.getFileName().toString() ;
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())) ;
+	}
+
+	/**
+	 * Removes snapshots that were never completed.
+	 */
+	static void deleteTemporary(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : files.filter(f -> f.getFileName().toString().endsWith(TEMPORARY_SUFFIX)).collect(Collectors.toList())) {
+				Files.deleteIfExists(file) ;
+			}
+		}
+	}
+
+	private static String name(long segment) {
+		return String.format("%s%016d%s", PREFIX, segment, SUFFIX) ;
+	}
+
+	private static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform can sync a directory, the rename is still atomic
+		}
+	}
+
+	/**
+	 * Maps the file window by window, so files larger than a single mapping can be handled
+	 * and only the window in use has to be resident.
+	 */
+	private static final class Window {
+		private final FileChannel file ;
+		private final FileChannel.MapMode mode ;
+		private MappedByteBuffer buffer ;
+		private long base ;
+
+		private Window(FileChannel file, FileChannel.MapMode mode) {
+			this.file = file ;
+			this.mode = mode ;
+		}
+
+		/**
+		 * The mapped buffer, remapped at the current position if fewer than the given bytes remain.
+		 */
+		private MappedByteBuffer ensure(int bytes) throws IOException {
+			if (buffer == null || buffer.remaining() < bytes) {
+				if (buffer != null) {
+					base += buffer.position() ;
+					force();
+				}
+				long length = Math.max(WINDOW, bytes) ;
+				if (mode == FileChannel.MapMode.READ_ONLY) {
+					length = Math.min(length, file.size() - base) ;
+					if (length < bytes) {
+						throw new IllegalStateException("snapshot ends unexpectedly at position " + base) ;
+					}
+				}
+				buffer = file.map(mode, base, length) ;
+			}
+			return buffer ;
+		}
+
+		private long position() {
+			return base + buffer.position() ;
+		}
+
+		private void force() {
+			if (mode == FileChannel.MapMode.READ_WRITE) {
+				buffer.force() ;
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.miro.widgets.storage.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.miro.widgets.storage.StorageMetrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append only log of mutations, split into numbered segment files. Every record is framed
+ * by its length and CRC32, so a record torn by a crash is detected and dropped on recovery.
+ * <p>
+ * Appends only write to the file. A single sync thread forces everything appended so far
+ * to disk and then releases all callers waiting for it, so concurrent writers share one
+ * fsync instead of paying one each.
+ */
+@Slf4j
+class WidgetJournal implements AutoCloseable {
+
+	private static final String SEGMENT_PREFIX = "journal-" ;
+	private static final String SEGMENT_SUFFIX = ".log" ;
+	private static final int HEADER_SIZE = 8 ;
+
+	private final Path directory ;
+	private final StorageMetrics metrics ;
+	private final Thread syncer ;
+	private FileChannel channel ;
+	private long segment ;
+	private long segmentBytes ;
+	private long appended ;
+	private long appendedRecords ;
+	private long durable ;
+	private long durableRecords ;
+	private IOException failure ;
+	private boolean running = true ;
+
+	WidgetJournal(Path directory, long segment, StorageMetrics metrics) throws IOException {
+		this.directory = directory ;
+		this.metrics = metrics ;
+		this.segment = segment ;
+		this.channel = open(segment) ;
+		this.syncer = new Thread(this::run, "widgets-journal-sync") ;
+		this.syncer.setDaemon(true);
+		this.syncer.start();
+	}
+
+	/**
+	 * Writes the record to the current segment and returns the journal position it ends at.
+	 */
+	synchronized long append(byte[] record) {
+		if (!running || failure != null) {
+			throw new IllegalStateException("journal is not writable", failure) ;
+		}
+		CRC32 crc = new CRC32() ;
+		crc.update(record);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length) ;
+		buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip() ;
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer) ;
+			}
+		} catch (IOException e) {
+			failure = e ;
+			notifyAll();
+			throw new UncheckedIOException(e) ;
+		}
+		segmentBytes += buffer.limit() ;
+		appended += buffer.limit() ;
+		appendedRecords++ ;
+		notifyAll();
+		return appended ;
+	}
+
+	/**
+	 * Blocks until the journal is synced to disk up to the given position.
+	 */
+	synchronized void awaitDurable(long position) {
+		boolean interrupted = false ;
+		while (durable < position && failure == null && running) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true ;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (durable < position) {
+			throw failure == null ? new IllegalStateException("journal is closed") : new UncheckedIOException(failure) ;
+		}
+	}
+
+	synchronized long segmentBytes() {
+		return segmentBytes ;
+	}
+
+	/**
+	 * Syncs and closes the current segment and continues in the next one, whose number is returned.
+	 */
+	synchronized long rotate() throws IOException {
+		channel.force(false);
+		channel.close();
+		durable = appended ;
+		durableRecords = appendedRecords ;
+		notifyAll();
+		segment++ ;
+		segmentBytes = 0 ;
+		channel = open(segment) ;
+		return segment ;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			running = false ;
+			notifyAll();
+		}
+		try {
+			syncer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			channel.force(false);
+			channel.close();
+		}
+	}
+
+	/**
+	 * Segment files of the directory in the order they were written.
+	 */
+	static List<Path> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX) && f.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+					.sorted((a, b) -> Long.compare(number(a), number(b)))
+					.collect(Collectors.toList()) ;
+		}
+	}
+
+	static long number(Path segment) {
+		String name = segment.getFileName().toString() ;
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())) ;
+	}
+
+	/**
+	 * Passes every intact record of the segment to the action and returns their number. A torn
+	 * record is only expected at the end of the last segment, which is then truncated before it.
+	 */
+	static int read(Path segment, boolean last, Consumer<ByteBuffer> action) throws IOException {
+		try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()) ;
+			int records = 0 ;
+			CRC32 crc = new CRC32() ;
+			while (buffer.hasRemaining()) {
+				int start = buffer.position() ;
+				if (buffer.remaining() < HEADER_SIZE) {
+					return torn(file, segment, last, start, records) ;
+				}
+				int length = buffer.getInt() ;
+				int checksum = buffer.getInt() ;
+				if (length < 0 || length > buffer.remaining()) {
+					return torn(file, segment, last, start, records) ;
+				}
+				ByteBuffer record = buffer.slice() ;
+				record.limit(length) ;
+				crc.reset();
+				crc.update(record.duplicate());
+				if ((int) crc.getValue() != checksum) {
+					return torn(file, segment, last, start, records) ;
+				}
+				action.accept(record);
+				buffer.position(start + HEADER_SIZE + length) ;
+				records++ ;
+			}
+			return records ;
+		}
+	}
+
+	private static int torn(FileChannel file, Path segment, boolean last, long position, int records) throws IOException {
+		if (!last) {
+			throw new IllegalStateException("journal segment " + segment + " is corrupt at position " + position) ;
+		}
+		log.warn("dropping torn record at the end of {} at position {}", segment, position);
+		file.truncate(position) ;
+		file.force(true);
+		return records ;
+	}
+
+	private void run() {
+		while (true) {
+			FileChannel syncing ;
+			long position ;
+			long records ;
+			synchronized (this) {
+				while (running && durable == appended) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return ;
+					}
+				}
+				if (!running) {
+					return ;
+				}
+				syncing = channel ;
+				position = appended ;
+				records = appendedRecords ;
+			}
+			long start = System.nanoTime() ;
+			try {
+				syncing.force(false);
+			} catch (ClosedChannelException e) {
+				// rotated meanwhile, the rotation synced the segment
+				continue ;
+			} catch (IOException e) {
+				log.error("journal sync failed, no further writes are accepted", e);
+				synchronized (this) {
+					failure = e ;
+					notifyAll();
+				}
+				return ;
+			}
+			synchronized (this) {
+				if (position > durable) {
+					metrics.recordJournalSync(System.nanoTime() - start, (int) (records - durableRecords));
+					durable = position ;
+					durableRecords = records ;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private FileChannel open(long segment) throws IOException {
+		Path file = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX)) ;
+		return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) ;
+	}
+}
@@ -1,15 +1,25 @@
 package com.miro.widgets.controller;
 
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
 import static org.hamcrest.CoreMatchers.is;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.doNothing;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static com.miro.widgets.utility.JacksonUtility.toJson;
 import static com.miro.widgets.utility.JacksonUtility.fromJson;
@@ -17,6 +27,7 @@ import static com.miro.widgets.utility.JacksonUtility.fromJson;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.jupiter.api.Test;
@@ -26,22 +37,42 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpInputMessage;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import com.miro.widgets.dto.BatchDto;
+import com.miro.widgets.dto.BatchOperationDto;
 import com.miro.widgets.dto.WidgetDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.format.WidgetColumnsHttpMessageConverter;
 import com.miro.widgets.service.WidgetService;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 
 @SpringBootTest
 @AutoConfigureMockMvc
 public class WidgetControllerTests {
 	
+	private static final MediaType SMILE = new MediaType("application", "x-jackson-smile") ;
+	
 	@Value("/api/${app.version:v1}/widgets")
 	private String apiUri ;
 	
+	@Value("/api/${app.version:v1}/boards")
+	private String boardsUri ;
+	
 	@Autowired
 	private MockMvc mockMvc ;
 	
@@ -50,11 +81,11 @@ public class WidgetControllerTests {
 	
 	@Test
 	public void givenWidgetWhenRetrievedThenWidgetReturned() throws Exception {
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).version(1L).build() ;
 		
-		when(widgetService.findById(anyString())).thenReturn(Optional.of(widget)) ;
+		when(widgetService.findById(anyString(), anyString())).thenReturn(Optional.of(widget)) ;
 		
-		MvcResult result = mockMvc.perform(get(apiUri + "/{id}", "abc"))
+		MvcResult result = mockMvc.perform(get(apiUri + "/{id}", id("abc")))
 				.andExpect(status().isOk())
 				.andExpect(jsonPath("$.x", is(0)))
 				.andExpect(jsonPath("$.y", is(0)))
@@ -63,25 +94,50 @@ public class WidgetControllerTests {
 				.andExpect(jsonPath("$.width", is(50)))
 				.andExpect(jsonPath("$.lastModificationDate", CoreMatchers.any(String.class)))
 				.andExpect(jsonPath("$.id", CoreMatchers.any(String.class)))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"1\""))
 				.andReturn();
 	}
 	
 	@Test
 	public void givenMissingWidgetWhenRetrievedThenNotFound() throws Exception {
-		when(widgetService.findById(anyString())).thenReturn(Optional.empty()) ;
+		when(widgetService.findById(anyString(), anyString())).thenReturn(Optional.empty()) ;
 		
-		MvcResult result = mockMvc.perform(get(apiUri + "/{id}", "abc"))
+		MvcResult result = mockMvc.perform(get(apiUri + "/{id}", id("abc")))
 				.andExpect(status().isNotFound())
 				.andReturn();
 	}
 	
+	@Test
+	public void givenIdNotInWidgetIdFormWhenRetrievedThenNotFoundWithoutLookup() throws Exception {
+		mockMvc.perform(get(apiUri + "/{id}", "abc"))
+				.andExpect(status().isNotFound()) ;
+		
+		verify(widgetService, never()).findById(anyString(), anyString()) ;
+	}
+	
+	@Test
+	public void givenBoardWhenRetrievedThenWidgetOfBoardReturned() throws Exception {
+		Widget widget = Widget.builder().id(id("abc")).board("left").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.findById(anyString(), anyString())).thenReturn(Optional.empty()) ;
+		when(widgetService.findById(eq("left"), eq(id("abc")))).thenReturn(Optional.of(widget)) ;
+		
+		MvcResult result = mockMvc.perform(get(boardsUri + "/{board}/widgets/{id}", "left", id("abc")))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.board", is("left")))
+				.andReturn();
+		
+		mockMvc.perform(get(apiUri + "/{id}", id("abc")))
+				.andExpect(status().isNotFound()) ;
+	}
+	
 	@Test
 	public void givenWidgetsWhenRetrievedThenWidgetsAreSortedByzindexReturned() throws Exception {
-		Widget widget1 = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		Widget widget2 = Widget.builder().id("def").x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		Widget widget3 = Widget.builder().id("hij").x(0).y(0).zindex(3).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget1 = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget2 = Widget.builder().id(id("def")).x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget3 = Widget.builder().id(id("hij")).x(0).y(0).zindex(3).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
-		when(widgetService.findAll(any())).thenReturn(List.of(widget1, widget2, widget3)) ;
+		when(widgetService.findAll(anyString(), any())).thenReturn(List.of(widget1, widget2, widget3)) ;
 		
 		MvcResult result = mockMvc.perform(get(apiUri))
 				.andExpect(status().isOk())
@@ -92,9 +148,209 @@ public class WidgetControllerTests {
 				.andReturn();
 	}
 	
+	@Test
+	public void givenCursorWhenRetrievedThenWidgetsAfterCursorReturned() throws Exception {
+		Widget widget1 = Widget.builder().id(id("def")).x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget2 = Widget.builder().id(id("hij")).x(0).y(0).zindex(3).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.findAllAfter(DEFAULT_BOARD, 1, 2)).thenReturn(List.of(widget1, widget2)) ;
+		
+		MvcResult result = mockMvc.perform(get(apiUri).param("after", "1").param("limit", "2"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(2)))
+				.andExpect(jsonPath("$[0].zindex", is(2)))
+				.andExpect(jsonPath("$[1].zindex", is(3)))
+				.andReturn();
+	}
+	
+	@Test
+	public void givenRegionWhenStreamedThenOneWidgetPerLineReturned() throws Exception {
+		Widget widget1 = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget2 = Widget.builder().id(id("def")).x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		doAnswer(invocation -> {
+			Consumer<Widget> action = invocation.getArgument(2) ;
+			action.accept(widget1);
+			action.accept(widget2);
+			return null ;
+		}).when(widgetService).forEachByRegion(anyString(), any(), any()) ;
+		
+		MvcResult started = mockMvc.perform(get(apiUri + "/filter").param("x", "0").param("y", "0").param("width", "100").param("height", "100")
+					.accept(MediaType.APPLICATION_NDJSON))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		
+		MvcResult result = mockMvc.perform(asyncDispatch(started))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+				.andReturn();
+		
+		String[] lines = result.getResponse().getContentAsString().split("\n") ;
+		assertThat(lines).hasSize(2) ;
+		assertThat(fromJson(lines[0], Widget.class).getId()).isEqualTo(id("abc")) ;
+		assertThat(fromJson(lines[1], Widget.class).getId()).isEqualTo(id("def")) ;
+	}
+	
+	@Test
+	public void givenUnchangedBoardWhenRetrievedWithEtagThenNotModified() throws Exception {
+		when(widgetService.version(DEFAULT_BOARD)).thenReturn(42L) ;
+		when(widgetService.findAll(eq(DEFAULT_BOARD), any())).thenReturn(List.of()) ;
+		
+		mockMvc.perform(get(apiUri))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"42\"")) ;
+		mockMvc.perform(get(apiUri + "/filter").param("x", "0").param("y", "0").param("width", "100").param("height", "100")
+					.header(HttpHeaders.IF_NONE_MATCH, "\"42\""))
+				.andExpect(status().isNotModified())
+				.andExpect(content().string("")) ;
+		
+		verify(widgetService, never()).findAllByRegion(anyString(), any()) ;
+	}
+	
+	@Test
+	public void givenVersionWhenChangesRetrievedThenChangesSinceReturned() throws Exception {
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.changesSince(DEFAULT_BOARD, 5L)).thenReturn(Optional.of(new WidgetChanges(7L, List.of(widget), List.of(id("def"))))) ;
+		when(widgetService.changesSince(DEFAULT_BOARD, 1L)).thenReturn(Optional.empty()) ;
+		
+		mockMvc.perform(get(apiUri + "/changes").param("since", "5"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.version", is(7)))
+				.andExpect(jsonPath("$.upserted[0].id", is(id("abc"))))
+				.andExpect(jsonPath("$.deleted[0]", is(id("def")))) ;
+		mockMvc.perform(get(apiUri + "/changes").param("since", "1"))
+				.andExpect(status().isGone()) ;
+	}
+	
+	@Test
+	public void givenPointWhenTopmostRetrievedThenOneWidgetReturned() throws Exception {
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(7).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.findAllAt(DEFAULT_BOARD, 10, 20, 1)).thenReturn(List.of(widget)) ;
+		
+		mockMvc.perform(get(apiUri + "/at").param("x", "10").param("y", "20").param("topmost", "true"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(1)))
+				.andExpect(jsonPath("$[0].zindex", is(7))) ;
+		mockMvc.perform(get(apiUri + "/at").param("x", "10"))
+				.andExpect(status().isBadRequest()) ;
+	}
+	
+	@Test
+	public void givenSortByZindexWhenFilteredThenPageOfRegionReturned() throws Exception {
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(4).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.findAllByRegionAfter(eq(DEFAULT_BOARD), any(), eq(3), eq(1))).thenReturn(List.of(widget)) ;
+		
+		mockMvc.perform(get(apiUri + "/filter").param("x", "0").param("y", "0").param("width", "100").param("height", "100")
+					.param("sort", "zindex").param("after", "3").param("limit", "1"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(1)))
+				.andExpect(jsonPath("$[0].zindex", is(4))) ;
+		mockMvc.perform(get(apiUri + "/filter").param("x", "0").param("y", "0").param("width", "100").param("height", "100")
+					.param("sort", "area"))
+				.andExpect(status().isBadRequest()) ;
+	}
+	
+	@Test
+	public void givenWidgetsWhenRetrievedAsSmileThenSmileReturned() throws Exception {
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		
+		when(widgetService.version(DEFAULT_BOARD)).thenReturn(42L) ;
+		when(widgetService.findAll(eq(DEFAULT_BOARD), any())).thenReturn(List.of(widget)) ;
+		
+		MvcResult result = mockMvc.perform(get(apiUri).accept(SMILE))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(SMILE))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"42-jackson-smile\""))
+				.andReturn();
+		
+		JsonNode widgets = new ObjectMapper(new SmileFactory()).readTree(result.getResponse().getContentAsByteArray()) ;
+		assertThat(widgets.get(0).get("id").asText()).isEqualTo(id("abc")) ;
+		assertThat(widgets.get(0).get("zindex").asInt()).isEqualTo(1) ;
+	}
+	
+	@Test
+	public void givenRegionWhenRetrievedAsColumnsThenDeltaEncodedColumnsReturned() throws Exception {
+		LocalDateTime now = LocalDateTime.now().withNano(0) ;
+		Widget widget1 = Widget.builder().id(id("abc")).x(10).y(20).zindex(4).height(100).width(50).lastModificationDate(now).build() ;
+		Widget widget2 = Widget.builder().id(id("def")).x(5).y(20).zindex(5).height(10).width(30).lastModificationDate(now.plusSeconds(3)).build() ;
+		
+		when(widgetService.findAllByRegion(eq(DEFAULT_BOARD), any())).thenReturn(List.of(widget1, widget2)) ;
+		
+		MvcResult result = mockMvc.perform(get(apiUri + "/filter").param("x", "0").param("y", "0").param("width", "100").param("height", "100")
+					.accept(WidgetColumnsHttpMessageConverter.WIDGET_COLUMNS))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(WidgetColumnsHttpMessageConverter.WIDGET_COLUMNS))
+				.andReturn();
+		
+		byte[] body = result.getResponse().getContentAsByteArray() ;
+		JsonNode columns = new ObjectMapper(new SmileFactory()).readTree(body) ;
+		assertThat(columns.get("zindex").get(1).asInt()).isEqualTo(1) ;
+		assertThat(columns.get("x").get(1).asInt()).isEqualTo(-5) ;
+		
+		List<Widget> widgets = new WidgetColumnsHttpMessageConverter().read(List.class, null, new MockHttpInputMessage(body)) ;
+		assertThat(widgets).usingRecursiveFieldByFieldElementComparator().containsExactly(widget1, widget2) ;
+	}
+	
+	@Test
+	public void givenZeroLimitWhenRetrievedThenBadRequest() throws Exception {
+		MvcResult result = mockMvc.perform(get(apiUri).param("limit", "0"))
+				.andExpect(status().isBadRequest())
+				.andReturn();
+	}
+	
+	@Test
+	public void givenBatchWhenAppliedThenResultPerOperationReturned() throws Exception {
+		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		BatchDto batch = BatchDto.builder().operations(List.of(
+				BatchOperationDto.builder().type(WidgetOperation.Type.CREATE).widget(dto).build(),
+				BatchOperationDto.builder().type(WidgetOperation.Type.DELETE).id(id("def")).build())).build() ;
+		
+		when(widgetService.applyBatch(anyString(), any())).thenReturn(List.of(
+				WidgetOperationResult.created(widget),
+				WidgetOperationResult.notFound(WidgetOperation.delete(DEFAULT_BOARD, id("def"))))) ;
+		
+		MvcResult result = performAsync(post(apiUri + "/batch")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(batch)))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()", is(2)))
+				.andExpect(jsonPath("$[0].status", is("CREATED")))
+				.andExpect(jsonPath("$[0].widget.id", is(id("abc"))))
+				.andExpect(jsonPath("$[1].status", is("NOT_FOUND")))
+				.andExpect(jsonPath("$[1].id", is(id("def"))))
+				.andReturn();
+	}
+	
+	@Test
+	public void givenBatchWithIncompleteOperationWhenAppliedThenBadRequest() throws Exception {
+		BatchDto batch = BatchDto.builder().operations(List.of(
+				BatchOperationDto.builder().type(WidgetOperation.Type.UPDATE).id(id("abc")).build())).build() ;
+		
+		MvcResult result = mockMvc.perform(post(apiUri + "/batch")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(batch)))
+				.andExpect(status().isBadRequest())
+				.andReturn();
+	}
+	
+	@Test
+	public void givenBatchWithIdNotInWidgetIdFormWhenAppliedThenBadRequest() throws Exception {
+		BatchDto batch = BatchDto.builder().operations(List.of(
+				BatchOperationDto.builder().type(WidgetOperation.Type.DELETE).id("abc").build())).build() ;
+		
+		mockMvc.perform(post(apiUri + "/batch")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(batch)))
+				.andExpect(status().isBadRequest()) ;
+	}
+	
 	@Test
 	public void givenEmptyWidgetsWhenRetrievedThenWidgetsAreSortedByzindexReturned() throws Exception {
-		when(widgetService.findAll(any())).thenReturn(List.of()) ;
+		when(widgetService.findAll(anyString(), any())).thenReturn(List.of()) ;
 		
 		MvcResult result = mockMvc.perform(get(apiUri))
 				.andExpect(status().isOk())
@@ -105,11 +361,11 @@ public class WidgetControllerTests {
 	@Test
 	public void givenWidgetWhenSavedThenWidgetReturned() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build() ;
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
-		when(widgetService.create(any(WidgetDto.class))).thenReturn(widget) ;
+		when(widgetService.create(anyString(), any(WidgetDto.class))).thenReturn(widget) ;
 		
-		MvcResult result = mockMvc.perform(post(apiUri)
+		MvcResult result = performAsync(post(apiUri)
 					.contentType(MediaType.APPLICATION_JSON)
 					.content(toJson(dto)))
 				.andExpect(status().isCreated())
@@ -119,20 +375,18 @@ public class WidgetControllerTests {
 				.andExpect(jsonPath("$.height", is(100)))
 				.andExpect(jsonPath("$.width", is(50)))
 				.andExpect(jsonPath("$.lastModificationDate", CoreMatchers.any(String.class)))
-				.andExpect(jsonPath("$.id", is("abc")))
+				.andExpect(jsonPath("$.id", is(id("abc"))))
 				.andReturn();
 	}
 	
 	@Test
 	public void givenWidgetWhenUpdatedThenWidgetReturned() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		Widget updated = Widget.builder().id("abc").x(0).y(0).zindex(1).height(200).width(200).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget updated = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(200).width(200).lastModificationDate(LocalDateTime.now()).version(2L).build() ;
 		
-		when(widgetService.findById(anyString())).thenReturn(Optional.of(widget)) ;
-		when(widgetService.update(anyString(), any(WidgetDto.class))).thenReturn(updated) ;
+		when(widgetService.update(anyString(), anyString(), any(WidgetDto.class), any())).thenReturn(Optional.of(updated)) ;
 		
-		MvcResult result = mockMvc.perform(put(apiUri + "/{id}", "abc")
+		MvcResult result = performAsync(put(apiUri + "/{id}", id("abc"))
 					.contentType(MediaType.APPLICATION_JSON)
 					.content(toJson(dto)))
 				.andExpect(status().isOk())
@@ -142,17 +396,60 @@ public class WidgetControllerTests {
 				.andExpect(jsonPath("$.height", is(200)))
 				.andExpect(jsonPath("$.width", is(200)))
 				.andExpect(jsonPath("$.lastModificationDate", CoreMatchers.any(String.class)))
-				.andExpect(jsonPath("$.id", is("abc")))
+				.andExpect(jsonPath("$.id", is(id("abc"))))
+				.andExpect(jsonPath("$.version", is(2)))
+				.andExpect(header().string(HttpHeaders.ETAG, "\"2\""))
 				.andReturn();
 	}
 	
+	@Test
+	public void givenMatchingVersionWhenUpdatedThenVersionPassed() throws Exception {
+		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
+		Widget updated = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(200).width(200).lastModificationDate(LocalDateTime.now()).version(4L).build() ;
+		
+		when(widgetService.update(anyString(), anyString(), any(WidgetDto.class), eq(3L))).thenReturn(Optional.of(updated)) ;
+		
+		performAsync(put(apiUri + "/{id}", id("abc"))
+					.header(HttpHeaders.IF_MATCH, "\"3\"")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(dto)))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"4\""));
+	}
+	
+	@Test
+	public void givenStaleVersionWhenUpdatedThenPreconditionFailed() throws Exception {
+		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
+		
+		when(widgetService.update(anyString(), anyString(), any(WidgetDto.class), eq(3L))).thenThrow(new WidgetConflictException(id("abc"), 3L)) ;
+		
+		performAsync(put(apiUri + "/{id}", id("abc"))
+					.header(HttpHeaders.IF_MATCH, "\"3\"")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(dto)))
+				.andExpect(status().isPreconditionFailed());
+	}
+	
+	@Test
+	public void givenForeignTagWhenUpdatedThenPreconditionFailed() throws Exception {
+		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
+		
+		mockMvc.perform(put(apiUri + "/{id}", id("abc"))
+					.header(HttpHeaders.IF_MATCH, "W/\"3\"")
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(dto)))
+				.andExpect(status().isPreconditionFailed());
+		
+		verify(widgetService, never()).update(anyString(), anyString(), any(WidgetDto.class), any()) ;
+	}
+	
 	@Test
 	public void givenMissingWidgetWhenUpdatedThenNotFound() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
 		
-		when(widgetService.findById(anyString())).thenReturn(Optional.empty()) ;
+		when(widgetService.update(anyString(), anyString(), any(WidgetDto.class), any())).thenReturn(Optional.empty()) ;
 		
-		MvcResult result = mockMvc.perform(put(apiUri + "/{id}", "abc")
+		MvcResult result = performAsync(put(apiUri + "/{id}", id("abc"))
 					.contentType(MediaType.APPLICATION_JSON)
 					.content(toJson(dto)))
 				.andExpect(status().isNotFound())
@@ -161,21 +458,18 @@ public class WidgetControllerTests {
 	
 	@Test
 	public void givenWidgetWhenDeletedThenSuccess() throws Exception {
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		when(widgetService.deleteById(anyString(), anyString(), any())).thenReturn(true) ;
 		
-		when(widgetService.findById(anyString())).thenReturn(Optional.of(widget)) ;
-		doNothing().when(widgetService).deleteById(anyString());
-		
-		MvcResult result = mockMvc.perform(delete(apiUri + "/{id}", "abc"))
+		MvcResult result = performAsync(delete(apiUri + "/{id}", id("abc")))
 				.andExpect(status().isOk())
 				.andReturn();
 	}
 	
 	@Test
 	public void givenMissingWidgetWhenDeletedThenNotFound() throws Exception {
-		when(widgetService.findById(anyString())).thenReturn(Optional.empty()) ;
+		when(widgetService.deleteById(anyString(), anyString(), any())).thenReturn(false) ;
 		
-		MvcResult result = mockMvc.perform(delete(apiUri + "/{id}", "abc"))
+		MvcResult result = performAsync(delete(apiUri + "/{id}", id("abc")))
 				.andExpect(status().isNotFound())
 				.andReturn();
 	}
@@ -205,11 +499,11 @@ public class WidgetControllerTests {
 	@Test
 	public void givenWidgetWithMissingzindexWhenSavedThenSuccess() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).height(100).width(50).build() ;
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
-		when(widgetService.create(any(WidgetDto.class))).thenReturn(widget) ;
+		when(widgetService.create(anyString(), any(WidgetDto.class))).thenReturn(widget) ;
 		
-		MvcResult result = mockMvc.perform(post(apiUri)
+		MvcResult result = performAsync(post(apiUri)
 				.contentType(MediaType.APPLICATION_JSON)
 				.content(toJson(dto)))
 			.andExpect(status().isCreated())
@@ -219,7 +513,7 @@ public class WidgetControllerTests {
 			.andExpect(jsonPath("$.height", is(100)))
 			.andExpect(jsonPath("$.width", is(50)))
 			.andExpect(jsonPath("$.lastModificationDate", CoreMatchers.any(String.class)))
-			.andExpect(jsonPath("$.id", is("abc")))
+			.andExpect(jsonPath("$.id", is(id("abc"))))
 			.andReturn();
 	}
 	
@@ -289,5 +583,13 @@ public class WidgetControllerTests {
 				.andReturn();
 	}
 	
-
+	/**
+	 * Mutation endpoints answer asynchronously, the response is written by the async dispatch.
+	 */
+	private ResultActions performAsync(RequestBuilder builder) throws Exception {
+		MvcResult started = mockMvc.perform(builder)
+				.andExpect(request().asyncStarted())
+				.andReturn() ;
+		return mockMvc.perform(asyncDispatch(started)) ;
+	}
 }
@@ -0,0 +1,20 @@
+package com.miro.widgets.entity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of test widgets, a {@link WidgetIds#next()} id per name, so that fixtures can tell
+ * their widgets apart by short names while storage gets ids in the form it keeps.
+ */
+public final class TestWidgetIds {
+
+	private static final Map<String, String> IDS = new ConcurrentHashMap<>() ;
+
+	private TestWidgetIds() {
+	}
+
+	public static String id(String name) {
+		return IDS.computeIfAbsent(name, n -> WidgetIds.next()) ;
+	}
+}
@@ -0,0 +1,49 @@
+package com.miro.widgets.entity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+public class WidgetIdsTests {
+
+	@Test
+	public void givenIdsGeneratedInSequenceThenStringsStrictlyIncrease() {
+		String previous = WidgetIds.next() ;
+		for (int i = 0; i < 100000; i++) {
+			String next = WidgetIds.next() ;
+			assertThat(next).isGreaterThan(previous) ;
+			previous = next ;
+		}
+	}
+
+	@Test
+	public void givenIdThenItIsVersion7UuidOfCurrentTime() {
+		long before = System.currentTimeMillis() ;
+		UUID id = UUID.fromString(WidgetIds.next()) ;
+
+		assertThat(id.version()).isEqualTo(7) ;
+		assertThat(id.variant()).isEqualTo(2) ;
+		assertThat(id.getMostSignificantBits() >>> 16).isBetween(before, System.currentTimeMillis() + 1000) ;
+	}
+
+	@Test
+	public void givenIdWhenConvertedToBytesAndBackThenSameString() {
+		String id = WidgetIds.next() ;
+
+		assertThat(WidgetIds.toBytes(id)).hasSize(16) ;
+		assertThat(WidgetIds.fromBytes(WidgetIds.toBytes(id))).isEqualTo(id) ;
+		assertThat(WidgetIds.parse(id)).isEqualTo(UUID.fromString(id)) ;
+	}
+
+	@Test
+	public void givenStringNotInFullUuidFormThenNotAnId() {
+		assertThat(WidgetIds.isValid("a")).isFalse() ;
+		assertThat(WidgetIds.isValid("1-1-1-1-1")).isFalse() ;
+		assertThat(WidgetIds.isValid("0190e2b4-8c3a-7def-8123-45678g9abcde")).isFalse() ;
+		assertThatThrownBy(() -> WidgetIds.parse("1-1-1-1-1")).isInstanceOf(IllegalArgumentException.class) ;
+		assertThatThrownBy(() -> WidgetIds.parse("0190e2b4-8c3a-7def-8123-45678g9abcde")).isInstanceOf(IllegalArgumentException.class) ;
+	}
+}
@@ -2,11 +2,15 @@ package com.miro.widgets.integration;
 
 import static com.miro.widgets.utility.JacksonUtility.fromJson;
 import static com.miro.widgets.utility.JacksonUtility.toJson;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.List;
@@ -17,11 +21,14 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.miro.widgets.dto.WidgetDto;
@@ -30,6 +37,7 @@ import com.miro.widgets.storage.inmemory.InMemoryWidgetStorage;
 
 @SpringBootTest
 @AutoConfigureMockMvc
+@AutoConfigureMetrics
 @Transactional
 public class WidgetIntegrationTests {
 	
@@ -51,7 +59,7 @@ public class WidgetIntegrationTests {
 	public void givenWidgetWhenRetrievedThenWidgetReturned() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build() ;
 		
-		MvcResult result = mockMvc.perform(post(apiUri)
+		MvcResult result = performAsync(post(apiUri)
 					.contentType(MediaType.APPLICATION_JSON)
 					.content(toJson(dto)))
 				.andExpect(status().isCreated())
@@ -78,6 +86,22 @@ public class WidgetIntegrationTests {
 				.andReturn();
 	}
 	
+	@Test
+	public void givenWidgetsWhenCreatedThenStorageMetricsExposed() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			performAsync(post(apiUri)
+					.contentType(MediaType.APPLICATION_JSON)
+					.content(toJson(WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build())))
+				.andExpect(status().isCreated()) ;
+		}
+		
+		mockMvc.perform(get("/actuator/prometheus"))
+				.andExpect(status().isOk())
+				.andExpect(content().string(containsString("widgets_storage_operation_seconds_bucket{operation=\"create\",storage=\"inmemory\"")))
+				.andExpect(content().string(containsString("widgets_zindex_shift_length_count{storage=\"inmemory\",}")))
+				.andExpect(content().string(containsString("widgets_count{storage=\"inmemory\",} 2.0"))) ;
+	}
+	
 	@Test
 	public void givenWidgetsWhenRetrievedThenWidgetsAreSortedByzindexReturned() throws Exception {
 		List<WidgetDto> list = List.of(WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build(),
@@ -86,7 +110,7 @@ public class WidgetIntegrationTests {
 		
 		List<Widget> createdList = list.stream().map(dto -> {
 			try {
-				MvcResult result = mockMvc.perform(post(apiUri)
+				MvcResult result = performAsync(post(apiUri)
 						.contentType(MediaType.APPLICATION_JSON)
 						.content(toJson(dto)))
 					.andExpect(status().isCreated()).andReturn() ;
@@ -119,7 +143,7 @@ public class WidgetIntegrationTests {
 		
 		List<Widget> createdList = list.stream().map(dto -> {
 			try {
-				MvcResult result = mockMvc.perform(post(apiUri)
+				MvcResult result = performAsync(post(apiUri)
 						.contentType(MediaType.APPLICATION_JSON)
 						.content(toJson(dto)))
 					.andExpect(status().isCreated()).andReturn() ;
@@ -133,7 +157,7 @@ public class WidgetIntegrationTests {
 		}).collect(Collectors.toList());
 		
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(3).height(100).width(50).build() ;
-		MvcResult result = mockMvc.perform(put(apiUri + "/{id}", createdList.get(1).getId())
+		MvcResult result = performAsync(put(apiUri + "/{id}", createdList.get(1).getId())
 				.contentType(MediaType.APPLICATION_JSON)
 				.content(toJson(dto)))
 			.andExpect(status().isOk()).andReturn() ;
@@ -161,7 +185,7 @@ public class WidgetIntegrationTests {
 		
 		List<Widget> createdList = list.stream().map(dto -> {
 			try {
-				MvcResult result = mockMvc.perform(post(apiUri)
+				MvcResult result = performAsync(post(apiUri)
 						.contentType(MediaType.APPLICATION_JSON)
 						.content(toJson(dto)))
 					.andExpect(status().isCreated()).andReturn() ;
@@ -175,7 +199,7 @@ public class WidgetIntegrationTests {
 		}).collect(Collectors.toList());
 		
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(3).height(100).width(50).build() ;
-		MvcResult result = mockMvc.perform(put(apiUri + "/{id}", createdList.get(1).getId())
+		MvcResult result = performAsync(put(apiUri + "/{id}", createdList.get(1).getId())
 				.contentType(MediaType.APPLICATION_JSON)
 				.content(toJson(dto)))
 			.andExpect(status().isOk()).andReturn() ;
@@ -190,4 +214,14 @@ public class WidgetIntegrationTests {
 				.andExpect(jsonPath("$.length()", is(3)))
 				.andReturn();
 	}
+	
+	/**
+	 * Mutation endpoints answer asynchronously, the response is written by the async dispatch.
+	 */
+	private ResultActions performAsync(RequestBuilder builder) throws Exception {
+		MvcResult started = mockMvc.perform(builder)
+				.andExpect(request().asyncStarted())
+				.andReturn() ;
+		return mockMvc.perform(asyncDispatch(started)) ;
+	}
 }
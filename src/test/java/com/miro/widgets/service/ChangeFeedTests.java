@@ -0,0 +1,178 @@
+package com.miro.widgets.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.miro.widgets.dto.WidgetDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.ChangeFeed;
+import com.miro.widgets.storage.StorageMetrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringBootTest(properties = {"storage=inmemory", "widgets.feed.enabled=true", "widgets.feed.subscriber-buffer=8"})
+@AutoConfigureMockMvc
+public class ChangeFeedTests {
+
+	@Value("/api/${app.version:v1}/boards")
+	private String boardsUri ;
+
+	@Autowired
+	private MockMvc mockMvc ;
+
+	@Autowired
+	private WidgetService widgetService ;
+
+	@Autowired
+	private ChangeFeed changeFeed ;
+
+	@Autowired
+	private MeterRegistry meterRegistry ;
+
+	@Test
+	public void givenViewportWhenWidgetsChangedThenOnlyIntersectingChangesStreamed() throws Exception {
+		MvcResult stream = subscribe(get(boardsUri + "/{board}/widgets/changes", "viewport")
+				.param("x", "0").param("y", "0").param("width", "100").param("height", "100")) ;
+
+		Widget inside = widgetService.create("viewport", dto(10, 10, 1)) ;
+		Widget outside = widgetService.create("viewport", dto(500, 500, 2)) ;
+		Widget pushing = widgetService.create("viewport", dto(20, 20, 1)) ;
+		widgetService.deleteById("viewport", outside.getId(), null);
+		widgetService.update("viewport", inside.getId(), dto(1000, 1000, null), null) ;
+
+		List<String> events = await(stream, 4) ;
+		assertThat(events).hasSize(4) ;
+		assertThat(events.get(0)).startsWith("event:created").contains(inside.getId()) ;
+		assertThat(events.get(1)).startsWith("event:shifted").contains(inside.getId()).contains("\"zindex\":2").doesNotContain(outside.getId()) ;
+		assertThat(events.get(2)).startsWith("event:created").contains(pushing.getId()) ;
+		assertThat(events.get(3)).startsWith("event:updated").contains(inside.getId()).contains("\"x\":1000") ;
+	}
+
+	@Test
+	public void givenLastEventIdWhenSubscribedThenLaterEventsReplayed() throws Exception {
+		MvcResult first = subscribe(get(boardsUri + "/{board}/widgets/changes", "resume")) ;
+		Widget a = widgetService.create("resume", dto(0, 0, null)) ;
+		Widget b = widgetService.create("resume", dto(0, 0, null)) ;
+		String firstId = await(first, 2).get(0).split("\n")[1].substring("id:".length()) ;
+
+		MvcResult resumed = subscribe(get(boardsUri + "/{board}/widgets/changes", "resume").header("Last-Event-ID", firstId)) ;
+
+		List<String> events = await(resumed, 1) ;
+		assertThat(events).hasSize(1) ;
+		assertThat(events.get(0)).contains(b.getId()).doesNotContain(a.getId()) ;
+	}
+
+	@Test
+	public void givenUnknownEventIdWhenSubscribedThenReset() throws Exception {
+		MvcResult stream = subscribe(get(boardsUri + "/{board}/widgets/changes", "reset").header("Last-Event-ID", Long.MAX_VALUE / 2)) ;
+
+		assertThat(await(stream, 1).get(0)).startsWith("event:reset") ;
+	}
+
+	@Test
+	public void givenEventIdOfEarlierRunWhenSubscribedThenReset() throws Exception {
+		widgetService.create("earlier", dto(0, 0, null)) ;
+
+		MvcResult stream = subscribe(get(boardsUri + "/{board}/widgets/changes", "earlier").header("Last-Event-ID", 1)) ;
+
+		List<String> events = await(stream, 1) ;
+		assertThat(events).hasSize(1) ;
+		assertThat(events.get(0)).startsWith("event:reset") ;
+	}
+
+	@Test
+	public void givenBlockedSubscriberWhenChangesStreamedThenOthersReceiveThemAndItIsReset() throws Exception {
+		MvcResult stream = subscribe(get(boardsUri + "/{board}/widgets/changes", "slow")) ;
+		double subscribed = subscribers() ;
+		SseEmitter blocked = changeFeed.subscribe("slow", null, null) ;
+		assertThat(subscribers()).isEqualTo(subscribed + 1) ;
+
+		List<String> events ;
+		// sending to an emitter holds its lock, holding it stands in for a client that stopped reading
+		synchronized (blocked) {
+			for (int i = 0; i < 20; i++) {
+				widgetService.create("slow", dto(i * 20, 0, null)) ;
+				await(stream, i + 1) ;
+			}
+			events = await(stream, 20) ;
+		}
+
+		assertThat(events).hasSize(20) ;
+		assertThat(subscribers()).isEqualTo(subscribed) ;
+	}
+
+	@Test
+	public void givenDatabaseStorageWhenFeedEnabledThenRefused() {
+		assertThatThrownBy(() -> new ChangeFeed(new StorageMetrics(new SimpleMeterRegistry(), "database"), "database", true, 10, 10))
+				.isInstanceOf(IllegalStateException.class) ;
+	}
+
+	private MvcResult subscribe(MockHttpServletRequestBuilder builder) throws Exception {
+		return mockMvc.perform(builder.accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(request().asyncStarted())
+				.andReturn() ;
+	}
+
+	/**
+	 * Events received so far, waiting until at least the given number has arrived. Every event
+	 * is rendered with its name first, then its id and data.
+	 */
+	private List<String> await(MvcResult stream, int count) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000 ;
+		List<String> events = events(stream) ;
+		while (events.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			events = events(stream) ;
+		}
+		// give events that should not be there the chance to show up
+		Thread.sleep(100);
+		return events(stream) ;
+	}
+
+	private List<String> events(MvcResult stream) throws Exception {
+		String content = stream.getResponse().getContentAsString() ;
+		List<String> events = new ArrayList<>() ;
+		// the dispatcher may be writing, only complete events are taken
+		for (String event : content.substring(0, content.lastIndexOf("\n\n") + 1).split("\n\n")) {
+			String name = null, id = null, data = null ;
+			for (String line : event.split("\n")) {
+				if (line.startsWith("event:")) {
+					name = line ;
+				} else if (line.startsWith("id:")) {
+					id = line ;
+				} else if (line.startsWith("data:")) {
+					data = line ;
+				}
+			}
+			if (name != null) {
+				events.add(name + "\n" + id + "\n" + data) ;
+			}
+		}
+		return events ;
+	}
+
+	private double subscribers() {
+		return meterRegistry.get("widgets.feed.subscribers").gauge().value() ;
+	}
+
+	private WidgetDto dto(int x, int y, Integer zindex) {
+		return WidgetDto.builder().x(x).y(y).zindex(zindex).height(10).width(10).build() ;
+	}
+}
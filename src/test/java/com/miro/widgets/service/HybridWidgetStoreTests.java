@@ -0,0 +1,166 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.repository.WidgetRepository;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetStorage;
+import com.miro.widgets.storage.database.JdbcWidgetStorage;
+import com.miro.widgets.storage.hybrid.HybridWidgetStorage;
+import com.miro.widgets.storage.inmemory.InMemoryWidgetStorage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = "storage=hybrid")
+public class HybridWidgetStoreTests {
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	@Autowired
+	private InMemoryWidgetStorage memory ;
+
+	@Autowired
+	private JdbcWidgetStorage database ;
+
+	@Autowired
+	private WidgetRepository widgetRepository ;
+
+	@Autowired
+	private StorageMetrics metrics ;
+
+	@Autowired
+	private MeterRegistry registry ;
+
+	@BeforeEach
+	public void setUp() {
+		storage.deleteAll();
+	}
+
+	@Test
+	public void givenHybridStorageThenItIsTheWidgetStorage() {
+		assertThat(storage).isInstanceOf(HybridWidgetStorage.class) ;
+	}
+
+	@Test
+	public void givenHybridStorageThenWidgetsCountedOnceFromMemory() {
+		storage.create(widget(id("a"), 1)) ;
+		storage.create(widget(id("b"), 2)) ;
+
+		assertThat(registry.find("widgets.count").gauges()).hasSize(1) ;
+		assertThat(registry.get("widgets.count").gauge().value()).isEqualTo(2.0) ;
+	}
+
+	@Test
+	public void given123WhenNew2ThenMemoryAndDatabaseAgree() {
+		storage.create(widget(id("a"), 1)) ;
+		storage.create(widget(id("b"), 2)) ;
+		storage.create(widget(id("c"), null)) ;
+		storage.create(widget(id("x"), 2)) ;
+		storage.update(widget(id("a"), 3)) ;
+		storage.deleteById(DEFAULT_BOARD, id("b"));
+		storage.deleteById(DEFAULT_BOARD, id("missing"));
+
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("x"), id("a"), id("c")) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getZindex).containsExactly(2, 3, 5) ;
+		assertDatabaseMatchesMemory() ;
+	}
+
+	@Test
+	public void givenBatchWhenAppliedThenMemoryAndDatabaseAgree() {
+		storage.create(widget(id("a"), 1)) ;
+		storage.create(widget(id("b"), 2)) ;
+
+		storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.create(widget(id("x"), 1)),
+				WidgetOperation.update(widget(id("b"), 1)),
+				WidgetOperation.delete(DEFAULT_BOARD, id("a")),
+				WidgetOperation.create(widget(id("y"), null)))) ;
+
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).width(100).height(100).build())).hasSize(3) ;
+		assertDatabaseMatchesMemory() ;
+	}
+
+	@Test
+	public void givenDatabaseRejectsWriteWhenSyncThenMemoryIsReloaded() {
+		storage.create(widget(id("a"), 1)) ;
+		Widget invalid = widget(id("b"), 1) ;
+		invalid.setX(null);
+
+		assertThatThrownBy(() -> storage.create(invalid)).isInstanceOf(RuntimeException.class) ;
+
+		assertThat(storage.findById(DEFAULT_BOARD, id("b"))).isEmpty() ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertDatabaseMatchesMemory() ;
+	}
+
+	@Test
+	public void givenRowsInDatabaseWhenStartedThenLoadedIntoMemory() {
+		for (int i = 1; i <= 1500; i++) {
+			widgetRepository.save(widget(id("w" + i), i)) ;
+		}
+
+		HybridWidgetStorage restarted = new HybridWidgetStorage(memory, database, metrics) ;
+		restarted.init();
+
+		assertThat(restarted.findAllAfter(DEFAULT_BOARD, null, 2000)).hasSize(1500) ;
+		assertThat(restarted.findById(DEFAULT_BOARD, id("w1500")).get().getZindex()).isEqualTo(1500) ;
+		assertThat(restarted.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).width(100).height(100).build())).hasSize(1500) ;
+	}
+
+	@Test
+	public void givenConcurrentCreatesWhenAllDeletedThenMemoryAndDatabaseAgree() throws Exception {
+		ExecutorService writers = Executors.newFixedThreadPool(4) ;
+		try {
+			List<Future<?>> created = new ArrayList<>() ;
+			for (int i = 0; i < 200; i++) {
+				String id = id("w" + i) ;
+				created.add(writers.submit(() -> storage.create(widget(id, null)))) ;
+				if (i % 50 == 25) {
+					storage.deleteAll();
+				}
+			}
+			for (Future<?> future : created) {
+				future.get(30, TimeUnit.SECONDS) ;
+			}
+		} finally {
+			writers.shutdown();
+		}
+
+		List<Widget> stored = widgetRepository.findAll(Sort.by("zindex")) ;
+		List<Widget> cached = storage.findAllAfter(DEFAULT_BOARD, null, 1000) ;
+		assertThat(stored).extracting(Widget::getId).containsExactlyElementsOf(cached.stream().map(Widget::getId)::iterator) ;
+	}
+
+	private void assertDatabaseMatchesMemory() {
+		List<Widget> stored = widgetRepository.findAll(Sort.by("zindex")) ;
+		List<Widget> cached = storage.findAllAfter(DEFAULT_BOARD, null, 100) ;
+		assertThat(stored).extracting(Widget::getId).containsExactlyElementsOf(cached.stream().map(Widget::getId)::iterator) ;
+		assertThat(stored).extracting(Widget::getZindex).containsExactlyElementsOf(cached.stream().map(Widget::getZindex)::iterator) ;
+	}
+
+	private Widget widget(String id, Integer zindex) {
+		return Widget.builder().id(id).zindex(zindex).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+	}
+}
@@ -0,0 +1,56 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.repository.WidgetRepository;
+import com.miro.widgets.storage.WidgetStorage;
+
+@SpringBootTest(properties = {"storage=hybrid", "widgets.hybrid.write-mode=async"})
+public class HybridWriteBehindStoreTests {
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	@Autowired
+	private WidgetRepository widgetRepository ;
+
+	@BeforeEach
+	public void setUp() {
+		storage.deleteAll();
+	}
+
+	@Test
+	public void givenWritesWhenReplayedThenDatabaseCatchesUpInOrder() throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			storage.create(Widget.builder().id(id("w" + i)).zindex(i % 2 == 0 ? 1 : null).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		}
+		storage.deleteById(DEFAULT_BOARD, id("w0"));
+
+		List<String> expected = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 100)).stream().map(Widget::getId).collect(Collectors.toList()) ;
+		assertThat(expected).hasSize(49) ;
+
+		long deadline = System.currentTimeMillis() + 10_000 ;
+		while (!storedIds().equals(expected) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertThat(storedIds()).containsExactlyElementsOf(expected) ;
+	}
+
+	private List<String> storedIds() {
+		return widgetRepository.findAll(Sort.by("zindex")).stream().map(Widget::getId).collect(Collectors.toList()) ;
+	}
+}
@@ -0,0 +1,179 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetStorage;
+
+/**
+ * Writers only insert at the front, so every published snapshot holds z indexes 1..n
+ * without gaps. A reader observing anything else has seen a partially applied shift.
+ */
+@SpringBootTest(properties = "storage=inmemory")
+public class InMemoryWidgetStoreConcurrencyTests {
+
+	private static final int WRITERS = 4 ;
+	private static final int READERS = 4 ;
+	private static final int REPEATS = 300 ;
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	private ExecutorService executor ;
+
+	@BeforeEach
+	public void setUp() {
+		storage.deleteAll();
+		executor = Executors.newFixedThreadPool(WRITERS + READERS) ;
+	}
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow() ;
+	}
+
+	@Test
+	public void givenFrontInsertsWhenReadConcurrentlyThenZOrderIsNeverHalfShifted() throws Exception {
+		run(writer -> () -> {
+			for (int i = 0; i < REPEATS; i++) {
+				storage.create(widget(writer + "-" + i)) ;
+			}
+			return null ;
+		}, () -> {
+			List<Widget> widgets = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, WRITERS * REPEATS)) ;
+			assertContiguous(widgets) ;
+			assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).width(100).height(100).build()))
+					.hasSizeGreaterThanOrEqualTo(widgets.size()) ;
+		}) ;
+
+		List<Widget> widgets = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, WRITERS * REPEATS)) ;
+		assertThat(widgets).hasSize(WRITERS * REPEATS) ;
+		assertContiguous(widgets) ;
+	}
+
+	@Test
+	public void givenBatchesWhenReadConcurrentlyThenBatchesAreNeverHalfApplied() throws Exception {
+		run(writer -> () -> {
+			for (int i = 0; i < REPEATS; i++) {
+				storage.applyBatch(DEFAULT_BOARD, List.of(
+						WidgetOperation.create(widget(writer + "-" + i + "-a")),
+						WidgetOperation.create(widget(writer + "-" + i + "-b")))) ;
+			}
+			return null ;
+		}, () -> {
+			List<Widget> widgets = storage.findAllAfter(DEFAULT_BOARD, null, 2 * WRITERS * REPEATS) ;
+			assertThat(widgets.size() % 2).isZero() ;
+			assertContiguous(widgets) ;
+		}) ;
+
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, null, 2 * WRITERS * REPEATS)).hasSize(2 * WRITERS * REPEATS) ;
+	}
+
+	@Test
+	public void givenUpdatesAndDeletesWhenReadConcurrentlyThenNoWriteIsLost() throws Exception {
+		for (int writer = 0; writer < WRITERS; writer++) {
+			for (int i = 0; i < REPEATS; i++) {
+				storage.create(widget(writer + "-" + i)) ;
+			}
+		}
+
+		run(writer -> () -> {
+			for (int i = 0; i < REPEATS; i++) {
+				if (i % 2 == 0) {
+					storage.deleteById(DEFAULT_BOARD, id(writer + "-" + i));
+				} else {
+					storage.update(Widget.builder().id(id(writer + "-" + i)).zindex(1).x(0).y(0).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+				}
+			}
+			return null ;
+		}, () -> assertStrictlyIncreasing(storage.findAllAfter(DEFAULT_BOARD, null, WRITERS * REPEATS))) ;
+
+		List<Widget> widgets = storage.findAllAfter(DEFAULT_BOARD, null, WRITERS * REPEATS) ;
+		assertThat(widgets).hasSize(WRITERS * REPEATS / 2) ;
+		List<String> updated = new ArrayList<>() ;
+		for (int writer = 0; writer < WRITERS; writer++) {
+			for (int i = 1; i < REPEATS; i += 2) {
+				updated.add(id(writer + "-" + i)) ;
+			}
+		}
+		assertThat(widgets).extracting(Widget::getId).containsExactlyInAnyOrderElementsOf(updated) ;
+	}
+
+	private void run(WriterFactory writers, Runnable read) throws Exception {
+		CyclicBarrier barrier = new CyclicBarrier(WRITERS + READERS) ;
+		AtomicBoolean writing = new AtomicBoolean(true) ;
+
+		List<Future<?>> writerFutures = new ArrayList<>() ;
+		for (int writer = 0; writer < WRITERS; writer++) {
+			Callable<Void> body = writers.create(writer) ;
+			writerFutures.add(executor.submit(() -> {
+				barrier.await() ;
+				return body.call() ;
+			})) ;
+		}
+
+		List<Future<?>> readerFutures = new ArrayList<>() ;
+		for (int reader = 0; reader < READERS; reader++) {
+			readerFutures.add(executor.submit(() -> {
+				barrier.await() ;
+				while (writing.get()) {
+					read.run() ;
+				}
+				return null ;
+			})) ;
+		}
+
+		try {
+			for (Future<?> future : writerFutures) {
+				future.get(60, TimeUnit.SECONDS) ;
+			}
+		} finally {
+			writing.set(false) ;
+		}
+		for (Future<?> future : readerFutures) {
+			future.get(60, TimeUnit.SECONDS) ;
+		}
+	}
+
+	private void assertContiguous(List<Widget> widgets) {
+		for (int i = 0; i < widgets.size(); i++) {
+			assertThat(widgets.get(i).getZindex()).isEqualTo(i + 1) ;
+		}
+	}
+
+	private void assertStrictlyIncreasing(List<Widget> widgets) {
+		for (int i = 1; i < widgets.size(); i++) {
+			assertThat(widgets.get(i).getZindex()).isGreaterThan(widgets.get(i - 1).getZindex()) ;
+		}
+	}
+
+	private Widget widget(String name) {
+		return Widget.builder().id(id(name)).zindex(1).x(0).y(0).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+	}
+
+	private interface WriterFactory {
+		Callable<Void> create(int writer) ;
+	}
+}
@@ -1,9 +1,16 @@
 package com.miro.widgets.service;
 
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.BrokenBarrierException;
@@ -18,6 +25,10 @@ import org.springframework.data.domain.PageRequest;
 
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.WidgetChanges;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
 
 @SpringBootTest(properties = "storage=inmemory")
@@ -33,126 +44,444 @@ public class InMemoryWidgetStoreTests {
 	
 	@Test
 	public void given123WhenNew2Then1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2Then123() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.update(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.update(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(3) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2as3Then134() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.update(Widget.builder().id("b").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.update(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenNewThen1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given156WhenNew2Then1256() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(5) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(6) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(5) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(6) ;
 	}
 	
 	@Test
 	public void given124WhenNew2Then1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2to3Then134() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("b").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given1234WhenDelete3AndNew2Then123() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("d").zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("d")).zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.deleteById("c");
-		storage.create(Widget.builder().id("x").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.deleteById(DEFAULT_BOARD, id("c"));
+		storage.create(Widget.builder().id(id("x")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c")).isEmpty() ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c"))).isEmpty() ;
+	}
+	
+	@Test
+	public void given1356WhenPagedAfter3ThenReturn56() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("d")).zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, null, 2)).extracting(Widget::getId).containsExactly(id("a"), id("b")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 3, 10)).extracting(Widget::getId).containsExactly(id("c"), id("d")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 2, 1)).extracting(Widget::getId).containsExactly(id("b")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 6, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void given123WhenBatchAppliedThenAllOperationsVisible() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<WidgetOperationResult> results = storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.update(Widget.builder().id(id("c")).zindex(1).x(20).y(20).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.delete(DEFAULT_BOARD, id("b")),
+				WidgetOperation.delete(DEFAULT_BOARD, id("missing")))) ;
+		
+		assertThat(results).extracting(WidgetOperationResult::getStatus).containsExactly(
+				WidgetOperationResult.Status.CREATED, WidgetOperationResult.Status.UPDATED,
+				WidgetOperationResult.Status.DELETED, WidgetOperationResult.Status.NOT_FOUND) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b"))).isEmpty() ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("c"), id("a"), id("x")) ;
+	}
+	
+	@Test
+	public void givenABCWhenStreamedThenPageAndRegionVisited() {
+		storage.create(Widget.builder().id(id("a")).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<Widget> page = new ArrayList<>() ;
+		storage.forEach(DEFAULT_BOARD, PageRequest.of(1, 2), page::add) ;
+		List<Widget> filtered = new ArrayList<>() ;
+		storage.forEachByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(150).width(100).build(), filtered::add) ;
+		
+		assertThat(page).extracting(Widget::getId).containsExactly(id("c")) ;
+		assertThat(filtered).extracting(Widget::getId).containsExactlyInAnyOrder(id("a"), id("b")) ;
+	}
+	
+	@Test
+	public void givenTwoBoardsWhenNew1OnOneThenOtherNotShifted() {
+		storage.create(Widget.builder().id(id("a")).board("left").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).board("left").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).board("right").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		storage.create(Widget.builder().id(id("y")).board("right").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.deleteById("right", id("a"));
+		
+		assertThat(storage.findAll("left", PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("a"), id("b")) ;
+		assertThat(storage.findAll("right", PageRequest.of(0, 10))).extracting(Widget::getZindex).containsExactly(1, 2) ;
+		assertThat(storage.findAllByRegion("right", RegionDto.builder().x(0).y(0).width(50).height(50).build())).extracting(Widget::getId).containsExactlyInAnyOrder(id("x"), id("y")) ;
+		assertThat(storage.findById("left", id("x"))).isEmpty() ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a"))).isEmpty() ;
 	}
 	
 	@Test
 	public void givenABCWhenFilteredThenReturnAB() {
-		storage.create(Widget.builder().id("a").x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		List<Widget> filtered = storage.findAllByRegion(RegionDto.builder().x(0).y(0).height(150).width(100).build()) ;
+		List<Widget> filtered = storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(150).width(100).build()) ;
 		
 		assertThat(filtered).hasSize(2) ;
 		Set<String> filteredSet = filtered.stream().map(w -> w.getId()).collect(Collectors.toSet()) ;
-		assertThat(filteredSet).containsExactly("a", "b") ;
+		assertThat(filteredSet).containsExactlyInAnyOrder(id("a"), id("b")) ;
+	}
+	
+	@Test
+	public void givenLongStackWhenNewAtFrontThenAllShifted() {
+		int count = 20000 ;
+		for (int i = 1; i <= count; i++) {
+			storage.create(Widget.builder().id(id("w" + i)).zindex(i).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		}
+		
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("w1")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("w" + count)).get().getZindex()).isEqualTo(count + 1) ;
+		
+		List<Widget> all = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, count + 1)) ;
+		for (int i = 0; i < all.size(); i++) {
+			assertThat(all.get(i).getZindex()).isEqualTo(i + 1) ;
+		}
+	}
+	
+	@Test
+	public void givenRegionWhenQueriedByZindexThenLowestWithinFirst() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(0).y(0).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("out")).zindex(2).x(500).y(500).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(20).y(20).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(5).x(40).y(40).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(60).y(60).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		RegionDto region = RegionDto.builder().x(0).y(0).width(100).height(100).build() ;
+		
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, null, 3)).extracting(Widget::getId).containsExactly(id("x"), id("a"), id("b")) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, null, 3)).extracting(Widget::getZindex).containsExactly(1, 2, 4) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, 2, 10)).extracting(Widget::getId).containsExactly(id("b"), id("c")) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, 5, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void givenRandomWidgetsWhenRegionQueriedByZindexThenSameAsSortedRegion() {
+		Random random = new Random(11) ;
+		for (int i = 0; i < 2000; i++) {
+			String id = id("w" + random.nextInt(500)) ;
+			if (random.nextInt(5) == 0) {
+				storage.deleteById(DEFAULT_BOARD, id);
+			} else {
+				storage.create(Widget.builder().id(id).zindex(random.nextInt(3) == 0 ? null : random.nextInt(1000))
+						.x(random.nextInt(2000)).y(random.nextInt(2000)).height(1 + random.nextInt(200)).width(1 + random.nextInt(200))
+						.lastModificationDate(LocalDateTime.now()).build()) ;
+			}
+		}
+		
+		for (int i = 0; i < 200; i++) {
+			RegionDto region = RegionDto.builder().x(random.nextInt(2000)).y(random.nextInt(2000)).width(1 + random.nextInt(1000)).height(1 + random.nextInt(1000)).build() ;
+			int after = random.nextInt(1000) ;
+			int limit = 1 + random.nextInt(20) ;
+			List<Widget> expected = storage.findAllByRegion(DEFAULT_BOARD, region).stream()
+					.filter(w -> w.getZindex() > after)
+					.sorted(Comparator.comparing(Widget::getZindex))
+					.limit(limit)
+					.collect(Collectors.toList()) ;
+			
+			assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, after, limit)).extracting(Widget::getId)
+					.containsExactlyElementsOf(expected.stream().map(Widget::getId).collect(Collectors.toList())) ;
+		}
+	}
+	
+	@Test
+	public void givenOverlappingWidgetsWhenHitTestedThenTopmostFirst() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(50).y(50).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("huge")).zindex(3).x(-100000).y(-100000).height(300000).width(300000).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("far")).zindex(4).x(1000).y(1000).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(500).y(500).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 10)).extracting(Widget::getId).containsExactly(id("huge"), id("b"), id("a")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 10)).extracting(Widget::getZindex).containsExactly(4, 3, 2) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 1)).extracting(Widget::getId).containsExactly(id("huge")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 100, 100, 10)).extracting(Widget::getId).containsExactly(id("huge"), id("a")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 300000, 0, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void givenRandomWidgetsWhenHitTestedThenSameAsSortedContaining() {
+		Random random = new Random(23) ;
+		for (int i = 0; i < 2000; i++) {
+			String id = id("w" + random.nextInt(500)) ;
+			if (random.nextInt(5) == 0) {
+				storage.deleteById(DEFAULT_BOARD, id);
+			} else {
+				storage.create(Widget.builder().id(id).zindex(random.nextInt(3) == 0 ? null : random.nextInt(1000))
+						.x(random.nextInt(2000)).y(random.nextInt(2000)).height(1 + random.nextInt(200)).width(1 + random.nextInt(200))
+						.lastModificationDate(LocalDateTime.now()).build()) ;
+			}
+		}
+		List<Widget> all = storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).width(3000).height(3000).build()) ;
+		
+		for (int i = 0; i < 200; i++) {
+			int x = random.nextInt(2200), y = random.nextInt(2200), limit = 1 + random.nextInt(10) ;
+			List<String> expected = all.stream()
+					.filter(w -> w.getX() <= x && w.getY() <= y && w.getX() + w.getWidth() >= x && w.getY() + w.getHeight() >= y)
+					.sorted(Comparator.comparing(Widget::getZindex).reversed())
+					.limit(limit)
+					.map(Widget::getId)
+					.collect(Collectors.toList()) ;
+			
+			assertThat(storage.findAllAt(DEFAULT_BOARD, x, y, limit)).extracting(Widget::getId).containsExactlyElementsOf(expected) ;
+		}
+	}
+	
+	@Test
+	public void givenVersionWhenWidgetsChangedThenChangesSinceHaveShiftsAndTombstones() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		long version = storage.version(DEFAULT_BOARD) ;
+		
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.deleteById(DEFAULT_BOARD, id("a"));
+		storage.deleteById(DEFAULT_BOARD, id("missing"));
+		
+		WidgetChanges changes = storage.changesSince(DEFAULT_BOARD, version).get() ;
+		assertThat(changes.getVersion()).isEqualTo(storage.version(DEFAULT_BOARD)).isEqualTo(version + 3) ;
+		assertThat(changes.getUpserted()).extracting(Widget::getId).containsExactly(id("b"), id("x")) ;
+		assertThat(changes.getUpserted().get(0).getZindex()).isEqualTo(3) ;
+		assertThat(changes.getDeleted()).containsExactly(id("a")) ;
+		assertThat(storage.changesSince(DEFAULT_BOARD, changes.getVersion()).get().getUpserted()).isEmpty() ;
+	}
+	
+	@Test
+	public void givenChangesForgottenWhenChangesSinceThenEmpty() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		long version = storage.version(DEFAULT_BOARD) ;
+		
+		storage.deleteAll();
+		
+		assertThat(storage.version(DEFAULT_BOARD)).isGreaterThan(version) ;
+		assertThat(storage.changesSince(DEFAULT_BOARD, version)).isEmpty() ;
+		assertThat(storage.changesSince(DEFAULT_BOARD, storage.version(DEFAULT_BOARD) + 1)).isEmpty() ;
+	}
+	
+	@Test
+	public void givenRepeatedInsertsAtSameIndexThenOrderIsKept() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		int count = 200 ;
+		for (int i = 0; i < count; i++) {
+			storage.create(Widget.builder().id(id("x" + i)).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		}
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x" + (count - 1))).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x0")).get().getZindex()).isEqualTo(count + 1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(count + 2) ;
+		
+		List<Widget> all = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, count + 2)) ;
+		for (int i = 0; i < all.size(); i++) {
+			assertThat(all.get(i).getZindex()).isEqualTo(i + 1) ;
+		}
+	}
+	
+	@Test
+	public void givenRandomOperationsThenIndexesMatchSequentialShifting() {
+		Random random = new Random(3) ;
+		Map<String, Integer> expected = new HashMap<>() ;
+		
+		for (int i = 0; i < 3000; i++) {
+			String id = id("w" + random.nextInt(300)) ;
+			int zindex = random.nextInt(400) ;
+			int operation = random.nextInt(4) ;
+			if (operation == 0) {
+				storage.deleteById(DEFAULT_BOARD, id);
+				expected.remove(id) ;
+				continue ;
+			}
+			
+			Widget widget = Widget.builder().id(id).zindex(zindex).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+			if (operation == 1 && expected.containsKey(id)) {
+				storage.update(widget) ;
+				if (expected.get(id) != zindex) {
+					expected.remove(id) ;
+					shift(expected, zindex) ;
+				}
+			} else {
+				storage.create(widget) ;
+				shift(expected, zindex) ;
+			}
+			expected.put(id, zindex) ;
+		}
+		
+		for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+			assertThat(storage.findById(DEFAULT_BOARD, entry.getKey()).get().getZindex()).isEqualTo(entry.getValue()) ;
+		}
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 1000))).extracting(Widget::getZindex)
+			.containsExactlyElementsOf(expected.values().stream().sorted().collect(Collectors.toList())) ;
+	}
+	
+	private void shift(Map<String, Integer> indexes, int zindex) {
+		Map<Integer, String> byIndex = new HashMap<>() ;
+		indexes.forEach((id, z) -> byIndex.put(z, id));
+		int gap = zindex ;
+		while (byIndex.containsKey(gap)) {
+			gap++ ;
+		}
+		for (int z = gap - 1; z >= zindex; z--) {
+			indexes.put(byIndex.get(z), z + 1) ;
+		}
+	}
+	
+	@Test
+	public void givenShiftedWidgetWhenRetrievedThenModificationDateUpdated() {
+		LocalDateTime created = LocalDateTime.now().minusDays(1) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(created).build()) ;
+		
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getLastModificationDate()).isAfter(created) ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(100).width(100).build()))
+			.extracting(Widget::getZindex).containsExactlyInAnyOrder(1, 2) ;
+	}
+	
+	@Test
+	public void givenStaleVersionWhenUpdatedOrDeletedThenConflict() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getVersion()).isEqualTo(1L) ;
+		
+		Widget updated = storage.update(Widget.builder().id(id("a")).zindex(1).x(20).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).version(1L).build()).get() ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(updated.getVersion()).isEqualTo(2L) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getVersion()).isEqualTo(2L) ;
+		assertThatThrownBy(() -> storage.update(Widget.builder().id(id("a")).zindex(1).x(30).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).version(1L).build()))
+			.isInstanceOf(WidgetConflictException.class) ;
+		assertThatThrownBy(() -> storage.deleteById(DEFAULT_BOARD, id("a"), 1L)).isInstanceOf(WidgetConflictException.class) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getX()).isEqualTo(20) ;
+		assertThat(storage.deleteById(DEFAULT_BOARD, id("a"), 2L)).isTrue() ;
+		assertThat(storage.deleteById(DEFAULT_BOARD, id("a"), 2L)).isFalse() ;
+	}
+	
+	@Test
+	public void givenStaleVersionInBatchThenOnlyThatOperationConflicts() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<WidgetOperationResult> results = storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.update(Widget.builder().id(id("a")).zindex(1).x(20).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).version(5L).build()),
+				WidgetOperation.delete(DEFAULT_BOARD, id("b"), 1L))) ;
+		
+		assertThat(results).extracting(WidgetOperationResult::getStatus)
+			.containsExactly(WidgetOperationResult.Status.CONFLICT, WidgetOperationResult.Status.DELETED) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getX()).isEqualTo(10) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b"))).isEmpty() ;
 	}
 	
 	@Test
@@ -167,12 +496,12 @@ public class InMemoryWidgetStoreTests {
 					barrier.await();
 					Random random = new Random() ;
 					for (int i = 0; i < repeats; i++) {
-						Widget widget = Widget.builder().id(Thread.currentThread().getName() + "-" + i).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+						Widget widget = Widget.builder().id(id(Thread.currentThread().getName() + "-" + i)).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
 						storage.create(widget) ;
 					}
 					
 					for (int i = 0; i < repeats; i++) {
-						Widget widget = Widget.builder().id(Thread.currentThread().getName() + "-" + i).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+						Widget widget = Widget.builder().id(id(Thread.currentThread().getName() + "-" + i)).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
 						storage.update(widget) ;
 					}
 				} catch (InterruptedException e) {
@@ -197,7 +526,7 @@ public class InMemoryWidgetStoreTests {
 			}
 		}
 		
-		assertThat(storage.findAll(PageRequest.of(0, 500)).size()).isEqualTo(repeats * threads) ;
-		assertThat(storage.findAll(PageRequest.of(0, 500)).stream().map(w -> w.getZindex()).collect(Collectors.toSet()).size()).isEqualTo(repeats * threads) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 500)).size()).isEqualTo(repeats * threads) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 500)).stream().map(w -> w.getZindex()).collect(Collectors.toSet()).size()).isEqualTo(repeats * threads) ;
 	}
 }
@@ -0,0 +1,110 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.WidgetStorage;
+
+@SpringBootTest(properties = {"storage=database", "widgets.jdbc.group-commit.enabled=true", "widgets.jdbc.group-commit.max-linger-ms=50"})
+public class JdbcGroupCommitStoreTests {
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	@BeforeEach
+	public void setUp() {
+		storage.deleteAll();
+	}
+
+	@Test
+	public void given123WhenNew2Then1234() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.deleteById(DEFAULT_BOARD, id("c"));
+
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("a"), id("x"), id("b")) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+	}
+
+	@Test
+	public void givenConcurrentCreatesWhenCommittedInGroupsThenAllStored() throws Exception {
+		int threads = 8 ;
+		int repeats = 25 ;
+		List<Widget> created = runConcurrently(threads, thread -> {
+			List<Widget> widgets = new ArrayList<>() ;
+			for (int i = 0; i < repeats; i++) {
+				widgets.add(storage.create(Widget.builder().id(id(thread + "-" + i)).zindex(i % 3 == 0 ? null : 1 + i % 5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build())) ;
+			}
+			return widgets ;
+		}) ;
+
+		List<Widget> stored = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, threads * repeats)) ;
+		assertThat(created).hasSize(threads * repeats) ;
+		assertThat(stored).hasSize(threads * repeats) ;
+		assertThat(stored.stream().map(Widget::getZindex).collect(Collectors.toSet())).hasSize(threads * repeats) ;
+	}
+
+	@Test
+	public void givenInvalidWidgetInGroupWhenCommittedThenOnlyItsCallerFails() throws Exception {
+		List<Widget> created = runConcurrently(4, thread -> {
+			Widget widget = Widget.builder().id(id("w" + thread)).zindex(null).x(thread == 0 ? null : 10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+			if (thread == 0) {
+				assertThatThrownBy(() -> storage.create(widget)).isInstanceOf(RuntimeException.class) ;
+				return List.of() ;
+			}
+			return List.of(storage.create(widget)) ;
+		}) ;
+
+		assertThat(created).hasSize(3) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getZindex).containsExactly(1, 2, 3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("w0"))).isEmpty() ;
+	}
+
+	private List<Widget> runConcurrently(int threads, ThreadWork work) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads) ;
+		CyclicBarrier barrier = new CyclicBarrier(threads) ;
+		try {
+			List<Future<List<Widget>>> futures = new ArrayList<>() ;
+			for (int i = 0; i < threads; i++) {
+				int thread = i ;
+				futures.add(executor.submit(() -> {
+					barrier.await() ;
+					return work.run(thread) ;
+				})) ;
+			}
+			List<Widget> result = new ArrayList<>() ;
+			for (Future<List<Widget>> future : futures) {
+				result.addAll(future.get(60, TimeUnit.SECONDS)) ;
+			}
+			return result ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+	}
+
+	private interface ThreadWork {
+		List<Widget> run(int thread) throws Exception ;
+	}
+}
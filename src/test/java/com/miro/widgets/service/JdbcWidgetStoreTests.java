@@ -1,8 +1,12 @@
 package com.miro.widgets.service;
 
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -10,16 +14,23 @@ import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.stream.Collectors;
 
+import javax.persistence.EntityManager;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.miro.widgets.dto.RegionDto;
 import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
 import com.miro.widgets.repository.WidgetRepository;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
 
 @SpringBootTest(properties = "storage=database")
@@ -32,133 +43,345 @@ public class JdbcWidgetStoreTests {
 	@Autowired
 	private WidgetStorage storage ;
 	
+	@Autowired
+	private JdbcTemplate jdbcTemplate ;
+	
+	@Autowired
+	private EntityManager entityManager ;
+	
 	@BeforeEach
 	public void setUp() {
-		widgetRepository.deleteAll();
+		storage.deleteAll();
 	}
 	
 	@Test
 	public void given123WhenNew2Then1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2Then123() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.update(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.update(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(3) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2as3Then134() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.update(Widget.builder().id("b").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.update(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenNewThen1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given156WhenNew2Then1256() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(5) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(6) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(5) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(6) ;
 	}
 	
 	@Test
 	public void given124WhenNew2Then1234() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("x").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given123WhenUpdate2to3Then134() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.create(Widget.builder().id("b").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c").get().getZindex()).isEqualTo(4) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(4) ;
 	}
 	
 	@Test
 	public void given1234WhenDelete3AndNew2Then123() {
-		storage.create(Widget.builder().id("a").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("d").zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("d")).zindex(4).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		storage.deleteById(DEFAULT_BOARD, id("c"));
+		storage.create(Widget.builder().id(id("x")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c"))).isEmpty() ;
+	}
+	
+	@Test
+	public void givenLongStackWhenNewAtFrontThenAllShifted() {
+		int count = 500 ;
+		for (int i = 1; i <= count; i++) {
+			storage.create(Widget.builder().id(id("w" + i)).zindex(i).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		}
+		storage.create(Widget.builder().id(id("top")).zindex(count + 10).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("y")).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("w1")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("w" + count)).get().getZindex()).isEqualTo(count + 1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("top")).get().getZindex()).isEqualTo(count + 10) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("y")).get().getZindex()).isEqualTo(count + 11) ;
+	}
+	
+	@Test
+	public void given123WhenDeleteTopAndNewThen123() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		storage.deleteById(DEFAULT_BOARD, id("c"));
+		storage.create(Widget.builder().id(id("x")).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(3) ;
+	}
+	
+	@Test
+	public void given1356WhenPagedAfter3ThenReturn56() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(5).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("d")).zindex(6).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, null, 2)).extracting(Widget::getId).containsExactly(id("a"), id("b")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 3, 10)).extracting(Widget::getId).containsExactly(id("c"), id("d")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 2, 1)).extracting(Widget::getId).containsExactly(id("b")) ;
+		assertThat(storage.findAllAfter(DEFAULT_BOARD, 6, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void given123WhenBatchAppliedThenAllOperationsVisible() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<WidgetOperationResult> results = storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.create(Widget.builder().id(id("x")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.update(Widget.builder().id(id("c")).zindex(1).x(20).y(20).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.delete(DEFAULT_BOARD, id("b")),
+				WidgetOperation.delete(DEFAULT_BOARD, id("missing")))) ;
+		
+		assertThat(results).extracting(WidgetOperationResult::getStatus).containsExactly(
+				WidgetOperationResult.Status.CREATED, WidgetOperationResult.Status.UPDATED,
+				WidgetOperationResult.Status.DELETED, WidgetOperationResult.Status.NOT_FOUND) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c")).get().getZindex()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("x")).get().getZindex()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b"))).isEmpty() ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("c"), id("a"), id("x")) ;
+	}
+	
+	@Test
+	public void givenBatchTouchingWidgetsTwiceWhenAppliedThenChecksSeeEarlierOperations() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<WidgetOperationResult> results = storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.update(Widget.builder().id(id("a")).x(20).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.update(Widget.builder().id(id("a")).x(30).y(10).height(10).width(10).version(2L).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.update(Widget.builder().id(id("b")).x(30).y(10).height(10).width(10).version(5L).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.update(Widget.builder().id(id("c")).x(50).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()),
+				WidgetOperation.delete(DEFAULT_BOARD, id("c"), 2L))) ;
+		
+		assertThat(results).extracting(WidgetOperationResult::getStatus).containsExactly(
+				WidgetOperationResult.Status.UPDATED, WidgetOperationResult.Status.UPDATED, WidgetOperationResult.Status.CONFLICT,
+				WidgetOperationResult.Status.CREATED, WidgetOperationResult.Status.UPDATED, WidgetOperationResult.Status.DELETED) ;
+		assertThat(results.get(4).getWidget().getZindex()).isEqualTo(4) ;
+		Widget a = storage.findById(DEFAULT_BOARD, id("a")).get() ;
+		assertThat(a.getX()).isEqualTo(30) ;
+		assertThat(a.getVersion()).isEqualTo(3) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("b")).get().getVersion()).isEqualTo(1) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("c"))).isEmpty() ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("x"), id("a"), id("b")) ;
+	}
+	
+	@Test
+	public void givenWidgetMovedWhenFilteredThenFoundAtNewPosition() {
+		storage.create(Widget.builder().id(id("a")).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).x(-5000).y(7000).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		storage.deleteById("c");
-		storage.create(Widget.builder().id("x").zindex(3).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.update(Widget.builder().id(id("a")).zindex(1).x(5000).y(5000).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		assertThat(storage.findById("a").get().getZindex()).isEqualTo(1) ;
-		assertThat(storage.findById("b").get().getZindex()).isEqualTo(2) ;
-		assertThat(storage.findById("x").get().getZindex()).isEqualTo(3) ;
-		assertThat(storage.findById("c")).isEmpty() ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(200).width(200).build())).isEmpty() ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(4900).y(4900).height(200).width(200).build()))
+				.extracting(Widget::getId).containsExactly(id("a")) ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(-5000).y(7000).height(100).width(100).build()))
+				.extracting(Widget::getId).containsExactly(id("b")) ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(-5000).y(7000).height(99).width(100).build())).isEmpty() ;
+	}
+	
+	@Test
+	public void givenWidgetAtIntRangeEndWhenQueriedThenEdgesDoNotOverflow() {
+		int x = Integer.MAX_VALUE - 50 ;
+		storage.create(Widget.builder().id(id("a")).x(x).y(x).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findAllAt(DEFAULT_BOARD, Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1, 10)).extracting(Widget::getId).containsExactly(id("a")) ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(x).y(x).height(50).width(50).build())).isEmpty() ;
+		assertThat(storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(x).y(x).height(100).width(100).build()))
+				.extracting(Widget::getId).containsExactly(id("a")) ;
+	}
+	
+	@Test
+	public void givenWidgetWhenStoredThenIdColumnHoldsUuidBytes() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(0).y(0).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		entityManager.flush();
+		
+		assertThat(jdbcTemplate.queryForObject("SELECT id FROM widget", byte[].class)).isEqualTo(WidgetIds.toBytes(id("a"))) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a"))).isPresent() ;
+	}
+	
+	@Test
+	public void givenRegionWhenQueriedByZindexThenLowestWithinFirst() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(0).y(0).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("out")).zindex(2).x(500).y(500).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(3).x(20).y(20).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).zindex(5).x(40).y(40).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(60).y(60).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		RegionDto region = RegionDto.builder().x(0).y(0).width(100).height(100).build() ;
+		
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, null, 3)).extracting(Widget::getId).containsExactly(id("x"), id("a"), id("b")) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, null, 3)).extracting(Widget::getZindex).containsExactly(1, 2, 4) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, 2, 10)).extracting(Widget::getId).containsExactly(id("b"), id("c")) ;
+		assertThat(storage.findAllByRegionAfter(DEFAULT_BOARD, region, 5, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void givenOverlappingWidgetsWhenHitTestedThenTopmostFirst() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).zindex(2).x(50).y(50).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("huge")).zindex(3).x(-100000).y(-100000).height(300000).width(300000).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("far")).zindex(4).x(1000).y(1000).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(500).y(500).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 10)).extracting(Widget::getId).containsExactly(id("huge"), id("b"), id("a")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 10)).extracting(Widget::getZindex).containsExactly(4, 3, 2) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 55, 55, 1)).extracting(Widget::getId).containsExactly(id("huge")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 100, 100, 10)).extracting(Widget::getId).containsExactly(id("huge"), id("a")) ;
+		assertThat(storage.findAllAt(DEFAULT_BOARD, 300000, 0, 10)).isEmpty() ;
+	}
+	
+	@Test
+	public void givenABCWhenStreamedThenPageAndRegionVisited() {
+		storage.create(Widget.builder().id(id("a")).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		List<Widget> page = new ArrayList<>() ;
+		storage.forEach(DEFAULT_BOARD, PageRequest.of(1, 2), page::add) ;
+		List<Widget> filtered = new ArrayList<>() ;
+		storage.forEachByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(150).width(100).build(), filtered::add) ;
+		
+		assertThat(page).extracting(Widget::getId).containsExactly(id("c")) ;
+		assertThat(filtered).extracting(Widget::getId).containsExactlyInAnyOrder(id("a"), id("b")) ;
+	}
+	
+	@Test
+	public void givenTwoBoardsWhenNew1OnOneThenOtherNotShifted() {
+		storage.create(Widget.builder().id(id("a")).board("left").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).board("left").zindex(2).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("x")).board("right").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		storage.create(Widget.builder().id(id("y")).board("right").zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.deleteById("right", id("a"));
+		
+		assertThat(storage.findAll("left", PageRequest.of(0, 10))).extracting(Widget::getId).containsExactly(id("a"), id("b")) ;
+		assertThat(storage.findAll("right", PageRequest.of(0, 10))).extracting(Widget::getZindex).containsExactly(1, 2) ;
+		assertThat(storage.findAllByRegion("right", RegionDto.builder().x(0).y(0).width(50).height(50).build())).extracting(Widget::getId).containsExactlyInAnyOrder(id("x"), id("y")) ;
+		assertThat(storage.findById("left", id("x"))).isEmpty() ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a"))).isEmpty() ;
 	}
 	
 	@Test
 	public void givenABCWhenFilteredThenReturnAB() {
-		storage.create(Widget.builder().id("a").x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("b").x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
-		storage.create(Widget.builder().id("c").x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("a")).x(0).y(0).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("b")).x(0).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
+		storage.create(Widget.builder().id(id("c")).x(50).y(50).height(100).width(100).lastModificationDate(LocalDateTime.now()).build()) ;
 		
-		List<Widget> filtered = storage.findAllByRegion(RegionDto.builder().x(0).y(0).height(150).width(100).build()) ;
+		List<Widget> filtered = storage.findAllByRegion(DEFAULT_BOARD, RegionDto.builder().x(0).y(0).height(150).width(100).build()) ;
 		
 		assertThat(filtered).hasSize(2) ;
 		Set<String> filteredSet = filtered.stream().map(w -> w.getId()).collect(Collectors.toSet()) ;
-		assertThat(filteredSet).containsExactly("a", "b") ;
+		assertThat(filteredSet).containsExactlyInAnyOrder(id("a"), id("b")) ;
+	}
+	
+	@Test
+	public void givenStaleVersionWhenUpdatedOrDeletedThenConflict() {
+		storage.create(Widget.builder().id(id("a")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getVersion()).isEqualTo(1L) ;
+		
+		Widget updated = storage.update(Widget.builder().id(id("a")).zindex(1).x(20).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).version(1L).build()).get() ;
+		storage.create(Widget.builder().id(id("x")).zindex(1).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build()) ;
+		
+		assertThat(updated.getVersion()).isEqualTo(2L) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getZindex()).isEqualTo(2) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getVersion()).isEqualTo(2L) ;
+		assertThatThrownBy(() -> storage.update(Widget.builder().id(id("a")).zindex(1).x(30).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).version(1L).build()))
+			.isInstanceOf(WidgetConflictException.class) ;
+		assertThatThrownBy(() -> storage.deleteById(DEFAULT_BOARD, id("a"), 1L)).isInstanceOf(WidgetConflictException.class) ;
+		assertThat(storage.findById(DEFAULT_BOARD, id("a")).get().getX()).isEqualTo(20) ;
+		assertThat(storage.deleteById(DEFAULT_BOARD, id("a"), 2L)).isTrue() ;
+		assertThat(storage.deleteById(DEFAULT_BOARD, id("a"), 2L)).isFalse() ;
 	}
 	
 	@Test
@@ -173,12 +396,12 @@ public class JdbcWidgetStoreTests {
 					barrier.await();
 					Random random = new Random() ;
 					for (int i = 0; i < repeats; i++) {
-						Widget widget = Widget.builder().id(Thread.currentThread().getName() + "-" + i).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+						Widget widget = Widget.builder().id(id(Thread.currentThread().getName() + "-" + i)).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
 						storage.create(widget) ;
 					}
 					
 					for (int i = 0; i < repeats; i++) {
-						Widget widget = Widget.builder().id(Thread.currentThread().getName() + "-" + i).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+						Widget widget = Widget.builder().id(id(Thread.currentThread().getName() + "-" + i)).zindex(random.nextInt(5)).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
 						storage.update(widget) ;
 					}
 				} catch (InterruptedException e) {
@@ -203,7 +426,7 @@ public class JdbcWidgetStoreTests {
 			}
 		}
 		
-		assertThat(storage.findAll(PageRequest.of(0, 500)).size()).isEqualTo(repeats * threads) ;
-		assertThat(storage.findAll(PageRequest.of(0, 500)).stream().map(w -> w.getZindex()).collect(Collectors.toSet()).size()).isEqualTo(repeats * threads) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 500)).size()).isEqualTo(repeats * threads) ;
+		assertThat(storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 500)).stream().map(w -> w.getZindex()).collect(Collectors.toSet()).size()).isEqualTo(repeats * threads) ;
 	}
 }
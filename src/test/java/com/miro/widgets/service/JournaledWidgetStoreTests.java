@@ -0,0 +1,203 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.ChangeFeed;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetConflictException;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetStorage;
+import com.miro.widgets.storage.inmemory.InMemoryWidgetStorage;
+import com.miro.widgets.storage.inmemory.IndexOrganizer;
+import com.miro.widgets.storage.inmemory.spatial.SpatialIndex;
+import com.miro.widgets.storage.journal.JournaledWidgetStorage;
+
+@SpringBootTest(properties = {"storage=inmemory", "widgets.inmemory.journal.enabled=true", "widgets.inmemory.journal.directory=target/journal-tests"})
+public class JournaledWidgetStoreTests {
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	@Autowired
+	private IndexOrganizer indexOrganizer ;
+
+	@Autowired
+	private SpatialIndex emptySpatialIndex ;
+
+	@Autowired
+	private StorageMetrics metrics ;
+
+	@Autowired
+	private ChangeFeed changeFeed ;
+
+	@TempDir
+	Path directory ;
+
+	private JournaledWidgetStorage journaled ;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		storage.deleteAll();
+		journaled = start() ;
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		journaled.shutdown();
+	}
+
+	@Test
+	public void givenJournalEnabledThenItIsTheWidgetStorage() {
+		assertThat(storage).isInstanceOf(JournaledWidgetStorage.class) ;
+	}
+
+	@Test
+	public void givenMutationsWhenRestartedThenJournalReplayed() throws Exception {
+		mutate(journaled) ;
+		List<String> before = state(journaled) ;
+
+		restart() ;
+
+		assertThat(state(journaled)).isEqualTo(before) ;
+		assertThat(journaled.findById("other", id("o"))).isPresent() ;
+	}
+
+	@Test
+	public void givenSnapshotWhenRestartedThenSnapshotAndJournalTailRecovered() throws Exception {
+		mutate(journaled) ;
+		journaled.snapshot();
+		journaled.create(widget(DEFAULT_BOARD, id("t"), 1)) ;
+		journaled.deleteById(DEFAULT_BOARD, id("c"));
+		List<String> before = state(journaled) ;
+		LocalDateTime modified = journaled.findById(DEFAULT_BOARD, id("a")).get().getLastModificationDate() ;
+
+		restart() ;
+
+		assertThat(state(journaled)).isEqualTo(before) ;
+		assertThat(journaled.findById(DEFAULT_BOARD, id("a")).get().getLastModificationDate()).isEqualTo(modified) ;
+		assertThat(files("snapshot-")).hasSize(1) ;
+		assertThat(files("journal-")).hasSize(2) ;
+	}
+
+	@Test
+	public void givenTornRecordWhenRestartedThenCompleteRecordsRecovered() throws Exception {
+		mutate(journaled) ;
+		List<String> before = state(journaled) ;
+		journaled.shutdown();
+		List<Path> segments = files("journal-") ;
+		Files.write(segments.get(segments.size() - 1), new byte[] {0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND) ;
+
+		journaled = start() ;
+
+		assertThat(state(journaled)).isEqualTo(before) ;
+		journaled.create(widget(DEFAULT_BOARD, id("n"), null)) ;
+		restart() ;
+		assertThat(journaled.findById(DEFAULT_BOARD, id("n"))).isPresent() ;
+	}
+
+	@Test
+	public void givenDeleteAllWhenRestartedThenBoardsEmpty() throws Exception {
+		mutate(journaled) ;
+		journaled.deleteAll();
+		journaled.create(widget(DEFAULT_BOARD, id("z"), 7)) ;
+
+		restart() ;
+
+		assertThat(state(journaled)).containsExactly("default:" + id("z") + ":7:10:10:1") ;
+	}
+
+	@Test
+	public void givenJournalNotWritableWhenMutatedThenBoardUnchanged() throws Exception {
+		mutate(journaled) ;
+		List<String> before = state(journaled) ;
+		journaled.shutdown();
+
+		assertThatThrownBy(() -> journaled.create(widget(DEFAULT_BOARD, id("n"), 1))).isInstanceOf(IllegalStateException.class) ;
+		assertThatThrownBy(() -> journaled.update(widget(DEFAULT_BOARD, id("a"), 9))).isInstanceOf(IllegalStateException.class) ;
+		assertThatThrownBy(() -> journaled.deleteById(DEFAULT_BOARD, id("x"))).isInstanceOf(IllegalStateException.class) ;
+		assertThatThrownBy(() -> journaled.applyBatch(DEFAULT_BOARD, List.of(WidgetOperation.delete(DEFAULT_BOARD, id("a"))))).isInstanceOf(IllegalStateException.class) ;
+		assertThatThrownBy(() -> journaled.deleteAll()).isInstanceOf(IllegalStateException.class) ;
+		assertThat(state(journaled)).isEqualTo(before) ;
+
+		journaled = start() ;
+		assertThat(state(journaled)).isEqualTo(before) ;
+	}
+
+	@Test
+	public void givenConflictingMutationsWhenRestartedThenReplaySkipsThem() throws Exception {
+		mutate(journaled) ;
+		Widget stale = widget(DEFAULT_BOARD, id("a"), 9) ;
+		stale.setVersion(1L);
+		assertThatThrownBy(() -> journaled.update(stale)).isInstanceOf(WidgetConflictException.class) ;
+		assertThatThrownBy(() -> journaled.deleteById(DEFAULT_BOARD, id("x"), 5L)).isInstanceOf(WidgetConflictException.class) ;
+		journaled.create(widget(DEFAULT_BOARD, id("n"), 1)) ;
+		List<String> before = state(journaled) ;
+
+		restart() ;
+
+		assertThat(state(journaled)).isEqualTo(before) ;
+	}
+
+	private void mutate(WidgetStorage storage) {
+		storage.create(widget(DEFAULT_BOARD, id("a"), 1)) ;
+		storage.create(widget(DEFAULT_BOARD, id("b"), 2)) ;
+		storage.create(widget(DEFAULT_BOARD, id("c"), null)) ;
+		storage.create(widget(DEFAULT_BOARD, id("x"), 2)) ;
+		storage.update(widget(DEFAULT_BOARD, id("a"), 3)) ;
+		storage.deleteById(DEFAULT_BOARD, id("b"), 1L);
+		storage.create(widget("other", id("o"), 1)) ;
+		storage.applyBatch(DEFAULT_BOARD, List.of(
+				WidgetOperation.create(widget(DEFAULT_BOARD, id("y"), 1)),
+				WidgetOperation.update(widget(DEFAULT_BOARD, id("c"), null)),
+				WidgetOperation.delete(DEFAULT_BOARD, id("missing"), 4L))) ;
+	}
+
+	private List<String> state(WidgetStorage storage) {
+		return Stream.of(DEFAULT_BOARD, "other")
+				.flatMap(board -> storage.findAll(board, PageRequest.of(0, 100)).stream())
+				.map(w -> w.getBoard() + ":" + w.getId() + ":" + w.getZindex() + ":" + w.getX() + ":" + w.getY() + ":" + w.getVersion())
+				.collect(Collectors.toList()) ;
+	}
+
+	private List<Path> files(String prefix) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(f -> f.getFileName().toString().startsWith(prefix)).sorted().collect(Collectors.toList()) ;
+		}
+	}
+
+	private void restart() throws Exception {
+		journaled.shutdown();
+		journaled = start() ;
+	}
+
+	private JournaledWidgetStorage start() throws IOException {
+		JournaledWidgetStorage started = new JournaledWidgetStorage(new InMemoryWidgetStorage(indexOrganizer, emptySpatialIndex, metrics, changeFeed, 1000), metrics, directory.toString(), 300, 1 << 20) ;
+		started.init();
+		return started ;
+	}
+
+	private Widget widget(String board, String id, Integer zindex) {
+		return Widget.builder().id(id).board(board).zindex(zindex).x(10).y(10).height(10).width(10).lastModificationDate(LocalDateTime.now()).build() ;
+	}
+}
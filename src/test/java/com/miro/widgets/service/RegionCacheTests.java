@@ -0,0 +1,111 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.dto.WidgetDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.WidgetStorage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = {"storage=inmemory", "widgets.region-cache.enabled=true", "widgets.region-cache.tile-size=100"})
+public class RegionCacheTests {
+
+	private static final RegionDto REGION = RegionDto.builder().x(0).y(0).width(300).height(300).build() ;
+
+	@Autowired
+	private WidgetService widgetService ;
+
+	@Autowired
+	private WidgetStorage widgetStorage ;
+
+	@Autowired
+	private RegionCache regionCache ;
+
+	@Autowired
+	private MeterRegistry registry ;
+
+	@BeforeEach
+	public void setUp() {
+		widgetStorage.deleteAll();
+		regionCache.invalidateAll();
+	}
+
+	@Test
+	public void givenRepeatedRegionWhenQueriedThenServedFromCache() {
+		widgetService.create(DEFAULT_BOARD, dto(10, 10, null)) ;
+		double hits = hits() ;
+
+		List<Widget> first = widgetService.findAllByRegion(DEFAULT_BOARD, REGION) ;
+		List<Widget> second = widgetService.findAllByRegion(DEFAULT_BOARD, REGION) ;
+
+		assertThat(second).extracting(Widget::getId).containsExactlyElementsOf(first.stream().map(Widget::getId).collect(Collectors.toList())) ;
+		assertThat(hits()).isEqualTo(hits + 1) ;
+	}
+
+	@Test
+	public void givenCachedResultWhenCallerChangesWidgetsThenCacheUnchanged() {
+		widgetService.create(DEFAULT_BOARD, dto(10, 10, null)) ;
+		widgetService.findAllByRegion(DEFAULT_BOARD, REGION).get(0).setX(5000);
+
+		widgetService.findAllByRegion(DEFAULT_BOARD, REGION).get(0).setX(6000);
+
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).extracting(Widget::getX).containsExactly(10) ;
+	}
+
+	@Test
+	public void givenMutationOutsideRegionTilesWhenQueriedThenCacheKept() {
+		widgetService.create(DEFAULT_BOARD, dto(10, 10, null)) ;
+		widgetService.findAllByRegion(DEFAULT_BOARD, REGION) ;
+
+		Widget far = widgetService.create(DEFAULT_BOARD, dto(5000, 5000, null)) ;
+		widgetService.update(DEFAULT_BOARD, far.getId(), dto(6000, 6000, null), null) ;
+		widgetService.deleteById(DEFAULT_BOARD, far.getId(), null);
+		double hits = hits() ;
+
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).hasSize(1) ;
+		assertThat(hits()).isEqualTo(hits + 1) ;
+	}
+
+	@Test
+	public void givenWidgetMovedIntoRegionWhenQueriedThenResultRefreshed() {
+		widgetService.create(DEFAULT_BOARD, dto(10, 10, null)) ;
+		Widget moved = widgetService.create(DEFAULT_BOARD, dto(5000, 5000, null)) ;
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).hasSize(1) ;
+
+		widgetService.update(DEFAULT_BOARD, moved.getId(), dto(100, 100, null), null) ;
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).hasSize(2) ;
+
+		widgetService.deleteById(DEFAULT_BOARD, moved.getId(), null);
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).hasSize(1) ;
+	}
+
+	@Test
+	public void givenZindexShiftElsewhereWhenQueriedThenShiftedIndexesReturned() {
+		Widget inside = widgetService.create(DEFAULT_BOARD, dto(10, 10, 1)) ;
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).extracting(Widget::getZindex).containsExactly(1) ;
+
+		widgetService.create(DEFAULT_BOARD, dto(5000, 5000, 1)) ;
+
+		assertThat(widgetService.findAllByRegion(DEFAULT_BOARD, REGION)).extracting(Widget::getZindex).containsExactly(2) ;
+		assertThat(widgetService.findById(DEFAULT_BOARD, inside.getId()).get().getZindex()).isEqualTo(2) ;
+	}
+
+	private double hits() {
+		return registry.get("widgets.region.cache.requests").tag("result", "hit").counter().count() ;
+	}
+
+	private WidgetDto dto(int x, int y, Integer zindex) {
+		return WidgetDto.builder().x(x).y(y).zindex(zindex).width(10).height(10).build() ;
+	}
+}
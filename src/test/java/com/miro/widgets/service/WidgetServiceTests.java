@@ -1,9 +1,10 @@
 package com.miro.widgets.service;
 
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.when;
 
 import java.time.LocalDateTime;
@@ -15,11 +16,14 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import com.miro.widgets.dto.WidgetDto;
 import com.miro.widgets.entity.Widget;
 import com.miro.widgets.service.WidgetService;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
 import com.miro.widgets.storage.WidgetStorage;
 
 @SpringBootTest
@@ -34,40 +38,40 @@ public class WidgetServiceTests {
 	
 	@Test
 	public void givenWidgetWhenRetrievedThenWidgetReturned() throws Exception {
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		when(widgetStorage.findById(anyString())).thenReturn(Optional.of(widget)) ;
-		Optional<Widget> wOptional = widgetService.findById("abc") ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		when(widgetStorage.findById(anyString(), anyString())).thenReturn(Optional.of(widget)) ;
+		Optional<Widget> wOptional = widgetService.findById(DEFAULT_BOARD, id("abc")) ;
 		
 		assertThat(wOptional).isPresent() ;
 	}
 	
 	@Test
 	public void givenMissingWidgetWhenRetrievedThenNotFound() throws Exception {
-		when(widgetStorage.findById(anyString())).thenReturn(Optional.empty()) ;
+		when(widgetStorage.findById(anyString(), anyString())).thenReturn(Optional.empty()) ;
 		
-		Optional<Widget> wOptional = widgetService.findById("abc") ;
+		Optional<Widget> wOptional = widgetService.findById(DEFAULT_BOARD, id("abc")) ;
 		
 		assertThat(wOptional).isEmpty() ;
 	}
 	
 	@Test
 	public void givenWidgetsWhenRetrievedThenWidgetsAreSortedByZIndexReturned() throws Exception {
-		Widget widget1 = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		Widget widget2 = Widget.builder().id("def").x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
-		Widget widget3 = Widget.builder().id("hij").x(0).y(0).zindex(3).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget1 = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget2 = Widget.builder().id(id("def")).x(0).y(0).zindex(2).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget3 = Widget.builder().id(id("hij")).x(0).y(0).zindex(3).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
-		when(widgetStorage.findAll(any())).thenReturn(List.of(widget1, widget2, widget3)) ;
+		when(widgetStorage.findAll(anyString(), any())).thenReturn(List.of(widget1, widget2, widget3)) ;
 		
-		List<Widget> widgets = widgetService.findAll(any()) ;
+		List<Widget> widgets = widgetService.findAll(DEFAULT_BOARD, PageRequest.of(0, 10)) ;
 		
 		assertThat(widgets.size()).isEqualTo(3) ;
 	}
 	
 	@Test
 	public void givenEmptyWidgetsWhenRetrievedThenWidgetsAreSortedByZIndexReturned() throws Exception {
-		when(widgetStorage.findAll(any())).thenReturn(List.of()) ;
+		when(widgetStorage.findAll(anyString(), any())).thenReturn(List.of()) ;
 		
-		List<Widget> widgets = widgetService.findAll(any()) ;
+		List<Widget> widgets = widgetService.findAll(DEFAULT_BOARD, PageRequest.of(0, 10)) ;
 		
 		assertThat(widgets.size()).isEqualTo(0) ;
 	}
@@ -75,11 +79,11 @@ public class WidgetServiceTests {
 	@Test
 	public void givenWidgetWhenCreatedThenWidgetReturned() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(100).width(50).build() ;
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
 		when(widgetStorage.create(any(Widget.class))).thenReturn(widget) ;
 		
-		Widget created = widgetService.create(dto) ;
+		Widget created = widgetService.create(DEFAULT_BOARD, dto) ;
 		
 		assertThat(created.getId()).isNotBlank() ;
 		assertThat(created.getLastModificationDate()).isNotNull() ;
@@ -88,11 +92,11 @@ public class WidgetServiceTests {
 	@Test
 	public void givenWidgetWhenUpdatedThenWidgetReturned() throws Exception {
 		WidgetDto dto = WidgetDto.builder().x(0).y(0).zindex(1).height(200).width(200).build() ;
-		Widget widget = Widget.builder().id("abc").x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
+		Widget widget = Widget.builder().id(id("abc")).x(0).y(0).zindex(1).height(100).width(50).lastModificationDate(LocalDateTime.now()).build() ;
 		
-		when(widgetStorage.update(any(Widget.class))).thenReturn(widget) ;
+		when(widgetStorage.apply(any(WidgetOperation.class))).thenReturn(WidgetOperationResult.updated(widget, widget)) ;
 		
-		Widget updated = widgetService.update("abc", dto) ;
+		Widget updated = widgetService.update(DEFAULT_BOARD, id("abc"), dto, null).get() ;
 		
 		assertThat(updated.getId()).isNotBlank() ;
 		assertThat(updated.getLastModificationDate()).isNotNull() ;
@@ -101,8 +105,8 @@ public class WidgetServiceTests {
 	
 	@Test
 	public void givenWidgetWhenDeletedThenSuccess() throws Exception {
-		doNothing().when(widgetStorage).deleteById(anyString());
+		when(widgetStorage.apply(any(WidgetOperation.class))).thenReturn(WidgetOperationResult.deleted(id("abc"), null)) ;
 		
-		widgetService.deleteById("abc");
+		assertThat(widgetService.deleteById(DEFAULT_BOARD, id("abc"), null)).isTrue() ;
 	}
 }
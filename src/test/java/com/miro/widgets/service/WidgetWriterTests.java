@@ -0,0 +1,131 @@
+package com.miro.widgets.service;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+
+import com.miro.widgets.dto.BatchOperationDto;
+import com.miro.widgets.dto.WidgetDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.StorageMetrics;
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+import com.miro.widgets.storage.WidgetStorage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringBootTest(properties = {"storage=inmemory", "widgets.write-pipeline.enabled=true"})
+public class WidgetWriterTests {
+
+	@Autowired
+	private WidgetWriter writer ;
+
+	@Autowired
+	private WidgetStorage storage ;
+
+	@BeforeEach
+	public void setUp() {
+		storage.deleteAll();
+	}
+
+	@Test
+	public void givenConcurrentCreatesWhenPipelinedThenAllAppliedOnTop() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8) ;
+		try {
+			List<Future<List<CompletableFuture<Widget>>>> submitted = new ArrayList<>() ;
+			for (int t = 0; t < 8; t++) {
+				submitted.add(executor.submit(() -> {
+					List<CompletableFuture<Widget>> created = new ArrayList<>() ;
+					for (int i = 0; i < 50; i++) {
+						created.add(writer.create(DEFAULT_BOARD, dto(null))) ;
+					}
+					return created ;
+				})) ;
+			}
+			List<Widget> created = new ArrayList<>() ;
+			for (Future<List<CompletableFuture<Widget>>> future : submitted) {
+				for (CompletableFuture<Widget> widget : future.get()) {
+					created.add(widget.join()) ;
+				}
+			}
+
+			List<Widget> stored = storage.findAll(DEFAULT_BOARD, PageRequest.of(0, 1000)) ;
+			assertThat(stored).hasSize(400) ;
+			assertThat(created.stream().map(Widget::getZindex).distinct()).hasSize(400) ;
+			assertThat(stored.stream().map(Widget::getId).collect(Collectors.toSet()))
+					.isEqualTo(created.stream().map(Widget::getId).collect(Collectors.toSet())) ;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void givenDeletedWidgetWhenUpdatedThenEmpty() {
+		Widget widget = writer.create(DEFAULT_BOARD, dto(1)).join() ;
+
+		CompletableFuture<Boolean> deleted = writer.deleteById(DEFAULT_BOARD, widget.getId(), null) ;
+		CompletableFuture<Boolean> deletedAgain = writer.deleteById(DEFAULT_BOARD, widget.getId(), null) ;
+
+		assertThat(deleted.join()).isTrue() ;
+		assertThat(deletedAgain.join()).isFalse() ;
+		assertThat(writer.update(DEFAULT_BOARD, widget.getId(), dto(2), null).join()).isEmpty() ;
+	}
+
+	@Test
+	public void givenBatchesOfDifferentCallersWhenMergedThenEachGetsItsOwnResults() {
+		CompletableFuture<Widget> single = writer.create(DEFAULT_BOARD, dto(5)) ;
+		CompletableFuture<List<WidgetOperationResult>> batch = writer.applyBatch(DEFAULT_BOARD, List.of(
+				BatchOperationDto.builder().type(WidgetOperation.Type.CREATE).widget(dto(5)).build(),
+				BatchOperationDto.builder().type(WidgetOperation.Type.DELETE).id(id("missing")).build())) ;
+		CompletableFuture<Widget> other = writer.create("other", dto(5)) ;
+
+		assertThat(single.join().getZindex()).isEqualTo(5) ;
+		assertThat(batch.join()).extracting(WidgetOperationResult::getStatus)
+				.containsExactly(WidgetOperationResult.Status.CREATED, WidgetOperationResult.Status.NOT_FOUND) ;
+		assertThat(other.join().getBoard()).isEqualTo("other") ;
+		assertThat(storage.findById(DEFAULT_BOARD, single.join().getId()).get().getZindex()).isEqualTo(6) ;
+	}
+
+	@Test
+	public void givenBatchThrowingErrorWhenAppliedThenOnlyItsCallerFailsAndWriterKeepsRunning() throws Exception {
+		WidgetService service = mock(WidgetService.class) ;
+		when(service.applyBatch(eq("broken"), anyList())).thenThrow(new AssertionError("broken batch")) ;
+		when(service.applyBatch(eq(DEFAULT_BOARD), anyList())).thenAnswer(invocation -> List.of(WidgetOperationResult.deleted(id("a"), null))) ;
+		WidgetWriter pipeline = new WidgetWriter(service, new StorageMetrics(new SimpleMeterRegistry(), "inmemory"), true, 16, 4) ;
+		pipeline.init();
+		try {
+			CompletableFuture<Boolean> broken = pipeline.deleteById("broken", id("a"), null) ;
+			CompletableFuture<Boolean> deleted = pipeline.deleteById(DEFAULT_BOARD, id("a"), null) ;
+
+			assertThat(broken).failsWithin(5, TimeUnit.SECONDS) ;
+			assertThat(deleted.get(5, TimeUnit.SECONDS)).isTrue() ;
+			assertThat(pipeline.deleteById(DEFAULT_BOARD, id("a"), null).get(5, TimeUnit.SECONDS)).isTrue() ;
+		} finally {
+			pipeline.shutdown();
+		}
+		assertThat(pipeline.deleteById(DEFAULT_BOARD, id("a"), null)).isCompletedExceptionally() ;
+	}
+
+	private WidgetDto dto(Integer zindex) {
+		return WidgetDto.builder().x(0).y(0).zindex(zindex).height(10).width(10).build() ;
+	}
+}
@@ -0,0 +1,97 @@
+package com.miro.widgets.storage.database;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static com.miro.widgets.entity.Widget.DEFAULT_BOARD;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.miro.widgets.storage.WidgetOperation;
+import com.miro.widgets.storage.WidgetOperationResult;
+
+public class GroupCommitterTests {
+
+	@Test
+	public void givenStalledCommitWhenQueueFullOrWaitExceededThenRejectedAndNotCommitted() throws Exception {
+		CountDownLatch started = new CountDownLatch(1) ;
+		CountDownLatch release = new CountDownLatch(1) ;
+		List<String> committed = new CopyOnWriteArrayList<>() ;
+		GroupCommitter committer = new GroupCommitter(operations -> {
+			started.countDown();
+			await(release) ;
+			committed.addAll(operations.stream().map(WidgetOperation::getId).collect(Collectors.toList())) ;
+			return operations.stream().map(WidgetOperationResult::notFound).collect(Collectors.toList()) ;
+		}, 1, 0, 1, 200) ;
+		try {
+			CompletableFuture<WidgetOperationResult> inFlight = CompletableFuture.supplyAsync(() -> committer.apply(WidgetOperation.delete(DEFAULT_BOARD, id("a")))) ;
+			assertThat(started.await(5, TimeUnit.SECONDS)).isTrue() ;
+			CompletableFuture<WidgetOperationResult> queued = CompletableFuture.supplyAsync(() -> committer.apply(WidgetOperation.delete(DEFAULT_BOARD, id("b")))) ;
+			Thread.sleep(50);
+
+			assertThatThrownBy(() -> committer.apply(WidgetOperation.delete(DEFAULT_BOARD, id("c")))).isInstanceOf(RejectedExecutionException.class) ;
+			assertThatThrownBy(queued::join).hasCauseInstanceOf(RejectedExecutionException.class) ;
+
+			release.countDown();
+			assertThat(inFlight.get(5, TimeUnit.SECONDS).getStatus()).isEqualTo(WidgetOperationResult.Status.NOT_FOUND) ;
+			assertThat(committed).containsExactly(id("a")) ;
+		} finally {
+			release.countDown();
+			committer.shutdown();
+		}
+	}
+
+	@Test
+	public void givenTakenOperationWhenCallerInterruptedThenItWaitsForTheCommit() throws Exception {
+		CountDownLatch started = new CountDownLatch(1) ;
+		CountDownLatch release = new CountDownLatch(1) ;
+		GroupCommitter committer = new GroupCommitter(operations -> {
+			started.countDown();
+			await(release) ;
+			return operations.stream().map(WidgetOperationResult::notFound).collect(Collectors.toList()) ;
+		}, 1, 0, 1, 5000) ;
+		try {
+			AtomicReference<Object> outcome = new AtomicReference<>() ;
+			AtomicBoolean interrupted = new AtomicBoolean() ;
+			Thread caller = new Thread(() -> {
+				try {
+					outcome.set(committer.apply(WidgetOperation.delete(DEFAULT_BOARD, id("a"))).getStatus()) ;
+				} catch (RuntimeException e) {
+					outcome.set(e) ;
+				}
+				interrupted.set(Thread.currentThread().isInterrupted());
+			}) ;
+			caller.start();
+			assertThat(started.await(5, TimeUnit.SECONDS)).isTrue() ;
+
+			caller.interrupt();
+			Thread.sleep(50);
+			release.countDown();
+			caller.join(5000);
+
+			assertThat(outcome.get()).isEqualTo(WidgetOperationResult.Status.NOT_FOUND) ;
+			assertThat(interrupted).isTrue() ;
+		} finally {
+			release.countDown();
+			committer.shutdown();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
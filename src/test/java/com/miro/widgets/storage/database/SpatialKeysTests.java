@@ -0,0 +1,68 @@
+package com.miro.widgets.storage.database;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class SpatialKeysTests {
+	
+	@Test
+	public void givenRandomRegionsWhenDecomposedThenEveryInnerPointIsCovered() {
+		Random random = new Random(5) ;
+		for (int i = 0; i < 500; i++) {
+			int minX = random.nextInt(20000) - 10000 ;
+			int minY = random.nextInt(20000) - 10000 ;
+			int maxX = minX + random.nextInt(i % 2 == 0 ? 300 : 5000) ;
+			int maxY = minY + random.nextInt(i % 2 == 0 ? 300 : 5000) ;
+			List<long[]> ranges = SpatialKeys.ranges(minX, minY, maxX, maxY) ;
+			
+			assertThat(ranges.size()).isLessThanOrEqualTo(SpatialKeys.MAX_RANGES) ;
+			for (int j = 0; j < 50; j++) {
+				int x = minX + random.nextInt(maxX - minX + 1) ;
+				int y = minY + random.nextInt(maxY - minY + 1) ;
+				assertThat(covered(ranges, SpatialKeys.of(x, y))).isTrue() ;
+			}
+		}
+	}
+	
+	@Test
+	public void givenSmallRegionWhenDecomposedThenFewCellsAreScanned() {
+		List<long[]> ranges = SpatialKeys.ranges(1000, 1000, 1999, 1999) ;
+		
+		long cells = ranges.stream().mapToLong(r -> r[1] - r[0] + 1).sum() ;
+		long regionCells = (1000 / SpatialKeys.CELL_SIZE + 2) * (1000 / SpatialKeys.CELL_SIZE + 2) ;
+		assertThat(cells).isLessThanOrEqualTo(16 * regionCells) ;
+	}
+	
+	@Test
+	public void givenExtremeCoordinatesWhenKeyedThenNoOverflow() {
+		assertThat(SpatialKeys.of(Integer.MIN_VALUE, Integer.MIN_VALUE)).isGreaterThanOrEqualTo(0) ;
+		assertThat(SpatialKeys.of(Integer.MAX_VALUE, Integer.MAX_VALUE)).isLessThan(1L << (2 * SpatialKeys.ORDER)) ;
+		assertThat(covered(SpatialKeys.ranges(Integer.MAX_VALUE - 10, 0, Integer.MAX_VALUE, 10), SpatialKeys.of(Integer.MAX_VALUE, 5))).isTrue() ;
+	}
+	
+	@Test
+	public void givenRandomWidgetsWhenPointInsideThenCoverKeyAmongPointKeys() {
+		Random random = new Random(7) ;
+		for (int i = 0; i < 2000; i++) {
+			int x = random.nextInt(2000000) - 1000000 ;
+			int y = random.nextInt(2000000) - 1000000 ;
+			int width = 1 + random.nextInt(i % 3 == 0 ? 50 : i % 3 == 1 ? 5000 : 1000000) ;
+			int height = 1 + random.nextInt(i % 2 == 0 ? 50 : 100000) ;
+			long key = SpatialKeys.coverKey(x, y, width, height) ;
+			
+			assertThat(SpatialKeys.coverKeys(x, y)).contains(key) ;
+			assertThat(SpatialKeys.coverKeys(x + width, y + height)).contains(key) ;
+			assertThat(SpatialKeys.coverKeys(x + random.nextInt(width + 1), y + random.nextInt(height + 1))).contains(key) ;
+		}
+		assertThat(SpatialKeys.coverKeys(Integer.MAX_VALUE, Integer.MAX_VALUE)).contains(SpatialKeys.coverKey(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE)) ;
+		assertThat(SpatialKeys.coverKeys(Integer.MIN_VALUE, Integer.MIN_VALUE)).contains(SpatialKeys.coverKey(Integer.MIN_VALUE, Integer.MIN_VALUE, 1, 1)) ;
+	}
+	
+	private boolean covered(List<long[]> ranges, long key) {
+		return ranges.stream().anyMatch(r -> r[0] <= key && key <= r[1]) ;
+	}
+}
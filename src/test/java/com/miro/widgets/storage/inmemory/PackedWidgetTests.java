@@ -0,0 +1,39 @@
+package com.miro.widgets.storage.inmemory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.entity.WidgetIds;
+
+public class PackedWidgetTests {
+
+	@Test
+	public void givenWidgetWhenPackedAndUnpackedThenEqual() {
+		Widget widget = Widget.builder().id(WidgetIds.next()).board("board").x(-10).y(20).zindex(Integer.MIN_VALUE).width(30).height(40)
+				.lastModificationDate(LocalDateTime.of(2021, 2, 3, 4, 5, 6, 789)).build() ;
+
+		assertThat(PackedWidget.of(widget).toWidget()).usingRecursiveComparison().isEqualTo(widget) ;
+	}
+
+	@Test
+	public void givenWidgetWithoutDateWhenUnpackedThenDateIsNull() {
+		Widget widget = Widget.builder().id(WidgetIds.next()).x(1).y(1).zindex(1).width(1).height(1).build() ;
+
+		assertThat(PackedWidget.of(widget).toWidget().getLastModificationDate()).isNull() ;
+	}
+
+	@Test
+	public void givenShiftWhenUnpackedThenZindexAndDateShifted() {
+		LocalDateTime shiftedAt = LocalDateTime.of(2021, 1, 1, 0, 0) ;
+		Widget widget = Widget.builder().id(WidgetIds.next()).x(1).y(1).zindex(5).width(1).height(1).lastModificationDate(LocalDateTime.of(2020, 1, 1, 0, 0)).build() ;
+
+		Widget shifted = PackedWidget.of(widget).toWidget(3, shiftedAt) ;
+
+		assertThat(shifted.getZindex()).isEqualTo(8) ;
+		assertThat(shifted.getLastModificationDate()).isEqualTo(shiftedAt) ;
+	}
+}
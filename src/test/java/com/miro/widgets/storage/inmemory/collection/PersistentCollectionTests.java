@@ -0,0 +1,114 @@
+package com.miro.widgets.storage.inmemory.collection;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class PersistentCollectionTests {
+	
+	@Test
+	public void givenRandomOperationsWhenAppliedToHashMapThenMatchesHashMap() {
+		Random random = new Random(42) ;
+		Map<Integer, Integer> expected = new HashMap<>() ;
+		PersistentHashMap<Integer, Integer> actual = PersistentHashMap.empty() ;
+		
+		for (int i = 0; i < 20000; i++) {
+			int key = random.nextInt(5000) ;
+			if (random.nextInt(3) == 0) {
+				expected.remove(key) ;
+				actual = actual.remove(key) ;
+			} else {
+				expected.put(key, i) ;
+				actual = actual.put(key, i) ;
+			}
+		}
+		
+		assertThat(actual.size()).isEqualTo(expected.size()) ;
+		for (int key = 0; key < 5000; key++) {
+			assertThat(actual.get(key)).isEqualTo(expected.get(key)) ;
+		}
+	}
+	
+	@Test
+	public void givenEntriesWhenHashMapBuiltAtOnceThenMatchesHashMap() {
+		Random random = new Random(7) ;
+		List<String> keys = new ArrayList<>() ;
+		List<Integer> values = new ArrayList<>() ;
+		for (int i = 0; i < 20000; i++) {
+			keys.add("k" + random.nextLong()) ;
+			values.add(i) ;
+		}
+		keys.addAll(List.of("Aa", "BB")) ;
+		values.addAll(List.of(-1, -2)) ;
+		
+		PersistentHashMap<String, Integer> map = PersistentHashMap.of(keys, values) ;
+		
+		assertThat(map.size()).isEqualTo(keys.size()) ;
+		for (int i = 0; i < keys.size(); i++) {
+			assertThat(map.get(keys.get(i))).isEqualTo(values.get(i)) ;
+		}
+		assertThat(map.get("missing")).isNull() ;
+		assertThat(map.remove("Aa").put("C", 3).get("BB")).isEqualTo(-2) ;
+		assertThat(PersistentHashMap.of(List.of("a"), List.of(1)).put("b", 2).get("a")).isEqualTo(1) ;
+	}
+	
+	@Test
+	public void givenCollidingKeysWhenStoredInHashMapThenAllRetrievable() {
+		PersistentHashMap<String, Integer> map = PersistentHashMap.empty() ;
+		map = map.put("Aa", 1).put("BB", 2).put("C", 3) ;
+		
+		assertThat(map.get("Aa")).isEqualTo(1) ;
+		assertThat(map.get("BB")).isEqualTo(2) ;
+		assertThat(map.remove("Aa").get("BB")).isEqualTo(2) ;
+		assertThat(map.remove("Aa").get("Aa")).isNull() ;
+		assertThat(map.remove("Aa").size()).isEqualTo(2) ;
+	}
+	
+	@Test
+	public void givenOldVersionWhenMapUpdatedThenOldVersionUnchanged() {
+		PersistentHashMap<String, Integer> v1 = PersistentHashMap.<String, Integer>empty().put("a", 1) ;
+		PersistentHashMap<String, Integer> v2 = v1.put("a", 2).put("b", 3) ;
+		
+		assertThat(v1.get("a")).isEqualTo(1) ;
+		assertThat(v1.containsKey("b")).isFalse() ;
+		assertThat(v2.get("a")).isEqualTo(2) ;
+	}
+	
+	@Test
+	public void givenRandomOperationsWhenAppliedToTreeMapThenMatchesTreeMap() {
+		Random random = new Random(7) ;
+		TreeMap<Integer, Integer> expected = new TreeMap<>() ;
+		PersistentTreeMap<Integer, Integer> actual = PersistentTreeMap.empty() ;
+		
+		for (int i = 0; i < 20000; i++) {
+			int key = random.nextInt(5000) ;
+			if (random.nextInt(3) == 0) {
+				expected.remove(key) ;
+				actual = actual.remove(key) ;
+			} else {
+				expected.put(key, key) ;
+				actual = actual.put(key, key) ;
+			}
+		}
+		
+		assertThat(actual.size()).isEqualTo(expected.size()) ;
+		assertThat(actual.firstKey()).isEqualTo(expected.firstKey()) ;
+		assertThat(actual.lastKey()).isEqualTo(expected.lastKey()) ;
+		assertThat(toList(actual.values())).containsExactlyElementsOf(expected.values()) ;
+		assertThat(toList(actual.tailValues(2500, true))).containsExactlyElementsOf(expected.tailMap(2500, true).values()) ;
+		assertThat(toList(actual.tailValues(2500, false))).containsExactlyElementsOf(expected.tailMap(2500, false).values()) ;
+	}
+	
+	private static <T> List<T> toList(Iterable<T> iterable) {
+		List<T> list = new ArrayList<>() ;
+		iterable.forEach(list::add);
+		return list ;
+	}
+}
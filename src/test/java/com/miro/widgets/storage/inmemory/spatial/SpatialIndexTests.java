@@ -0,0 +1,102 @@
+package com.miro.widgets.storage.inmemory.spatial;
+
+import static com.miro.widgets.entity.TestWidgetIds.id;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.miro.widgets.dto.RegionDto;
+import com.miro.widgets.entity.Widget;
+import com.miro.widgets.storage.inmemory.PackedWidget;
+
+public class SpatialIndexTests {
+	
+	@Test
+	public void givenRandomWidgetsWhenSearchedByRTreeThenMatchesBruteForce() {
+		verifyAgainstBruteForce(RTreeSpatialIndex.empty()) ;
+	}
+	
+	@Test
+	public void givenRandomWidgetsWhenSearchedByQuadTreeThenMatchesBruteForce() {
+		verifyAgainstBruteForce(QuadTreeSpatialIndex.empty()) ;
+	}
+	
+	@Test
+	public void givenRandomWidgetsWhenSearchedByGridThenMatchesBruteForce() {
+		verifyAgainstBruteForce(GridSpatialIndex.empty(64)) ;
+	}
+	
+	@Test
+	public void givenBulkLoadedRTreeWhenUpdatedAndSearchedThenMatchesBruteForce() {
+		Random random = new Random(5) ;
+		Map<String, PackedWidget> widgets = new HashMap<>() ;
+		for (int i = 0; i < 1500; i++) {
+			widgets.put("w" + i, widget("w" + i, random.nextInt(4000) - 2000, random.nextInt(4000) - 2000, 1 + random.nextInt(300), 1 + random.nextInt(300))) ;
+		}
+		
+		verifyAgainstBruteForce(RTreeSpatialIndex.empty().insertAll(new ArrayList<>(widgets.values())), widgets) ;
+	}
+	
+	@Test
+	public void givenWidgetSpanningCellsWhenSearchedByGridThenReportedOnce() {
+		PackedWidget widget = widget("a", 10, 10, 500, 500) ;
+		SpatialIndex index = GridSpatialIndex.empty(64).insert(widget) ;
+		
+		List<PackedWidget> found = new ArrayList<>() ;
+		index.search(RegionDto.builder().x(0).y(0).width(1000).height(1000).build(), found::add);
+		
+		assertThat(found).containsExactly(widget) ;
+	}
+	
+	private void verifyAgainstBruteForce(SpatialIndex index) {
+		verifyAgainstBruteForce(index, new HashMap<>()) ;
+	}
+	
+	private void verifyAgainstBruteForce(SpatialIndex index, Map<String, PackedWidget> widgets) {
+		Random random = new Random(11) ;
+		
+		for (int i = 0; i < 3000; i++) {
+			String id = "w" + random.nextInt(1500) ;
+			PackedWidget existing = widgets.remove(id) ;
+			if (existing != null) {
+				index = index.remove(existing) ;
+			}
+			if (random.nextInt(4) != 0) {
+				PackedWidget widget = widget(id, random.nextInt(4000) - 2000, random.nextInt(4000) - 2000, 1 + random.nextInt(300), 1 + random.nextInt(300)) ;
+				widgets.put(id, widget) ;
+				index = index.insert(widget) ;
+			}
+		}
+		
+		for (int i = 0; i < 200; i++) {
+			RegionDto region = RegionDto.builder().x(random.nextInt(4000) - 2000).y(random.nextInt(4000) - 2000)
+					.width(1 + random.nextInt(1500)).height(1 + random.nextInt(1500)).build() ;
+			
+			List<UUID> found = new ArrayList<>() ;
+			index.search(region, w -> found.add(w.getKey()));
+			
+			Set<UUID> expected = widgets.values().stream()
+					.filter(w -> SpatialIndex.intersects(w, region.getX(), region.getY(), (long) region.getX() + region.getWidth(), (long) region.getY() + region.getHeight()))
+					.map(PackedWidget::getKey)
+					.collect(Collectors.toSet()) ;
+			
+			assertThat(found).hasSameSizeAs(new HashSet<>(found)) ;
+			assertThat(new HashSet<>(found)).isEqualTo(expected) ;
+		}
+	}
+	
+	private static PackedWidget widget(String name, int x, int y, int width, int height) {
+		return PackedWidget.of(Widget.builder().id(id(name)).x(x).y(y).zindex(0).width(width).height(height).lastModificationDate(LocalDateTime.now()).build()) ;
+	}
+}